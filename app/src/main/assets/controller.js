@@ -19,12 +19,18 @@
  * OTHER DEALINGS IN THE SOFTWARE.
  */
 
-window.onload = updateView;
+window.onload = function () {
+    updateView();
+    subscribeEvents();
+};
 
 let selectedElement = null;
 let filenameToDelete = "";
 let playingFilename = "";
 
+// This page shows the main camera, which has an empty name in the events
+const cameraName = "";
+
 /**
  * Updates scroll view
  */
@@ -53,46 +59,10 @@ function updateView() {
             // If there are videos
             if (records.length > 0) {
                 // Create new elements
-                let scrollElement;
-                let thumbnailDiv;
-                let dateDiv;
-                let deleteDiv;
-                let br;
                 for (let i = 0; i < records.length; i++) {
-                    // Create new scrollElement
-                    scrollElement = document.createElement("div");
-                    scrollElement.className = "scroll-element";
-                    scrollElement.setAttribute("onclick", "selectElement(this);");
-
-                    // Create new thumbnailDiv
-                    thumbnailDiv = document.createElement("div");
-                    thumbnailDiv.innerHTML = "<img src=\"data:image/jpeg;base64,"
-                    + records[i].thumbnail.replace("\\/", "/") + "\">";
-                    thumbnailDiv.onclick = function() {
-                        viewVideo(records[i].filename, records[i].date, records[i].type);
-                    };
-
-                    // Create new dateDiv
-                    dateDiv = document.createElement("div");
-                    dateDiv.innerHTML = "<p>" + records[i].date + "</p>";
-
-                    // Create new deleteDiv
-                    deleteDiv = document.createElement("div");
-                    deleteDiv.innerHTML = "<img src=\"delete.png\" class=\"icon-delete\">";
-                    deleteDiv.onclick = function() {
-                        deleteVideo(records[i].filename);
-                    };
-
-                    // Create BR element
-                    br = document.createElement("br");
-                    br.className = "scroll-element";
-
-                    // Append all elements
-                    scrollElement.appendChild(thumbnailDiv);
-                    scrollElement.appendChild(dateDiv);
-                    scrollElement.appendChild(deleteDiv);
-                    scrollContainer.appendChild(scrollElement);
-                    scrollContainer.appendChild(br);
+                    const elements = createRecordElements(records[i]);
+                    scrollContainer.appendChild(elements[0]);
+                    scrollContainer.appendChild(elements[1]);
                 }
             }
 
@@ -101,6 +71,7 @@ function updateView() {
                 // Add empty text
                 let scrollElement = document.createElement("div");
                 scrollElement.className = "scroll-element";
+                scrollElement.id = "no-videos";
                 scrollElement.innerHTML = "<p style=\"margin: 1em;\">No videos</p>";
 
                 // Append element
@@ -118,6 +89,114 @@ function updateView() {
     xmlHTTP.send(null);
 }
 
+/**
+ * Creates list element of the recording
+ * @returns {HTMLElement[]} scroll element and line break after it
+ */
+function createRecordElements(record) {
+    // Create new scrollElement
+    const scrollElement = document.createElement("div");
+    scrollElement.className = "scroll-element";
+    scrollElement.id = "record-" + record.filename;
+    scrollElement.setAttribute("onclick", "selectElement(this);");
+
+    // Create new thumbnailDiv
+    const thumbnailDiv = document.createElement("div");
+    thumbnailDiv.innerHTML = "<img src=\"data:image/jpeg;base64,"
+    + record.thumbnail.replace("\\/", "/") + "\">";
+    thumbnailDiv.onclick = function() {
+        viewVideo(record.filename, record.date, record.type, record.motion);
+    };
+
+    // Create new dateDiv
+    const dateDiv = document.createElement("div");
+    dateDiv.innerHTML = "<p>" + record.date + "</p>";
+
+    // Create new deleteDiv
+    const deleteDiv = document.createElement("div");
+    deleteDiv.innerHTML = "<img src=\"delete.png\" class=\"icon-delete\">";
+    deleteDiv.onclick = function() {
+        deleteVideo(record.filename);
+    };
+
+    // Create BR element
+    const br = document.createElement("br");
+    br.className = "scroll-element";
+    br.id = "record-br-" + record.filename;
+
+    // Append all elements
+    scrollElement.appendChild(thumbnailDiv);
+    scrollElement.appendChild(dateDiv);
+    scrollElement.appendChild(deleteDiv);
+    return [scrollElement, br];
+}
+
+/**
+ * Subscribes to the server events and updates the page incrementally
+ */
+function subscribeEvents() {
+    if (typeof EventSource === "undefined")
+        return;
+    const eventSource = new EventSource("/events");
+
+    // Events of other cameras are ignored
+    const isOtherCamera = function (data) {
+        return (data.camera || "") !== cameraName;
+    };
+
+    // New recording. Add it to the top of the list
+    eventSource.addEventListener("clip", function (event) {
+        const record = JSON.parse(event.data);
+        if (isOtherCamera(record))
+            return;
+        if (document.getElementById("record-" + record.filename) != null)
+            return;
+        try { document.getElementById("no-videos").remove(); } catch (ignored) { }
+        const scrollContainer = document.getElementById("scroll-container");
+        const elements = createRecordElements(record);
+        scrollContainer.insertBefore(elements[1], scrollContainer.firstChild);
+        scrollContainer.insertBefore(elements[0], elements[1]);
+    });
+
+    // Deleted recording
+    eventSource.addEventListener("deleted", function (event) {
+        const data = JSON.parse(event.data);
+        if (isOtherCamera(data))
+            return;
+        const filename = data.filename;
+        try { document.getElementById("record-" + filename).remove(); } catch (ignored) { }
+        try { document.getElementById("record-br-" + filename).remove(); } catch (ignored) { }
+    });
+
+    // Recording started / stopped
+    eventSource.addEventListener("recording", function (event) {
+        const data = JSON.parse(event.data);
+        if (isOtherCamera(data))
+            return;
+        document.getElementById("status-recording").innerText =
+            data.recording ? "Recording" : "Idle";
+    });
+
+    // Motion score (0-255)
+    eventSource.addEventListener("motion", function (event) {
+        const data = JSON.parse(event.data);
+        if (isOtherCamera(data))
+            return;
+        document.getElementById("status-recording").innerText =
+            data.recording ? "Recording" : "Idle";
+        document.getElementById("status-motion").innerText =
+            "Motion: " + Math.round(data.score * 100 / 255) + "%";
+    });
+
+    // Storage usage
+    eventSource.addEventListener("storage", function (event) {
+        const data = JSON.parse(event.data);
+        document.getElementById("status-storage").innerText =
+            "Free: " + (data.free / 1073741824).toFixed(1) + " / "
+            + (data.total / 1073741824).toFixed(1) + " GB";
+    });
+}
+
 function selectElement(element) {
     if (selectedElement != null)
         selectedElement.style.backgroundColor = "";
@@ -128,7 +207,7 @@ function selectElement(element) {
 /**
  * Opens new video
  */
-function viewVideo(filename, date, type) {
+function viewVideo(filename, date, type, motion) {
     // Store playing filename
     playingFilename = filename;
 
@@ -146,12 +225,62 @@ function viewVideo(filename, date, type) {
 
     // Show player
     document.getElementById("video-container").style.display = "block";
+
+    // Load motion timeline
+    if (motion)
+        loadTimeline(filename, videoPlayer);
+}
+
+/**
+ * Loads motion metadata of the video and draws activity timeline under the player.
+ * Click on the timeline seeks the video
+ */
+function loadTimeline(filename, videoPlayer) {
+    const xmlHTTP = new XMLHttpRequest();
+    xmlHTTP.onreadystatechange = function () {
+        if (this.readyState === 4 && this.status === 200) {
+            const motion = JSON.parse(this.responseText);
+            const length = Math.min(motion.time.length, motion.score.length);
+            if (length === 0 || videoPlayer !== document.getElementById("video-player"))
+                return;
+
+            // Create canvas
+            const canvas = document.createElement("canvas");
+            canvas.id = "motion-timeline";
+            canvas.className = "motion-timeline";
+            canvas.width = 600;
+            canvas.height = 40;
+            document.getElementById("video-container").appendChild(canvas);
+
+            // Draw motion scores
+            const context = canvas.getContext("2d");
+            const duration = Math.max(motion.time[length - 1], 1);
+            context.fillStyle = "#ff5722";
+            for (let i = 0; i < length; i++) {
+                const x = motion.time[i] / duration * canvas.width;
+                const height = motion.score[i] / 255 * canvas.height;
+                context.fillRect(x, canvas.height - height, 2, height);
+            }
+
+            // Seek to the clicked moment
+            canvas.onclick = function (event) {
+                const rect = canvas.getBoundingClientRect();
+                const position = (event.clientX - rect.left) / rect.width;
+                videoPlayer.currentTime = position * duration / 1000;
+            };
+        }
+    };
+
+    // Send GET request to get motion metadata
+    xmlHTTP.open("GET", "/motion/" + filename, true);
+    xmlHTTP.send(null);
 }
 
 function deleteVideoFromPlayer() {
     // Close player
     document.getElementById("video-container").style.display = "none";
     try { document.getElementById("video-player").remove(); } catch (ignored) { }
+    try { document.getElementById("motion-timeline").remove(); } catch (ignored) { }
 
     // Ask for confirmation
     if (playingFilename != null && playingFilename.length > 0)
@@ -189,6 +318,7 @@ function confirmationCancel() {
     document.getElementById("confirmation-dialog").style.display = "none";
     document.getElementById("video-container").style.display = "none";
     try { document.getElementById("video-player").remove(); } catch (ignored) { }
+    try { document.getElementById("motion-timeline").remove(); } catch (ignored) { }
     document.getElementById("overlay-container").style.display = "none";
 }
 
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.os.Build;
+import android.os.Process;
+import android.system.Os;
+import android.util.Log;
+
+import org.bytedeco.javacv.Seekable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class writes encoder output to a file on a dedicated writer thread.
+ * Data is collected into large buffers aligned to the file offset, the file is preallocated
+ * in big extents, so slow storage doesn't stall the encoder until all buffers are in use.
+ * Supports seeking (FFmpeg rewrites MP4 headers at the end) and encryption on the writer thread
+ * (RecordingCipher)
+ */
+public class AsyncFileOutputStream extends OutputStream implements Seekable {
+    private static final String TAG = AsyncFileOutputStream.class.getName();
+
+    private static final int bufferSize = 1024 * 1024;
+    private static final int buffersCount = 4;
+    private static final long preallocateSize = 32L * 1024 * 1024;
+
+    private static final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                runnable.run();
+            }, "AsyncFileWriter"));
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(buffersCount);
+    private final long syncInterval;
+    private final byte[] iv;
+    private final long dataOffset;
+
+    // Encrypted copy of the buffer being written. Accessed by the writer thread only
+    private final ByteBuffer cipherBuffer;
+
+    private ByteBuffer buffer;
+    private long bufferPosition;
+    private long position;
+    private long size;
+    private boolean closed;
+
+    // Accessed by the writer thread only
+    private long allocatedSize;
+    private boolean preallocateFailed;
+    private long lastSyncTime;
+
+    private volatile IOException writeException;
+
+    /**
+     * @param file output file (truncated)
+     * @param syncInterval interval of syncing data to the storage in milliseconds
+     *                     (0 to sync only on close)
+     * @param encrypt true to encrypt the file (RecordingCipher key must be loaded)
+     */
+    public AsyncFileOutputStream(File file, long syncInterval, boolean encrypt)
+            throws IOException {
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = randomAccessFile.getChannel();
+        this.syncInterval = syncInterval;
+        fileChannel.truncate(0);
+        for (int i = 0; i < buffersCount; i++)
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+
+        // Encrypted data starts after the header
+        if (encrypt) {
+            iv = RecordingCipher.newIV();
+            dataOffset = RecordingCipher.HEADER_SIZE;
+            randomAccessFile.write(RecordingCipher.createHeader(iv));
+            cipherBuffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            iv = null;
+            dataOffset = 0;
+            cipherBuffer = null;
+        }
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null || !buffer.hasRemaining())
+            nextBuffer();
+        buffer.put((byte) b);
+        advance(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (buffer == null || !buffer.hasRemaining())
+                nextBuffer();
+            int length = Math.min(len, buffer.remaining());
+            buffer.put(b, off, length);
+            advance(length);
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void seek(long offset, int whence) {
+        // Pass written data to the writer. Writes are positional, so they stay in order
+        try {
+            submitBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (whence == 0)
+            position = offset;
+        else if (whence == 1)
+            position += offset;
+        else if (whence == 2)
+            position = size + offset;
+        else
+            throw new IllegalArgumentException("Unsupported whence: " + whence);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        submitBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        IOException exception = null;
+        try {
+            try {
+                submitBuffer();
+            } catch (IOException e) {
+                exception = e;
+            }
+
+            // Wait for the writer to finish all submitted buffers
+            // (current buffer is not submitted if writing failed)
+            int submittedBuffers = buffersCount - (buffer != null ? 1 : 0);
+            for (int i = 0; i < submittedBuffers; i++)
+                freeBuffers.take();
+            if (exception == null)
+                exception = writeException;
+        } catch (InterruptedException e) {
+            exception = new IOException(e);
+        } finally {
+            try {
+                // Remove unused preallocated space even if writing failed, then sync
+                fileChannel.truncate(dataOffset + size);
+                if (exception == null)
+                    fileChannel.force(true);
+            } catch (IOException e) {
+                if (exception == null)
+                    exception = e;
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        if (exception != null)
+            throw exception;
+    }
+
+    private void advance(int length) {
+        position += length;
+        size = Math.max(size, position);
+    }
+
+    /**
+     * Passes current buffer to the writer and takes free one.
+     * New buffer ends on the next bufferSize boundary of the file (including the header of
+     * the encrypted file), so writes stay aligned
+     */
+    private void nextBuffer() throws IOException {
+        submitBuffer();
+        try {
+            if (freeBuffers.isEmpty())
+                PerformanceMetrics.incrementCounter("storage_write_stalls");
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        buffer.clear();
+        buffer.limit(bufferSize - (int) ((dataOffset + position) % bufferSize));
+        bufferPosition = position;
+    }
+
+    private void submitBuffer() throws IOException {
+        if (writeException != null)
+            throw writeException;
+        if (buffer == null)
+            return;
+
+        ByteBuffer writeBuffer = buffer;
+        long writePosition = bufferPosition;
+        buffer = null;
+        writeBuffer.flip();
+        PerformanceMetrics.setGauge("storage_write_queue",
+                buffersCount - freeBuffers.size());
+        writerExecutor.execute(() -> {
+            // Buffer must return even if writing fails, close() waits for all of them
+            try {
+                writeBuffer(writeBuffer, writePosition);
+            } finally {
+                freeBuffers.add(writeBuffer);
+            }
+        });
+    }
+
+    /**
+     * Calls on the writer thread
+     */
+    private void writeBuffer(ByteBuffer writeBuffer, long writePosition) {
+        if (writeException != null)
+            return;
+        try {
+            // Encrypt into the cipher buffer
+            if (iv != null) {
+                long encryptStartTime = System.currentTimeMillis();
+                cipherBuffer.clear();
+                RecordingCipher.crypt(iv, writePosition, writeBuffer, cipherBuffer);
+                cipherBuffer.flip();
+                writeBuffer = cipherBuffer;
+                PerformanceMetrics.recordLatency("storage_encrypt_ms",
+                        System.currentTimeMillis() - encryptStartTime);
+            }
+
+            long startTime = System.currentTimeMillis();
+            writePosition += dataOffset;
+            preallocate(writePosition + writeBuffer.remaining());
+            while (writeBuffer.hasRemaining())
+                writePosition += fileChannel.write(writeBuffer, writePosition);
+            long currentTime = System.currentTimeMillis();
+            PerformanceMetrics.recordLatency("storage_write_ms", currentTime - startTime);
+
+            // Periodic sync
+            if (syncInterval > 0 && currentTime - lastSyncTime >= syncInterval) {
+                fileChannel.force(false);
+                lastSyncTime = System.currentTimeMillis();
+                PerformanceMetrics.recordLatency("storage_sync_ms", lastSyncTime - currentTime);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing file!", e);
+            writeException = e;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Error encrypting file!", e);
+            writeException = new IOException(e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error writing file!", e);
+            writeException = new IOException(e);
+        }
+    }
+
+    /**
+     * Allocates file space in big extents (less fragmentation on the SD cards)
+     */
+    private void preallocate(long end) {
+        if (end <= allocatedSize || preallocateFailed)
+            return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            preallocateFailed = true;
+            return;
+        }
+        long newSize = (end / preallocateSize + 1) * preallocateSize;
+        try {
+            Os.posix_fallocate(randomAccessFile.getFD(), allocatedSize,
+                    newSize - allocatedSize);
+            allocatedSize = newSize;
+        } catch (Exception e) {
+            // Not supported by the file system
+            Log.w(TAG, "Unable to preallocate file: " + e.getMessage());
+            preallocateFailed = true;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class runs short one-off tasks (startup steps, event broadcasts, benchmarks)
+ * off the main and camera threads. Native libraries are loaded by NativeLibraries
+ * on separate threads, so tasks can wait for them
+ */
+public class BackgroundTasks {
+    private static final ExecutorService executorService = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "BackgroundTask"));
+
+    /**
+     * Runs task on the background threads
+     * @param runnable task
+     */
+    public static void execute(Runnable runnable) {
+        executorService.execute(runnable);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class finds bounding boxes of motion blobs on a downscaled motion mask
+ */
+public class BlobDetector {
+    private static final int detectionWidth = 160;
+    private static final int maxBlobs = 8;
+    private static final int minBlobArea = 4;
+
+    private final Mat matSmall = new Mat();
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private final List<Rect> blobs = new ArrayList<>();
+    private final List<Integer> areas = new ArrayList<>();
+    private final int[] statsRow = new int[5];
+
+    private int width, height;
+
+    /**
+     * Finds the largest blobs on the mask
+     * @param mask thresholded CV_8UC1 motion mask
+     * @return list of bounding boxes in detection resolution (see getWidth() and getHeight()).
+     * The list is reused by the next call
+     */
+    public List<Rect> detect(Mat mask) {
+        // Downscale mask
+        width = Math.min(detectionWidth, mask.cols());
+        height = Math.max(1, mask.rows() * width / mask.cols());
+        Imgproc.resize(mask, matSmall, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+
+        // Find connected components
+        int count = Imgproc.connectedComponentsWithStats(matSmall, labels, stats, centroids,
+                8, CvType.CV_32S);
+
+        // Collect largest blobs (label 0 is background)
+        blobs.clear();
+        areas.clear();
+        for (int i = 1; i < count; i++) {
+            stats.get(i, 0, statsRow);
+            int area = statsRow[Imgproc.CC_STAT_AREA];
+            if (area < minBlobArea)
+                continue;
+
+            // Insert sorted by area
+            int index = 0;
+            while (index < areas.size() && areas.get(index) >= area)
+                index++;
+            if (index >= maxBlobs)
+                continue;
+            areas.add(index, area);
+            blobs.add(index, new Rect(statsRow[Imgproc.CC_STAT_LEFT],
+                    statsRow[Imgproc.CC_STAT_TOP],
+                    statsRow[Imgproc.CC_STAT_WIDTH],
+                    statsRow[Imgproc.CC_STAT_HEIGHT]));
+            if (blobs.size() > maxBlobs) {
+                blobs.remove(maxBlobs);
+                areas.remove(maxBlobs);
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * @return unmodifiable list of blobs found by the last detect() call
+     */
+    public List<Rect> getBlobs() {
+        return Collections.unmodifiableList(blobs);
+    }
+
+    /**
+     * @return width of the detection mask
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the detection mask
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+/**
+ * Single byte range of the HTTP Range header (bytes=start-end, bytes=start- or bytes=-suffix)
+ */
+public class ByteRange {
+    private static final String UNIT_PREFIX = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the Range header. Multiple ranges and malformed headers are ignored
+     * (whole file is sent)
+     * @param header value of the Range header (can be null)
+     * @param fileLength length of the file
+     * @return byte range, null to send the whole file. Check isSatisfiable() before sending
+     */
+    public static ByteRange parse(String header, long fileLength) {
+        if (header == null || !header.startsWith(UNIT_PREFIX))
+            return null;
+        String[] bounds = header.substring(UNIT_PREFIX.length()).trim().split("-", -1);
+        // Multiple ranges are not supported (bounds are not plain numbers then)
+        if (bounds.length != 2)
+            return null;
+        try {
+            // Suffix range (last bytes of the file)
+            if (bounds[0].isEmpty()) {
+                if (!isDigits(bounds[1]))
+                    return null;
+                long suffix = Long.parseLong(bounds[1]);
+                if (suffix == 0 || fileLength == 0)
+                    return new ByteRange(fileLength, fileLength - 1);
+                return new ByteRange(Math.max(0, fileLength - suffix), fileLength - 1);
+            }
+
+            if (!isDigits(bounds[0]) || (!bounds[1].isEmpty() && !isDigits(bounds[1])))
+                return null;
+            long start = Long.parseLong(bounds[0]);
+            long end = fileLength - 1;
+            if (!bounds[1].isEmpty()) {
+                long lastByte = Long.parseLong(bounds[1]);
+                if (lastByte < start)
+                    return null;
+                end = Math.min(end, lastByte);
+            }
+            return new ByteRange(start, end);
+        } catch (NumberFormatException e) {
+            // Too big numbers
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the range starts within the file, otherwise 416 should be sent
+     */
+    public boolean isSatisfiable() {
+        return start <= end;
+    }
+
+    /**
+     * @return first byte of the range
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return last byte of the range (inclusive)
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return number of bytes in the range
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @param fileLength length of the file
+     * @return value of the Content-Range header
+     */
+    public String getContentRange(long fileLength) {
+        return isSatisfiable() ? "bytes " + start + "-" + end + "/" + fileLength
+                : "bytes */" + fileLength;
+    }
+
+    /**
+     * @param value string to check
+     * @return true if the string is a non-empty sequence of decimal digits
+     */
+    private static boolean isDigits(String value) {
+        if (value.isEmpty())
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_get_time_base_q;
+import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class exports a time range across one or more recordings as a single file
+ * by copying packets (no decoding or encoding). Cuts are aligned to video keyframes
+ */
+public class ClipExporter {
+    private static final String TAG = ClipExporter.class.getName();
+
+    private static final int maxQueuedExports = 2;
+
+    private static final ThreadPoolExecutor exportExecutor = new ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueuedExports),
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "ClipExporter"));
+
+    /**
+     * Runs export on the export thread
+     * @param runnable export task
+     * @throws RejectedExecutionException if too many exports are waiting
+     */
+    public static void execute(Runnable runnable) {
+        exportExecutor.execute(runnable);
+    }
+
+    /**
+     * Finds finished recordings that overlap the time range
+     * @param directory directory of the camera recordings
+     * @param from start of the range
+     * @param to end of the range
+     * @return recordings sorted by start time
+     */
+    public static List<File> findRecordings(File directory, Date from, Date to) {
+        SimpleDateFormat fileNameFormat =
+                new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss", Locale.US);
+        List<File> recordings = new ArrayList<>();
+        File[] files = StorageTiers.listFiles(directory);
+        if (files == null)
+            return recordings;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!(name.endsWith(".mp4") || name.endsWith(".mkv"))
+                    || Recorder.isRecordingFile(file))
+                continue;
+            try {
+                Date start = fileNameFormat.parse(name.substring(0, name.length() - 4));
+                if (start != null && start.getTime() <= to.getTime()
+                        && file.lastModified() >= from.getTime())
+                    recordings.add(file);
+            } catch (Exception ignored) { }
+        }
+        Collections.sort(recordings, (o1, o2) ->
+                Long.compare(getStartTime(o1, fileNameFormat), getStartTime(o2, fileNameFormat)));
+        return recordings;
+    }
+
+    /**
+     * Copies packets of the recordings into the output stream. Export stops at the first
+     * recording that can't continue the output (different frame size, codec parameters
+     * or rotation), the rest of the range is left out
+     * @param recordings recordings sorted by start time
+     * @param from start of the range (cut at the first keyframe after it)
+     * @param to end of the range
+     * @param outputStream output (can be non-seekable)
+     */
+    public static void export(List<File> recordings, Date from, Date to,
+                              OutputStream outputStream) throws Exception {
+        SimpleDateFormat fileNameFormat =
+                new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss", Locale.US);
+        AVRational timeBaseQ = av_get_time_base_q();
+        FFmpegFrameRecorder fFmpegFrameRecorder = null;
+        // Recorder keeps using input context of the first recording (to map and rescale
+        // packets), so the first grabber stays open until the recorder is released
+        FFmpegFrameGrabber referenceGrabber = null;
+        AVFormatContext referenceContext = null;
+        long outputOffsetUs = 0;
+        int exported = 0;
+
+        try {
+            for (File file : recordings) {
+                long fileStartTime = getStartTime(file, fileNameFormat);
+                long cutStartUs = Math.max(0, from.getTime() - fileStartTime) * 1000;
+                long cutEndUs = (to.getTime() - fileStartTime) * 1000;
+
+                FFmpegFrameGrabber grabber = RecordingCipher.createGrabber(file);
+                try {
+                    grabber.start();
+                    AVFormatContext formatContext = grabber.getFormatContext();
+
+                    // Initialize output with codec parameters of the first recording
+                    if (fFmpegFrameRecorder == null) {
+                        fFmpegFrameRecorder = new FFmpegFrameRecorder(outputStream,
+                                grabber.getImageWidth(), grabber.getImageHeight(),
+                                grabber.getAudioChannels());
+                        if (file.getName().endsWith(".mkv"))
+                            fFmpegFrameRecorder.setFormat("matroska");
+                        else {
+                            // Fragmented MP4 can be written to non-seekable output
+                            fFmpegFrameRecorder.setFormat("mp4");
+                            fFmpegFrameRecorder.setOption("movflags",
+                                    "frag_keyframe+empty_moov+default_base_moof");
+                        }
+                        // Keep rotation metadata of the recording
+                        String rotate = grabber.getVideoMetadata("rotate");
+                        if (rotate != null)
+                            fFmpegFrameRecorder.setVideoMetadata("rotate", rotate);
+                        fFmpegFrameRecorder.start(formatContext);
+                        referenceGrabber = grabber;
+                        referenceContext = formatContext;
+                    } else if (!isCompatible(referenceGrabber, grabber)) {
+                        // Packets can't be copied into the same output, split range here
+                        Log.w(TAG, "Recording " + file.getName()
+                                + " doesn't match the previous ones, export stopped");
+                        break;
+                    }
+
+                    // Copy packets
+                    long firstPacketUs = -1;
+                    long lastPacketUs = 0;
+                    AVPacket packet;
+                    while ((packet = grabber.grabPacket()) != null) {
+                        if (packet.pts() == AV_NOPTS_VALUE)
+                            continue;
+                        AVStream stream = formatContext.streams(packet.stream_index());
+                        int referenceIndex = findStream(referenceContext,
+                                stream.codecpar().codec_type());
+                        if (referenceIndex < 0)
+                            continue;
+                        long packetUs = av_rescale_q(packet.pts(), stream.time_base(), timeBaseQ);
+
+                        // Start from the first video keyframe in range
+                        if (firstPacketUs < 0) {
+                            if (stream.codecpar().codec_type() != AVMEDIA_TYPE_VIDEO
+                                    || (packet.flags() & AV_PKT_FLAG_KEY) == 0
+                                    || packetUs < cutStartUs)
+                                continue;
+                            firstPacketUs = packetUs;
+                        }
+                        if (packetUs > cutEndUs)
+                            break;
+                        if (packetUs < firstPacketUs)
+                            continue;
+
+                        // Shift timestamps to continue after the previous recording
+                        long shift = av_rescale_q(outputOffsetUs - firstPacketUs,
+                                timeBaseQ, stream.time_base());
+                        packet.pts(packet.pts() + shift);
+                        if (packet.dts() != AV_NOPTS_VALUE)
+                            packet.dts(packet.dts() + shift);
+                        lastPacketUs = Math.max(lastPacketUs, packetUs - firstPacketUs
+                                + av_rescale_q(packet.duration(), stream.time_base(), timeBaseQ));
+
+                        // Recorder rescales from the stream of the first recording, so convert
+                        // from the stream of this recording first
+                        AVRational referenceTimeBase =
+                                referenceContext.streams(referenceIndex).time_base();
+                        packet.pts(av_rescale_q(packet.pts(), stream.time_base(),
+                                referenceTimeBase));
+                        if (packet.dts() != AV_NOPTS_VALUE)
+                            packet.dts(av_rescale_q(packet.dts(), stream.time_base(),
+                                    referenceTimeBase));
+                        packet.duration(av_rescale_q(packet.duration(), stream.time_base(),
+                                referenceTimeBase));
+                        packet.stream_index(referenceIndex);
+
+                        fFmpegFrameRecorder.recordPacket(packet);
+                    }
+                    outputOffsetUs += lastPacketUs;
+                    exported++;
+                } finally {
+                    if (grabber != referenceGrabber) {
+                        grabber.stop();
+                        grabber.release();
+                    }
+                }
+            }
+        } finally {
+            try {
+                if (fFmpegFrameRecorder != null) {
+                    fFmpegFrameRecorder.stop();
+                    fFmpegFrameRecorder.release();
+                }
+            } finally {
+                if (referenceGrabber != null) {
+                    referenceGrabber.stop();
+                    referenceGrabber.release();
+                }
+            }
+        }
+        Log.i(TAG, "Exported " + exported + " recordings: "
+                + Arrays.toString(recordings.subList(0, exported).toArray()));
+    }
+
+    /**
+     * @param reference grabber of the first recording
+     * @param grabber grabber of the next recording
+     * @return true if packets of the next recording can be copied into the output
+     * started with the first one (same frame size, rotation and codec parameters)
+     */
+    private static boolean isCompatible(FFmpegFrameGrabber reference, FFmpegFrameGrabber grabber) {
+        if (reference.getImageWidth() != grabber.getImageWidth()
+                || reference.getImageHeight() != grabber.getImageHeight())
+            return false;
+        String referenceRotate = reference.getVideoMetadata("rotate");
+        String rotate = grabber.getVideoMetadata("rotate");
+        if (referenceRotate == null ? rotate != null : !referenceRotate.equals(rotate))
+            return false;
+
+        // Every stream that is copied must have the same codec and extradata (SPS/PPS)
+        AVFormatContext referenceContext = reference.getFormatContext();
+        AVFormatContext formatContext = grabber.getFormatContext();
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            AVCodecParameters parameters = formatContext.streams(i).codecpar();
+            int referenceIndex = findStream(referenceContext, parameters.codec_type());
+            if (referenceIndex < 0)
+                continue;
+            AVCodecParameters referenceParameters =
+                    referenceContext.streams(referenceIndex).codecpar();
+            if (parameters.codec_id() != referenceParameters.codec_id()
+                    || !Arrays.equals(getExtradata(parameters),
+                    getExtradata(referenceParameters)))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] getExtradata(AVCodecParameters parameters) {
+        byte[] extradata = new byte[Math.max(0, parameters.extradata_size())];
+        if (extradata.length > 0 && parameters.extradata() != null)
+            parameters.extradata().get(extradata);
+        return extradata;
+    }
+
+    /**
+     * @param formatContext input format context
+     * @param codecType AVMEDIA_TYPE_...
+     * @return index of the first stream of the type or -1
+     */
+    private static int findStream(AVFormatContext formatContext, int codecType) {
+        for (int i = 0; i < formatContext.nb_streams(); i++)
+            if (formatContext.streams(i).codecpar().codec_type() == codecType)
+                return i;
+        return -1;
+    }
+
+    private static long getStartTime(File file, SimpleDateFormat fileNameFormat) {
+        try {
+            String name = file.getName();
+            Date date = fileNameFormat.parse(name.substring(0, name.length() - 4));
+            if (date != null)
+                return date.getTime();
+        } catch (Exception ignored) { }
+        return file.lastModified();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class runs video encoding of all cameras on a shared pool of encoder threads,
+ * so camera threads only convert frames and hand them over
+ */
+public class EncoderPool {
+    private static final String TAG = EncoderPool.class.getName();
+
+    private static final int encoderThreads = 2;
+
+    private static final ExecutorService executorService = Executors.newFixedThreadPool(
+            encoderThreads, runnable -> new Thread(runnable, "Encoder"));
+
+    /**
+     * Creates executor that runs tasks on the encoder threads one at a time in order
+     * of submission (each recorder needs its own one)
+     * @return serial executor
+     */
+    public static Executor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    private static class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        @Override
+        public synchronized void execute(Runnable runnable) {
+            tasks.add(runnable);
+            if (!running) {
+                running = true;
+                executorService.execute(this::runTasks);
+            }
+        }
+
+        /**
+         * Runs queued tasks until the queue is empty
+         */
+        private void runTasks() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error running encoder task!", e);
+                }
+            }
+        }
+    }
+}
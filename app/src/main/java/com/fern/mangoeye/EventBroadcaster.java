@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class pushes events (recordings, motion, storage, deletes) to the web clients
+ * as Server-Sent Events. Every event is encoded once for all clients.
+ * Clients that don't read fast enough lose events instead of buffering them
+ */
+public class EventBroadcaster {
+    private static final int maxPendingEvents = 32;
+
+    private static final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts event stream. Calls on the server thread
+     * @param request server request
+     * @param response server response (stays open until the client disconnects)
+     */
+    public static void subscribe(AsyncHttpServerRequest request,
+                                 AsyncHttpServerResponse response) {
+        response.code(200);
+        response.setContentType("text/event-stream");
+        response.getHeaders().set("Cache-Control", "no-cache");
+
+        Subscriber subscriber = new Subscriber(response);
+        subscribers.add(subscriber);
+        response.setClosedCallback(ex -> {
+            subscribers.remove(subscriber);
+            PerformanceMetrics.setGauge("events_subscribers", subscribers.size());
+        });
+        PerformanceMetrics.setGauge("events_subscribers", subscribers.size());
+
+        // Send headers and reconnection delay
+        subscriber.enqueue("retry: 5000\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if there is at least one client
+     */
+    public static boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Sends event to all clients. Can be called from any thread
+     * @param event name of the event
+     * @param data event data
+     */
+    public static void broadcast(String event, JSONObject data) {
+        if (subscribers.isEmpty())
+            return;
+
+        // Encode once
+        byte[] bytes = ("event: " + event + "\ndata: " + data.toString() + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+        AsyncServer.getDefault().post(() -> {
+            for (Subscriber subscriber : subscribers)
+                subscriber.enqueue(bytes);
+        });
+    }
+
+    /**
+     * Event queue of one client. Used only on the server thread
+     */
+    private static class Subscriber {
+        private final AsyncHttpServerResponse response;
+        private final ArrayDeque<byte[]> pendingEvents = new ArrayDeque<>();
+        private ByteBufferList currentEvent;
+
+        Subscriber(AsyncHttpServerResponse response) {
+            this.response = response;
+            response.setWriteableCallback(this::drain);
+        }
+
+        /**
+         * Adds event to the queue or drops it if the client is too slow
+         * @param bytes encoded event
+         */
+        void enqueue(byte[] bytes) {
+            if (pendingEvents.size() >= maxPendingEvents) {
+                PerformanceMetrics.incrementCounter("events_dropped");
+                return;
+            }
+            pendingEvents.add(bytes);
+            drain();
+        }
+
+        /**
+         * Writes queued events until the socket stops accepting data
+         */
+        private void drain() {
+            while (true) {
+                if (currentEvent == null) {
+                    byte[] bytes = pendingEvents.poll();
+                    if (bytes == null)
+                        return;
+
+                    // Copy, because written buffers may be reused by the library
+                    ByteBuffer byteBuffer = ByteBufferList.obtain(bytes.length);
+                    byteBuffer.put(bytes).flip();
+                    currentEvent = new ByteBufferList(byteBuffer);
+                }
+                response.write(currentEvent);
+                if (currentEvent.remaining() > 0)
+                    return;
+                currentEvent = null;
+            }
+        }
+    }
+}
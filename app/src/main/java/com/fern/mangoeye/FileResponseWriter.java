@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.util.Log;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class sends a file (or a decrypted range of it) as the response body.
+ * Chunks are read on a separate small reader pool, one chunk per task, and written on the
+ * server thread when the socket accepts data. The server thread never reads the storage,
+ * a slow client doesn't hold a reader between chunks and large downloads don't take
+ * workers or queue slots of RequestExecutor from other requests
+ */
+public class FileResponseWriter {
+    private static final String TAG = FileResponseWriter.class.getName();
+
+    private static final int chunkSize = 64 * 1024;
+    private static final int maxPendingChunks = 4;
+    private static final long retryDelay = 50;
+    private static final int readerThreads = 2;
+    private static final int maxQueuedReads = 32;
+
+    private static final ThreadPoolExecutor readExecutor = new ThreadPoolExecutor(
+            readerThreads, readerThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxQueuedReads),
+            runnable -> new Thread(runnable, "FileReader"));
+
+    private final AsyncHttpServerResponse response;
+    private final InputStream inputStream;
+
+    // Accessed only by the running read task
+    private long bytesLeft;
+    private byte[] readBuffer;
+
+    // Accessed only on the server thread
+    private final ArrayDeque<ByteBufferList> pendingChunks = new ArrayDeque<>();
+    private boolean reading, finished, closed, ended;
+
+    private FileResponseWriter(AsyncHttpServerResponse response, InputStream inputStream,
+                               long length) {
+        this.response = response;
+        this.inputStream = inputStream;
+        this.bytesLeft = length;
+    }
+
+    /**
+     * Starts sending the body. Calls on the server thread after code and headers are set
+     * @param response server response
+     * @param inputStream stream positioned at the start of the body (closed when done)
+     * @param length body length
+     */
+    public static void send(AsyncHttpServerResponse response, InputStream inputStream,
+                            long length) {
+        FileResponseWriter fileResponseWriter =
+                new FileResponseWriter(response, inputStream, length);
+        response.getHeaders().set("Content-Length", String.valueOf(length));
+        response.setWriteableCallback(fileResponseWriter::drain);
+        response.setClosedCallback(ex -> fileResponseWriter.onClosed());
+        if (length <= 0) {
+            fileResponseWriter.finished = true;
+            BackgroundTasks.execute(fileResponseWriter::closeInput);
+            fileResponseWriter.drain();
+        } else
+            fileResponseWriter.readNext();
+    }
+
+    /**
+     * Submits read of the next chunk if there is room in the queue. Server thread
+     */
+    private void readNext() {
+        if (reading || finished || closed || pendingChunks.size() >= maxPendingChunks)
+            return;
+        reading = true;
+        try {
+            readExecutor.execute(this::read);
+        } catch (RejectedExecutionException e) {
+            // Readers are busy. Try again later
+            response.getServer().postDelayed(() -> {
+                reading = false;
+                readNext();
+            }, retryDelay);
+        }
+    }
+
+    /**
+     * Reads one chunk and passes it to the server thread. Reader thread.
+     * Chunk is read into a buffer of the ByteBufferList pool, which is handed over to
+     * the server thread and returned to the pool after it's written to the socket
+     */
+    private void read() {
+        ByteBuffer byteBuffer = null;
+        boolean last = false;
+        try {
+            int length = (int) Math.min(chunkSize, bytesLeft);
+            byteBuffer = ByteBufferList.obtain(length);
+            if (byteBuffer.hasArray()) {
+                readFully(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                        length);
+                byteBuffer.position(byteBuffer.position() + length);
+            } else {
+                // Pool can return buffers without array, copy through one reused array
+                if (readBuffer == null)
+                    readBuffer = new byte[chunkSize];
+                readFully(readBuffer, 0, length);
+                byteBuffer.put(readBuffer, 0, length);
+            }
+            byteBuffer.flip();
+            bytesLeft -= length;
+            last = bytesLeft <= 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading file!", e);
+            ByteBufferList.reclaim(byteBuffer);
+            byteBuffer = null;
+        }
+        if (byteBuffer == null || last)
+            closeInput();
+
+        ByteBuffer chunk = byteBuffer;
+        boolean lastChunk = last;
+        response.getServer().post(() -> {
+            reading = false;
+            if (chunk == null) {
+                // Body can't be completed. Close connection, so client sees an error
+                finished = true;
+                ended = true;
+                response.getSocket().close();
+                return;
+            }
+            if (closed) {
+                ByteBufferList.reclaim(chunk);
+                if (!lastChunk)
+                    BackgroundTasks.execute(this::closeInput);
+                return;
+            }
+            pendingChunks.add(new ByteBufferList(chunk));
+            finished = lastChunk;
+            drain();
+        });
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws Exception {
+        int position = 0;
+        while (position < length) {
+            int count = inputStream.read(bytes, offset + position, length - position);
+            if (count < 0)
+                throw new EOFException("File is shorter than expected");
+            position += count;
+        }
+    }
+
+    /**
+     * Writes queued chunks until the socket stops accepting data. Server thread
+     */
+    private void drain() {
+        if (closed || ended)
+            return;
+        while (!pendingChunks.isEmpty()) {
+            ByteBufferList chunk = pendingChunks.peek();
+            response.write(chunk);
+            if (chunk.remaining() > 0)
+                return;
+            pendingChunks.poll();
+        }
+        if (finished) {
+            ended = true;
+            response.end();
+        } else
+            readNext();
+    }
+
+    /**
+     * Stops reading when the client disconnects. Server thread
+     */
+    private void onClosed() {
+        closed = true;
+        for (ByteBufferList chunk : pendingChunks)
+            chunk.recycle();
+        pendingChunks.clear();
+        if (!reading && !finished)
+            BackgroundTasks.execute(this::closeInput);
+    }
+
+    private void closeInput() {
+        try {
+            inputStream.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing file!", e);
+        }
+    }
+}
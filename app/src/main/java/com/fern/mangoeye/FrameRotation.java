@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.view.Surface;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * This class converts screen rotation into clockwise rotation of the camera frames
+ * and rotates frames in a single pass
+ */
+public class FrameRotation {
+    /**
+     * @param rotation screen rotation (Surface.ROTATION_...)
+     * @param cameraID camera index (CameraBridgeViewBase.CAMERA_ID_...)
+     * @return clockwise rotation (0, 90, 180 or 270) that makes camera frame upright
+     */
+    public static int getDegrees(int rotation, int cameraID) {
+        boolean front = cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT;
+        if (rotation == Surface.ROTATION_0)
+            return front ? 270 : 90;
+        else if (rotation == Surface.ROTATION_180)
+            return front ? 90 : 270;
+        else if (rotation == Surface.ROTATION_270)
+            return 180;
+        return 0;
+    }
+
+    /**
+     * Rotates frame clockwise
+     * @param src input frame
+     * @param dst output frame (must not be src)
+     * @param degrees 0, 90, 180 or 270
+     * @return rotated frame (src if no rotation needed)
+     */
+    public static Mat rotate(Mat src, Mat dst, int degrees) {
+        if (degrees == 90)
+            Core.rotate(src, dst, Core.ROTATE_90_CLOCKWISE);
+        else if (degrees == 180)
+            Core.rotate(src, dst, Core.ROTATE_180);
+        else if (degrees == 270)
+            Core.rotate(src, dst, Core.ROTATE_90_COUNTERCLOCKWISE);
+        else
+            return src;
+        return dst;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * This class captures camera frames without any view (no display surface required)
+ * and passes them to the CvCameraViewListener2 on a dedicated camera thread
+ */
+@SuppressWarnings("deprecation")
+public class HeadlessCamera implements Camera.PreviewCallback {
+    private final String TAG = this.getClass().getName();
+
+    private static final int maxFrameWidth = 1280;
+    private static final int maxFrameHeight = 720;
+    private static final int surfaceTextureName = 10;
+    private static final int idleMinFps = 5000;
+
+    private final CameraBridgeViewBase.CvCameraViewListener2 listener;
+    private final int cameraID;
+
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private Camera camera;
+    private SurfaceTexture surfaceTexture;
+    private HeadlessCameraFrame cameraFrame;
+    private Mat yuvFrame;
+    private int frameWidth, frameHeight;
+    private int[] fullFpsRange, idleFpsRange;
+    private boolean idle;
+
+    /**
+     * This class captures camera frames into the listener
+     * @param cameraID camera index (CameraBridgeViewBase.CAMERA_ID_...)
+     * @param listener frames listener
+     */
+    HeadlessCamera(int cameraID, CameraBridgeViewBase.CvCameraViewListener2 listener) {
+        this.cameraID = cameraID;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens camera and starts preview on the camera thread
+     */
+    public void start() {
+        cameraThread = new HandlerThread("CameraThread", Process.THREAD_PRIORITY_DISPLAY);
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+        cameraHandler.post(this::openCamera);
+    }
+
+    /**
+     * Stops preview and releases camera
+     */
+    public void stop() {
+        if (cameraHandler == null)
+            return;
+        cameraHandler.post(this::releaseCamera);
+        cameraThread.quitSafely();
+        try {
+            cameraThread.join();
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing camera thread!", e);
+        }
+        cameraThread = null;
+        cameraHandler = null;
+    }
+
+    /**
+     * Turns on or off flashlight
+     * @param state set to true to enable flashlight or false to disable it
+     */
+    public void setFlashlight(boolean state) {
+        if (camera == null)
+            return;
+        try {
+            Camera.Parameters parameters = camera.getParameters();
+            List<String> flashModes = parameters.getSupportedFlashModes();
+            String flashMode = state ? Camera.Parameters.FLASH_MODE_TORCH
+                    : Camera.Parameters.FLASH_MODE_OFF;
+            if (flashModes != null && flashModes.contains(flashMode)) {
+                parameters.setFlashMode(flashMode);
+                camera.setParameters(parameters);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting flashlight!", e);
+        }
+    }
+
+    /**
+     * Lowers camera frame rate while the detector is idle and restores it when motion is
+     * suspected. Calls on the camera thread
+     * @param idle true to capture at the lowest supported frame rate
+     */
+    public void setIdle(boolean idle) {
+        if (idle == this.idle || camera == null || idleFpsRange == null)
+            return;
+        this.idle = idle;
+        try {
+            int[] fpsRange = idle ? idleFpsRange : fullFpsRange;
+            Camera.Parameters parameters = camera.getParameters();
+            parameters.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+            camera.setParameters(parameters);
+            Log.i(TAG, "Camera fps range set to "
+                    + fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] + "-"
+                    + fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting camera fps range!", e);
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        try {
+            yuvFrame.put(0, 0, data);
+            cameraFrame.reset();
+            listener.onCameraFrame(cameraFrame);
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing frame!", e);
+        }
+
+        // Return buffer to the camera
+        if (this.camera != null)
+            this.camera.addCallbackBuffer(data);
+    }
+
+    /**
+     * Opens camera, selects preview size and starts preview into the off-screen texture
+     */
+    private void openCamera() {
+        try {
+            Log.i(TAG, "Opening camera");
+            camera = Camera.open(findCameraIndex());
+
+            // Select preview size
+            Camera.Parameters parameters = camera.getParameters();
+            Camera.Size previewSize = null;
+            for (Camera.Size size : parameters.getSupportedPreviewSizes()) {
+                if (size.width <= maxFrameWidth && size.height <= maxFrameHeight
+                        && (previewSize == null
+                        || size.width * size.height > previewSize.width * previewSize.height))
+                    previewSize = size;
+            }
+            if (previewSize != null)
+                parameters.setPreviewSize(previewSize.width, previewSize.height);
+            parameters.setPreviewFormat(ImageFormat.NV21);
+
+            // Disable auto focus
+            List<String> focusModes = parameters.getSupportedFocusModes();
+            if (focusModes != null && focusModes.contains(Camera.Parameters.FOCUS_MODE_INFINITY))
+                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_INFINITY);
+            camera.setParameters(parameters);
+
+            // Allocate frame buffers
+            parameters = camera.getParameters();
+            selectFpsRanges(parameters);
+            frameWidth = parameters.getPreviewSize().width;
+            frameHeight = parameters.getPreviewSize().height;
+            int bufferSize = frameWidth * frameHeight
+                    * ImageFormat.getBitsPerPixel(parameters.getPreviewFormat()) / 8;
+            camera.addCallbackBuffer(new byte[bufferSize]);
+            camera.addCallbackBuffer(new byte[bufferSize]);
+            yuvFrame = new Mat(frameHeight + (frameHeight / 2), frameWidth, CvType.CV_8UC1);
+            cameraFrame = new HeadlessCameraFrame(yuvFrame, frameWidth, frameHeight);
+
+            // Start preview into the off-screen texture
+            surfaceTexture = new SurfaceTexture(surfaceTextureName);
+            camera.setPreviewTexture(surfaceTexture);
+            camera.setPreviewCallbackWithBuffer(this);
+            camera.startPreview();
+
+            Log.i(TAG, "Camera started with frame size " + frameWidth + "x" + frameHeight);
+            listener.onCameraViewStarted(frameWidth, frameHeight);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening camera!", e);
+            releaseCamera();
+        }
+    }
+
+    /**
+     * Remembers current fps range and finds the range with the lowest frame rate
+     * for idle mode (null if there is no lower range)
+     * @param parameters camera parameters
+     */
+    private void selectFpsRanges(Camera.Parameters parameters) {
+        fullFpsRange = new int[2];
+        parameters.getPreviewFpsRange(fullFpsRange);
+        idleFpsRange = null;
+        idle = false;
+        List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        if (fpsRanges == null)
+            return;
+        for (int[] fpsRange : fpsRanges) {
+            int maxFps = fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if (maxFps >= idleMinFps
+                    && maxFps < fullFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    && (idleFpsRange == null
+                    || maxFps < idleFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]))
+                idleFpsRange = fpsRange;
+        }
+    }
+
+    /**
+     * Stops preview and releases camera and buffers
+     */
+    private void releaseCamera() {
+        if (camera != null) {
+            Log.i(TAG, "Releasing camera");
+            camera.stopPreview();
+            camera.setPreviewCallbackWithBuffer(null);
+            camera.release();
+            camera = null;
+            listener.onCameraViewStopped();
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        if (cameraFrame != null) {
+            cameraFrame.release();
+            cameraFrame = null;
+        }
+        if (yuvFrame != null) {
+            yuvFrame.release();
+            yuvFrame = null;
+        }
+    }
+
+    /**
+     * @return index of the camera selected in settings
+     */
+    private int findCameraIndex() {
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraID == CameraBridgeViewBase.CAMERA_ID_BACK
+                    && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK)
+                return i;
+            if (cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT
+                    && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
+                return i;
+        }
+        return 0;
+    }
+
+    /**
+     * NV21 camera frame. Converts to RGBA only once and only if requested
+     */
+    static class HeadlessCameraFrame implements CameraBridgeViewBase.CvCameraViewFrame {
+        private final Mat yuvFrame;
+        private final Mat grayFrame;
+        private final Mat rgbaFrame;
+        private boolean rgbaConverted;
+
+        HeadlessCameraFrame(Mat yuvFrame, int width, int height) {
+            this.yuvFrame = yuvFrame;
+            this.grayFrame = yuvFrame.submat(0, height, 0, width);
+            this.rgbaFrame = new Mat();
+        }
+
+        void reset() {
+            rgbaConverted = false;
+        }
+
+        @Override
+        public Mat gray() {
+            return grayFrame;
+        }
+
+        /**
+         * @return NV21 frame (Y plane, then interleaved VU plane at half resolution)
+         */
+        Mat yuv() {
+            return yuvFrame;
+        }
+
+        @Override
+        public Mat rgba() {
+            if (!rgbaConverted) {
+                Imgproc.cvtColor(yuvFrame, rgbaFrame, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+                rgbaConverted = true;
+            }
+            return rgbaFrame;
+        }
+
+        public void release() {
+            grayFrame.release();
+            rgbaFrame.release();
+        }
+    }
+}
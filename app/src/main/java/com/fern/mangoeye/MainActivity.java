@@ -22,23 +22,29 @@
 package com.fern.mangoeye;
 
 import android.Manifest;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
-import android.view.WindowManager;
+import android.widget.ImageView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
-import org.bytedeco.javacpp.Loader;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
 
 import java.io.File;
 
@@ -55,7 +61,66 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
 
     public static File settingsFile;
 
-    private OpenCVHandler openCVHandler;
+    private ImageView previewImageView;
+    private MangoEyeService mangoEyeService;
+    private boolean serviceBound;
+    private boolean activityResumed;
+
+    private final Bitmap[] previewBitmaps = new Bitmap[2];
+    private int previewBitmapIndex;
+    private volatile boolean previewPending;
+
+    /**
+     * Converts preview frames from the service into bitmaps and shows them.
+     * Two bitmaps are used so the one on the screen is never overwritten
+     */
+    private final OpenCVHandler.PreviewListener previewListener =
+            new OpenCVHandler.PreviewListener() {
+        @Override
+        public boolean isReadyForFrame() {
+            // Skip frame if previous one is not shown yet
+            return !previewPending;
+        }
+
+        @Override
+        public void onPreviewFrame(Mat frame) {
+            Bitmap bitmap = previewBitmaps[previewBitmapIndex];
+            if (bitmap == null || bitmap.getWidth() != frame.cols()
+                    || bitmap.getHeight() != frame.rows()) {
+                bitmap = Bitmap.createBitmap(frame.cols(), frame.rows(),
+                        Bitmap.Config.ARGB_8888);
+                previewBitmaps[previewBitmapIndex] = bitmap;
+            }
+            Utils.matToBitmap(frame, bitmap);
+            previewBitmapIndex = 1 - previewBitmapIndex;
+
+            previewPending = true;
+            final Bitmap previewBitmap = bitmap;
+            runOnUiThread(() -> {
+                previewImageView.setImageBitmap(previewBitmap);
+                previewPending = false;
+            });
+        }
+    };
+
+    /**
+     * Attaches to the running service as a viewer
+     */
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            Log.i(TAG, "Attached to the service");
+            mangoEyeService = ((MangoEyeService.LocalBinder) iBinder).getService();
+            if (activityResumed)
+                mangoEyeService.setPreviewListener(previewListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            Log.i(TAG, "Detached from the service");
+            mangoEyeService = null;
+        }
+    };
 
     /**
      * Checks if OpenCV library is loaded and asks for permissions
@@ -70,8 +135,8 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
                 if (hasPermissions(MainActivity.this, PERMISSIONS)) {
                     Log.i(TAG, "Permissions granted");
 
-                    // Initialize OpenCVHandler class
-                    openCVHandler.initView();
+                    // Start capturing service
+                    startCapturing();
                 } else {
                     // Grant permissions
                     Log.w(TAG, "Not all permissions granted");
@@ -94,8 +159,8 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // Enable screen always on
-        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        // Start loading OpenCV library in background while the layout and settings are loading
+        NativeLibraries.loadOpenCV();
 
         // Open layout
         setContentView(R.layout.activity_main);
@@ -107,39 +172,36 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
 
         // Load and parse settings
         if (!SettingsContainer.settingsLoaded) {
-            settingsFile = new File(getBaseContext().getExternalFilesDir(null),
-                    "settings.json");
+            long settingsStartTime = SystemClock.elapsedRealtime();
+            settingsFile = SettingsHandler.getSettingsFile(getBaseContext());
             new SettingsHandler(settingsFile, this).readSettings();
+            PerformanceMetrics.setGauge("startup_settings_ms",
+                    SystemClock.elapsedRealtime() - settingsStartTime);
         }
 
         // Connect layout long click
         findViewById(R.id.mainLayout).setOnLongClickListener(this);
 
-        // Initialize OpenCVHandler class
-        openCVHandler = new OpenCVHandler(findViewById(R.id.javaCameraView), this, new Recorder(this));
-
-        // Load FFMPEG libraries
-        Log.i(TAG, "Loading ffmpeg libraries");
-        Loader.load(org.bytedeco.ffmpeg.global.avutil.class);
-        Loader.load(org.bytedeco.ffmpeg.global.avcodec.class);
-        Loader.load(org.bytedeco.ffmpeg.global.avformat.class);
-
-        // Load OpenCV library and init layout
-        if (!OpenCVLoader.initDebug()) {
-            Log.e(TAG, "Internal OpenCV library not found." +
-                    " Using OpenCV Manager for initialization");
-            OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_4_0,
-                    this, baseLoaderCallback);
-        } else {
-            Log.i(TAG, "OpenCV library found inside package. Using it!");
-            baseLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
-        }
-
-        // Start web server
-        if (!WebServer.isServerListening()) {
-            WebServer.setServerPort(SettingsContainer.serverPort);
-            WebServer.startServer(this);
-        }
+        // Preview view
+        previewImageView = findViewById(R.id.previewImageView);
+
+        // Wait for OpenCV library without blocking main thread
+        BackgroundTasks.execute(() -> {
+            boolean openCVLoaded = NativeLibraries.awaitOpenCV();
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed())
+                    return;
+                if (!openCVLoaded) {
+                    Log.e(TAG, "Internal OpenCV library not found." +
+                            " Using OpenCV Manager for initialization");
+                    OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_4_0,
+                            this, baseLoaderCallback);
+                } else {
+                    Log.i(TAG, "OpenCV library found inside package. Using it!");
+                    baseLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
+                }
+            });
+        });
     }
 
     // Activity long press
@@ -155,28 +217,43 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
     @Override
     protected void onResume() {
         super.onResume();
+        activityResumed = true;
 
-        // Enable OpenCV view
-        if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().enableView();
+        // Attach preview
+        if (mangoEyeService != null)
+            mangoEyeService.setPreviewListener(previewListener);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        activityResumed = false;
 
-        // Disable OpenCV view
-        if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().disableView();
+        // Detach preview. Capturing continues in the service
+        if (mangoEyeService != null)
+            mangoEyeService.setPreviewListener(null);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        // Disable OpenCV view
-        if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().disableView();
+        // Detach from the service
+        if (mangoEyeService != null)
+            mangoEyeService.setPreviewListener(null);
+        if (serviceBound)
+            unbindService(serviceConnection);
+        serviceBound = false;
+        mangoEyeService = null;
+    }
+
+    /**
+     * Starts capturing service (if not started) and attaches to it
+     */
+    private void startCapturing() {
+        MangoEyeService.start(this);
+        serviceBound = bindService(new Intent(this, MangoEyeService.class),
+                serviceConnection, 0);
     }
 
     /**
@@ -211,8 +288,8 @@ public class MainActivity extends AppCompatActivity implements View.OnLongClickL
         if (hasPermissions(this, PERMISSIONS)) {
             Log.i(TAG, "Permissions granted");
 
-            // Initialize OpenCVHandler class
-            openCVHandler.initView();
+            // Start capturing service
+            startCapturing();
         }
         else {
             Toast.makeText(this, R.string.permissions_not_granted,
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.Camera;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import org.opencv.android.CameraBridgeViewBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This foreground service runs capture, detection, recording and the web server
+ * without any activity (screen can be turned off). MainActivity only attaches to it as a viewer
+ */
+public class MangoEyeService extends Service {
+    private final String TAG = this.getClass().getName();
+
+    public static final String ACTION_STOP = "com.fern.mangoeye.action.STOP";
+
+    private static final String NOTIFICATION_CHANNEL_ID = "mango_eye_service";
+    private static final int NOTIFICATION_ID = 1;
+
+    // Pipelines are started and stopped on the background threads one at a time
+    // (also across service instances, when the service is restarted with new settings)
+    private static final Object pipelineLock = new Object();
+    private static final AtomicInteger pendingTeardowns = new AtomicInteger();
+
+    private final IBinder binder = new LocalBinder();
+
+    private final List<OpenCVHandler> openCVHandlers = new ArrayList<>();
+    private PowerManager.WakeLock wakeLock;
+    private volatile boolean capturing;
+    private int generation;
+
+    /**
+     * Binder for the viewer activity
+     */
+    public class LocalBinder extends Binder {
+        MangoEyeService getService() {
+            return MangoEyeService.this;
+        }
+    }
+
+    /**
+     * Starts the service in foreground
+     * @param context Android context
+     */
+    public static void start(Context context) {
+        Intent intent = new Intent(context, MangoEyeService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            context.startForegroundService(intent);
+        else
+            context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(TAG, "Starting service");
+
+        // Load recording key and resume uploads of finished recordings
+        RecordingCipher.init(getApplicationContext());
+        StorageTiers.start(getApplicationContext());
+        UploadQueue.start(getApplicationContext());
+
+        startCapturing();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Stop from notification. The viewer may still be bound and keep the service alive,
+        // so capturing is stopped here. The service is destroyed when the viewer unbinds
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopCapturing();
+            stopForeground(true);
+            stopSelf();
+        }
+
+        // Started again while the viewer kept the stopped service alive
+        else if (!capturing)
+            startCapturing();
+
+        // Settings and permissions are checked by MainActivity, so don't restart without it
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "Stopping service");
+        stopCapturing();
+        System.gc();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Attaches or detaches the viewer (to the main camera)
+     * @param previewListener PreviewListener or null if there is no viewer
+     */
+    public synchronized void setPreviewListener(OpenCVHandler.PreviewListener previewListener) {
+        if (!openCVHandlers.isEmpty())
+            openCVHandlers.get(0).setPreviewListener(previewListener);
+    }
+
+    /**
+     * Shows notification and starts web server, performance governor and capturing
+     * in background (after the previous pipeline is stopped)
+     */
+    private synchronized void startCapturing() {
+        capturing = true;
+        int startGeneration = ++generation;
+
+        // Show notification and keep the service alive
+        startForeground(NOTIFICATION_ID, createNotification());
+
+        // Keep CPU running while the screen is off
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    "MangoEye:" + TAG);
+        }
+        wakeLock.acquire();
+
+        // Start web server in parallel with the camera
+        BackgroundTasks.execute(() -> {
+            synchronized (pipelineLock) {
+                awaitTeardowns();
+                if (!isCurrentGeneration(startGeneration))
+                    return;
+                long startTime = SystemClock.elapsedRealtime();
+                if (!WebServer.isServerListening()) {
+                    WebServer.setServerPort(SettingsContainer.serverPort);
+                    WebServer.startServer(getApplicationContext());
+                }
+                PerformanceMetrics.setGauge("startup_web_server_ms",
+                        SystemClock.elapsedRealtime() - startTime);
+                PerformanceMetrics.markStartupPhase("web_server_started");
+
+                // Adapt load to temperature and battery
+                PerformanceGovernor.start(getApplicationContext());
+            }
+        });
+
+        // Start capturing as soon as OpenCV is loaded
+        createOpenCVHandlers();
+        BackgroundTasks.execute(() -> {
+            if (!NativeLibraries.awaitOpenCV()) {
+                Log.e(TAG, "Internal OpenCV library not found!");
+                stopSelf();
+                return;
+            }
+            synchronized (pipelineLock) {
+                awaitTeardowns();
+
+                // Capturing could be stopped (or restarted with new handlers) meanwhile
+                List<OpenCVHandler> handlers;
+                synchronized (this) {
+                    if (!isCurrentGeneration(startGeneration))
+                        return;
+                    handlers = new ArrayList<>(openCVHandlers);
+                }
+                for (OpenCVHandler openCVHandler : handlers)
+                    openCVHandler.start();
+                if (!handlers.isEmpty())
+                    PerformanceMetrics.markStartupPhase("camera_started");
+            }
+        });
+    }
+
+    private synchronized boolean isCurrentGeneration(int startGeneration) {
+        return capturing && generation == startGeneration;
+    }
+
+    /**
+     * Waits until previous pipelines are stopped. Must be called with pipelineLock
+     */
+    private static void awaitTeardowns() {
+        while (pendingTeardowns.get() > 0) {
+            try {
+                pipelineLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops capturing (this also stops recording), performance governor and web server
+     * in background. Stopping the camera waits for the encoder and writes the trailer
+     * to the storage, so it must not run on the main thread
+     */
+    private synchronized void stopCapturing() {
+        if (!capturing)
+            return;
+        capturing = false;
+        generation++;
+
+        // Detach viewer now, stop the pipeline in background
+        List<OpenCVHandler> handlers = new ArrayList<>(openCVHandlers);
+        openCVHandlers.clear();
+        for (OpenCVHandler openCVHandler : handlers)
+            openCVHandler.setPreviewListener(null);
+        PowerManager.WakeLock heldWakeLock = wakeLock;
+        pendingTeardowns.incrementAndGet();
+        BackgroundTasks.execute(() -> {
+            synchronized (pipelineLock) {
+                try {
+                    // Stop capturing
+                    for (OpenCVHandler openCVHandler : handlers)
+                        openCVHandler.stop();
+
+                    // Stop adapting load
+                    PerformanceGovernor.stop();
+
+                    // Stop web server
+                    if (WebServer.isServerListening())
+                        WebServer.stopServer();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error stopping capturing!", e);
+                } finally {
+                    pendingTeardowns.decrementAndGet();
+                    pipelineLock.notifyAll();
+
+                    // Release wake lock (kept until the recording is finished)
+                    if (heldWakeLock != null && heldWakeLock.isHeld())
+                        heldWakeLock.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates pipeline of the camera from settings and, if multi-camera mode is enabled,
+     * of the camera facing the other side. The main camera stores files in the root
+     * directory and records audio. Other cameras store files in cameras/name
+     */
+    private void createOpenCVHandlers() {
+        Context context = getApplicationContext();
+        File rootDirectory = new File(SettingsContainer.externalFilesDir);
+        int mainCameraID = SettingsContainer.cameraID;
+
+        // Main camera is served from the root URLs, so its name in the web API is empty
+        openCVHandlers.add(new OpenCVHandler(context,
+                new Recorder(context, rootDirectory, "", true),
+                mainCameraID, "", rootDirectory, true));
+
+        // Camera1 can open several cameras only on devices that support concurrent streams.
+        // If it's not supported, opening the second camera fails and only the main one works
+        if (SettingsContainer.multiCamera && Camera.getNumberOfCameras() > 1) {
+            int cameraID = mainCameraID == CameraBridgeViewBase.CAMERA_ID_FRONT ?
+                    CameraBridgeViewBase.CAMERA_ID_BACK : CameraBridgeViewBase.CAMERA_ID_FRONT;
+            String cameraName = getCameraName(cameraID);
+            File directory = WebServer.getCameraDirectory(cameraName);
+            openCVHandlers.add(new OpenCVHandler(context,
+                    new Recorder(context, directory, cameraName, false),
+                    cameraID, cameraName, directory, false));
+        }
+    }
+
+    /**
+     * @param cameraID camera index (CameraBridgeViewBase.CAMERA_ID_...)
+     * @return name of the camera for the file paths and the web API
+     */
+    private static String getCameraName(int cameraID) {
+        if (cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT)
+            return "front";
+        if (cameraID == CameraBridgeViewBase.CAMERA_ID_BACK)
+            return "back";
+        return "main";
+    }
+
+    /**
+     * @return notification for the foreground service
+     */
+    private Notification createNotification() {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    NOTIFICATION_CHANNEL_ID, getString(R.string.app_name),
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+
+        int pendingIntentFlags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ?
+                PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent openIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), pendingIntentFlags);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0,
+                new Intent(this, MangoEyeService.class).setAction(ACTION_STOP),
+                pendingIntentFlags);
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.service_running))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentIntent(openIntent)
+                .addAction(0, getString(R.string.stop), stopIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class accumulates downscaled motion masks into hourly heatmaps,
+ * saves them to the disk and renders them as PNG images.
+ * Heatmap keeps aspect ratio of the masks. If the frame size changes (rotation),
+ * a separate heatmap of the new size is started
+ */
+public class MotionHeatmap {
+    private static final String TAG = MotionHeatmap.class.getName();
+
+    private static final int heatmapMaxSide = 160;
+    private static final long saveInterval = 60000;
+    private static final String directoryName = "heatmaps";
+    private static final String fileExtension = ".heatmap";
+
+    private static final ExecutorService saveExecutor = Executors.newSingleThreadExecutor();
+
+    private final SimpleDateFormat hourFormat =
+            new SimpleDateFormat("dd_MM_yyyy_HH", Locale.US);
+    private final Mat matSmall = new Mat();
+    private final Mat matAccumulator = new Mat();
+    private final Size heatmapSize = new Size();
+    private final File directory;
+
+    private String currentHour = "";
+    private long lastSaveTime;
+    private boolean changed;
+
+    /**
+     * @param rootDirectory directory of the camera recordings
+     */
+    MotionHeatmap(File rootDirectory) {
+        this.directory = getDirectory(rootDirectory);
+    }
+
+    /**
+     * Adds motion mask to the heatmap of the current hour
+     * @param mask thresholded CV_8UC1 motion mask
+     */
+    public void accumulate(Mat mask) {
+        long currentTime = System.currentTimeMillis();
+        String hour = hourFormat.format(currentTime);
+
+        // Heatmap size with the aspect ratio of the mask
+        double scale = (double) heatmapMaxSide / Math.max(mask.cols(), mask.rows());
+        int width = (int) Math.max(1, Math.round(mask.cols() * scale));
+        int height = (int) Math.max(1, Math.round(mask.rows() * scale));
+
+        // Save previous hour (or previous size) and start new one
+        if (!hour.equals(currentHour)
+                || width != matAccumulator.cols() || height != matAccumulator.rows()) {
+            if (changed)
+                save();
+            currentHour = hour;
+            heatmapSize.width = width;
+            heatmapSize.height = height;
+            matAccumulator.create(height, width, CvType.CV_32FC1);
+            loadInto(getFile(directory, currentHour, width, height), matAccumulator);
+            lastSaveTime = currentTime;
+        }
+
+        // Accumulate downscaled mask
+        Imgproc.resize(mask, matSmall, heatmapSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.accumulate(matSmall, matAccumulator);
+        changed = true;
+
+        // Save periodically
+        if (currentTime - lastSaveTime >= saveInterval) {
+            save();
+            lastSaveTime = currentTime;
+        }
+    }
+
+    /**
+     * Saves current heatmap in background
+     */
+    public void save() {
+        if (currentHour.isEmpty() || !changed)
+            return;
+        int width = matAccumulator.cols();
+        int height = matAccumulator.rows();
+        float[] data = new float[width * height];
+        matAccumulator.get(0, 0, data);
+        File file = getFile(directory, currentHour, width, height);
+        saveExecutor.execute(() -> write(file, width, height, data));
+        changed = false;
+    }
+
+    /**
+     * Renders heatmap of the hour (dd_MM_yyyy_HH) or of the day (dd_MM_yyyy) as PNG.
+     * Only heatmaps of the same size as the latest one are summed
+     * @param rootDirectory directory of the camera recordings
+     * @param key hour or day
+     * @return PNG image bytes or null if there is no data
+     */
+    public static byte[] renderPNG(File rootDirectory, String key) {
+        Mat matHeatmap = new Mat();
+        Mat matColor = new Mat();
+        MatOfByte matOfByte = new MatOfByte();
+        try {
+            boolean found = false;
+
+            // Sum all hours with that prefix, starting from the latest one
+            File[] files = getDirectory(rootDirectory).listFiles((dir, name) ->
+                    name.startsWith(key) && name.endsWith(fileExtension));
+            if (files != null) {
+                Arrays.sort(files, (o1, o2) -> Long.compare(o2.lastModified(), o1.lastModified()));
+                for (File file : files)
+                    found |= addFile(file, matHeatmap);
+            }
+            if (!found)
+                return null;
+
+            // Normalize and colorize
+            Core.normalize(matHeatmap, matHeatmap, 0, 255, Core.NORM_MINMAX);
+            matHeatmap.convertTo(matColor, CvType.CV_8UC1);
+            Imgproc.applyColorMap(matColor, matColor, Imgproc.COLORMAP_JET);
+
+            Imgcodecs.imencode(".png", matColor, matOfByte);
+            return matOfByte.toArray();
+        } finally {
+            // Release native memory now, requests may come faster than finalizers run
+            matHeatmap.release();
+            matColor.release();
+            matOfByte.release();
+        }
+    }
+
+    private static File getDirectory(File rootDirectory) {
+        return new File(rootDirectory, directoryName);
+    }
+
+    private static File getFile(File directory, String hour, int width, int height) {
+        return new File(directory, hour + "_" + width + "x" + height + fileExtension);
+    }
+
+    /**
+     * Loads saved heatmap file into the mat (or clears mat if there is no file)
+     */
+    private static void loadInto(File file, Mat mat) {
+        mat.setTo(new Scalar(0));
+        if (file.exists())
+            addFile(file, mat);
+    }
+
+    /**
+     * Adds heatmap file to the mat. Empty mat is created with the size of the file
+     * @return true if file was read (false if it has different size)
+     */
+    private static boolean addFile(File file, Mat mat) {
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int width = inputStream.readInt();
+            int height = inputStream.readInt();
+            if (mat.empty()) {
+                mat.create(height, width, CvType.CV_32FC1);
+                mat.setTo(new Scalar(0));
+            } else if (width != mat.cols() || height != mat.rows())
+                return false;
+            float[] data = new float[width * height];
+            for (int i = 0; i < data.length; i++)
+                data[i] = inputStream.readFloat();
+
+            Mat matFile = new Mat(height, width, CvType.CV_32FC1);
+            matFile.put(0, 0, data);
+            Core.add(mat, matFile, mat);
+            matFile.release();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading heatmap " + file.getName(), e);
+        }
+        return false;
+    }
+
+    private static void write(File file, int width, int height, float[] data) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create heatmaps directory");
+            return;
+        }
+        try (DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            outputStream.writeInt(width);
+            outputStream.writeInt(height);
+            for (float value : data)
+                outputStream.writeFloat(value);
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving heatmap " + file.getName(), e);
+        }
+    }
+}
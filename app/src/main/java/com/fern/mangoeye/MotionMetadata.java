@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.opencv.core.Rect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class writes and reads motion metadata sidecar file of the recording.
+ *
+ * File format: header ("MEM2", mask width and height as shorts) and blocks of up to
+ * blockFrames frames. Each block stores columns one after another:
+ * frame count, time deltas in ms, motion scores (0-255), trigger reasons,
+ * blob counts, blob boxes, track counts and tracks (ID and box).
+ * All integers except header are unsigned varints
+ */
+public class MotionMetadata {
+    private static final String TAG = MotionMetadata.class.getName();
+
+    public static final String FILE_EXTENSION = ".motion";
+
+    public static final int REASON_MOTION = 1;
+    public static final int REASON_LIGHTING_CHANGE = 1 << 1;
+    public static final int REASON_RECORDING_STARTED = 1 << 2;
+
+    private static final byte[] MAGIC = {'M', 'E', 'M', '2'};
+    private static final int blockFrames = 128;
+    private static final int maxBlobs = 8;
+    private static final int maxTracks = 8;
+
+    private final DataOutputStream outputStream;
+
+    // Columns of the current block
+    private final int[] timeDeltas = new int[blockFrames];
+    private final int[] scores = new int[blockFrames];
+    private final int[] reasons = new int[blockFrames];
+    private final int[] blobCounts = new int[blockFrames];
+    private final int[] blobBoxes = new int[blockFrames * maxBlobs * 4];
+    private final int[] trackCounts = new int[blockFrames];
+    private final int[] trackBoxes = new int[blockFrames * maxTracks * 5];
+    private int frames, boxes, trackValues;
+    private long lastTime;
+
+    /**
+     * Creates new sidecar file and writes header
+     * @param file sidecar file
+     * @param maskWidth width of the mask the blob boxes refer to
+     * @param maskHeight height of the mask the blob boxes refer to
+     */
+    MotionMetadata(File file, int maskWidth, int maskHeight) throws IOException {
+        outputStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 8192));
+        outputStream.write(MAGIC);
+        outputStream.writeShort(maskWidth);
+        outputStream.writeShort(maskHeight);
+    }
+
+    /**
+     * @param videoFile recording file
+     * @return sidecar file of the recording
+     */
+    public static File getFile(File videoFile) {
+        return new File(videoFile.getAbsolutePath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Adds frame to the current block. Writes the block when it's full
+     * @param time time from the start of the recording in ms
+     * @param score share of changed pixels (0-255)
+     * @param reason REASON_... flags
+     * @param blobs list of blob boxes (only first maxBlobs will be written)
+     * @param tracks list of visible tracks (only first maxTracks will be written)
+     */
+    public void addFrame(long time, int score, int reason, List<Rect> blobs,
+                         List<MotionTracker.Track> tracks) {
+        timeDeltas[frames] = (int) Math.max(0, time - lastTime);
+        lastTime = Math.max(time, lastTime);
+        scores[frames] = Math.max(0, Math.min(255, score));
+        reasons[frames] = reason;
+
+        int blobCount = blobs == null ? 0 : Math.min(blobs.size(), maxBlobs);
+        blobCounts[frames] = blobCount;
+        for (int i = 0; i < blobCount; i++) {
+            Rect rect = blobs.get(i);
+            blobBoxes[boxes++] = rect.x;
+            blobBoxes[boxes++] = rect.y;
+            blobBoxes[boxes++] = rect.width;
+            blobBoxes[boxes++] = rect.height;
+        }
+
+        int trackCount = tracks == null ? 0 : Math.min(tracks.size(), maxTracks);
+        trackCounts[frames] = trackCount;
+        for (int i = 0; i < trackCount; i++) {
+            MotionTracker.Track track = tracks.get(i);
+            Rect rect = track.getBox();
+            trackBoxes[trackValues++] = track.getID();
+            trackBoxes[trackValues++] = Math.max(0, rect.x);
+            trackBoxes[trackValues++] = Math.max(0, rect.y);
+            trackBoxes[trackValues++] = Math.max(0, rect.width);
+            trackBoxes[trackValues++] = Math.max(0, rect.height);
+        }
+
+        frames++;
+        if (frames >= blockFrames)
+            writeBlock();
+    }
+
+    /**
+     * Writes last block and closes the file
+     */
+    public void close() {
+        try {
+            writeBlock();
+            outputStream.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing motion metadata file!", e);
+        }
+    }
+
+    /**
+     * Writes current block (all columns) to the file
+     */
+    private void writeBlock() {
+        if (frames == 0)
+            return;
+        try {
+            writeVarInt(outputStream, frames);
+            for (int i = 0; i < frames; i++)
+                writeVarInt(outputStream, timeDeltas[i]);
+            for (int i = 0; i < frames; i++)
+                outputStream.write(scores[i]);
+            for (int i = 0; i < frames; i++)
+                writeVarInt(outputStream, reasons[i]);
+            for (int i = 0; i < frames; i++)
+                outputStream.write(blobCounts[i]);
+            for (int i = 0; i < boxes; i++)
+                writeVarInt(outputStream, blobBoxes[i]);
+            for (int i = 0; i < frames; i++)
+                outputStream.write(trackCounts[i]);
+            for (int i = 0; i < trackValues; i++)
+                writeVarInt(outputStream, trackBoxes[i]);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing motion metadata!", e);
+        }
+        frames = 0;
+        boxes = 0;
+        trackValues = 0;
+    }
+
+    /**
+     * Reads sidecar file to JSON object with columns
+     * ("width", "height", "time", "score", "reason", "blobs", "tracks") and trajectories
+     * ("trajectories": track ID -> array of [time, center x, center y])
+     * @param file sidecar file
+     * @return JSON object
+     */
+    public static JSONObject readAsJSON(File file) throws Exception {
+        JSONArray timeArray = new JSONArray();
+        JSONArray scoreArray = new JSONArray();
+        JSONArray reasonArray = new JSONArray();
+        JSONArray blobsArray = new JSONArray();
+        JSONArray tracksArray = new JSONArray();
+        JSONObject trajectories = new JSONObject();
+        JSONObject jsonObject = new JSONObject();
+
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 8192))) {
+            // Read header
+            byte[] magic = new byte[MAGIC.length];
+            inputStream.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Wrong motion metadata file");
+            jsonObject.put("width", inputStream.readUnsignedShort());
+            jsonObject.put("height", inputStream.readUnsignedShort());
+
+            // Read blocks
+            long time = 0;
+            int[] blockBlobCounts = new int[blockFrames];
+            int[] blockTrackCounts = new int[blockFrames];
+            while (true) {
+                int blockSize;
+                try {
+                    blockSize = readVarInt(inputStream);
+                } catch (EOFException ignored) {
+                    break;
+                }
+                if (blockSize > blockFrames)
+                    throw new IOException("Wrong block size");
+
+                // Read all columns of the block
+                long[] blockTimes = new long[blockSize];
+                int[] blockScores = new int[blockSize];
+                int[] blockReasons = new int[blockSize];
+                JSONArray[] blockBlobs = new JSONArray[blockSize];
+                JSONArray[] blockTracks = new JSONArray[blockSize];
+                for (int i = 0; i < blockSize; i++) {
+                    time += readVarInt(inputStream);
+                    blockTimes[i] = time;
+                }
+                for (int i = 0; i < blockSize; i++)
+                    blockScores[i] = inputStream.readUnsignedByte();
+                for (int i = 0; i < blockSize; i++)
+                    blockReasons[i] = readVarInt(inputStream);
+                for (int i = 0; i < blockSize; i++)
+                    blockBlobCounts[i] = inputStream.readUnsignedByte();
+                for (int i = 0; i < blockSize; i++) {
+                    blockBlobs[i] = new JSONArray();
+                    for (int j = 0; j < blockBlobCounts[i] * 4; j++)
+                        blockBlobs[i].put(readVarInt(inputStream));
+                }
+                for (int i = 0; i < blockSize; i++)
+                    blockTrackCounts[i] = inputStream.readUnsignedByte();
+                for (int i = 0; i < blockSize; i++) {
+                    blockTracks[i] = new JSONArray();
+                    for (int j = 0; j < blockTrackCounts[i] * 5; j++)
+                        blockTracks[i].put(readVarInt(inputStream));
+                }
+
+                // Append complete block
+                for (int i = 0; i < blockSize; i++) {
+                    timeArray.put(blockTimes[i]);
+                    scoreArray.put(blockScores[i]);
+                    reasonArray.put(blockReasons[i]);
+                    blobsArray.put(blockBlobs[i]);
+                    tracksArray.put(blockTracks[i]);
+
+                    // Add track centers to the trajectories
+                    for (int j = 0; j < blockTracks[i].length(); j += 5) {
+                        String id = String.valueOf(blockTracks[i].getInt(j));
+                        JSONArray trajectory = trajectories.optJSONArray(id);
+                        if (trajectory == null) {
+                            trajectory = new JSONArray();
+                            trajectories.put(id, trajectory);
+                        }
+                        JSONArray point = new JSONArray();
+                        point.put(blockTimes[i]);
+                        point.put(blockTracks[i].getInt(j + 1) + blockTracks[i].getInt(j + 3) / 2);
+                        point.put(blockTracks[i].getInt(j + 2) + blockTracks[i].getInt(j + 4) / 2);
+                        trajectory.put(point);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // Recording was interrupted in the middle of the block. Return what was read
+            Log.w(TAG, "Motion metadata file is truncated: " + file.getName());
+        }
+
+        jsonObject.put("time", timeArray);
+        jsonObject.put("score", scoreArray);
+        jsonObject.put("reason", reasonArray);
+        jsonObject.put("blobs", blobsArray);
+        jsonObject.put("tracks", tracksArray);
+        jsonObject.put("trajectories", trajectories);
+        return jsonObject;
+    }
+
+    private static void writeVarInt(OutputStream outputStream, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+
+    private static int readVarInt(InputStream inputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = inputStream.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Wrong varint");
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class tracks motion blobs between frames and assigns stable IDs to them.
+ * Blobs are matched to the predicted track boxes greedily (IoU first, then centroid
+ * distance). Track centroids are optionally smoothed with a constant velocity Kalman filter.
+ * All coordinates are in the detection resolution of BlobDetector
+ */
+public class MotionTracker {
+    private static final int maxTracks = 16;
+    private static final int maxMissedFrames = 5;
+    private static final double maxTimeStep = 1.0;
+    private static final double sizeSmoothing = 0.5;
+    private static final double velocitySmoothing = 0.5;
+    private static final double minAreaRatio = 0.2;
+
+    // Kalman filter noise (pixels of the detection mask)
+    private static final double measurementNoise = 4;
+    private static final double accelerationNoise = 400;
+    private static final double initialVelocityVariance = 1000;
+
+    private final List<Track> tracks = new ArrayList<>();
+    private final List<Track> visibleTracks = new ArrayList<>();
+    private final List<Track> freeTracks = new ArrayList<>();
+    private final boolean[] blobMatched = new boolean[maxTracks];
+    private int minFrames;
+    private boolean kalman;
+    private int nextID = 1;
+    private long lastTime;
+
+    /**
+     * Tracked object
+     */
+    public static class Track {
+        private final Axis x = new Axis(), y = new Axis();
+        private int id;
+        private double width, height;
+        private int hits, missed;
+        private boolean matched;
+
+        /**
+         * @return ID of the track (unique within the tracker)
+         */
+        public int getID() {
+            return id;
+        }
+
+        /**
+         * @return number of frames the track was matched to a blob
+         */
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * @return smoothed bounding box of the track
+         */
+        public Rect getBox() {
+            return new Rect((int) Math.round(x.position - width / 2),
+                    (int) Math.round(y.position - height / 2),
+                    (int) Math.round(width), (int) Math.round(height));
+        }
+
+        /**
+         * @return smoothed centroid X
+         */
+        public int getCenterX() {
+            return (int) Math.round(x.position);
+        }
+
+        /**
+         * @return smoothed centroid Y
+         */
+        public int getCenterY() {
+            return (int) Math.round(y.position);
+        }
+
+        private void start(int id, Rect blob) {
+            this.id = id;
+            x.start(blob.x + blob.width / 2.0);
+            y.start(blob.y + blob.height / 2.0);
+            width = blob.width;
+            height = blob.height;
+            hits = 1;
+            missed = 0;
+            matched = true;
+        }
+
+        private void update(Rect blob, boolean kalman, double dt) {
+            x.update(blob.x + blob.width / 2.0, kalman, dt);
+            y.update(blob.y + blob.height / 2.0, kalman, dt);
+            width += (blob.width - width) * sizeSmoothing;
+            height += (blob.height - height) * sizeSmoothing;
+            hits++;
+            missed = 0;
+            matched = true;
+        }
+    }
+
+    /**
+     * Position and velocity of the track along one axis. Without Kalman filter
+     * position follows the measurements and velocity is averaged over frames
+     */
+    private static class Axis {
+        private double position, velocity;
+        private double p00, p01, p11;
+
+        private void start(double measurement) {
+            position = measurement;
+            velocity = 0;
+            p00 = measurementNoise;
+            p01 = 0;
+            p11 = initialVelocityVariance;
+        }
+
+        private void predict(boolean kalman, double dt) {
+            position += velocity * dt;
+            if (!kalman)
+                return;
+            double dt2 = dt * dt;
+            p00 += dt * (2 * p01 + dt * p11) + accelerationNoise * dt2 * dt2 / 4;
+            p01 += dt * p11 + accelerationNoise * dt2 * dt / 2;
+            p11 += accelerationNoise * dt2;
+        }
+
+        private void update(double measurement, boolean kalman, double dt) {
+            double residual = measurement - position;
+            if (!kalman) {
+                // Position was already moved by the old velocity in predict()
+                if (dt > 0)
+                    velocity += (residual / dt) * velocitySmoothing;
+                position = measurement;
+                return;
+            }
+            double s = p00 + measurementNoise;
+            double k0 = p00 / s, k1 = p01 / s;
+            position += k0 * residual;
+            velocity += k1 * residual;
+            p11 -= k1 * p01;
+            p01 -= k0 * p01;
+            p00 -= k0 * p00;
+        }
+    }
+
+    /**
+     * @param minFrames number of matched frames before the track is reported
+     * @param kalman true to smooth track centroids with Kalman filter
+     */
+    MotionTracker(int minFrames, boolean kalman) {
+        setParameters(minFrames, kalman);
+    }
+
+    /**
+     * Changes parameters of the tracker (live settings). Existing tracks are kept
+     * @param minFrames number of matched frames before the track is reported
+     * @param kalman true to smooth track centroids with Kalman filter
+     */
+    public void setParameters(int minFrames, boolean kalman) {
+        this.minFrames = Math.max(1, minFrames);
+        this.kalman = kalman;
+    }
+
+    /**
+     * Matches blobs of the current frame to the tracks, starts new tracks for unmatched
+     * blobs and removes tracks that were missed for too many frames
+     * @param blobs blob boxes of the current frame (see BlobDetector.detect())
+     * @param currentTime time of the frame in milliseconds
+     * @return confirmed tracks matched in this frame. The list is reused by the next call
+     */
+    public List<Track> update(List<Rect> blobs, long currentTime) {
+        double dt = lastTime == 0 ? 0 : Math.min(maxTimeStep, (currentTime - lastTime) / 1000.0);
+        lastTime = currentTime;
+
+        // Move tracks to the predicted positions
+        for (Track track : tracks) {
+            track.x.predict(kalman, dt);
+            track.y.predict(kalman, dt);
+            track.matched = false;
+        }
+
+        // Match best pairs first
+        int blobCount = Math.min(blobs.size(), blobMatched.length);
+        for (int i = 0; i < blobCount; i++)
+            blobMatched[i] = false;
+        while (true) {
+            double bestScore = 0;
+            int bestBlob = -1;
+            Track bestTrack = null;
+            for (Track track : tracks) {
+                if (track.matched)
+                    continue;
+                for (int i = 0; i < blobCount; i++) {
+                    if (blobMatched[i])
+                        continue;
+                    double score = getMatchScore(track, blobs.get(i));
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestBlob = i;
+                        bestTrack = track;
+                    }
+                }
+            }
+            if (bestTrack == null)
+                break;
+            bestTrack.update(blobs.get(bestBlob), kalman, dt);
+            blobMatched[bestBlob] = true;
+        }
+
+        // Remove lost tracks
+        for (int i = tracks.size() - 1; i >= 0; i--) {
+            Track track = tracks.get(i);
+            if (!track.matched && ++track.missed > maxMissedFrames)
+                freeTracks.add(tracks.remove(i));
+        }
+
+        // Start new tracks for unmatched blobs (blobs are sorted by area)
+        for (int i = 0; i < blobCount && tracks.size() < maxTracks; i++) {
+            if (blobMatched[i])
+                continue;
+            Track track = freeTracks.isEmpty() ? new Track()
+                    : freeTracks.remove(freeTracks.size() - 1);
+            track.start(nextID++, blobs.get(i));
+            tracks.add(track);
+        }
+
+        // Collect confirmed visible tracks
+        visibleTracks.clear();
+        for (Track track : tracks)
+            if (track.matched && track.hits >= minFrames)
+                visibleTracks.add(track);
+        return visibleTracks;
+    }
+
+    /**
+     * @return unmodifiable list of tracks returned by the last update() call
+     */
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(visibleTracks);
+    }
+
+    /**
+     * @return true if at least one track lived for minFrames and is visible now
+     */
+    public boolean hasConfirmedTrack() {
+        return !visibleTracks.isEmpty();
+    }
+
+    /**
+     * Removes all tracks (IDs keep increasing)
+     */
+    public void reset() {
+        freeTracks.addAll(tracks);
+        tracks.clear();
+        visibleTracks.clear();
+        lastTime = 0;
+    }
+
+    /**
+     * @return 1..2 for overlapping boxes (IoU), 0..1 for close centroids, 0 for no match
+     */
+    private static double getMatchScore(Track track, Rect blob) {
+        // Small noise blobs must not take over the track of a large object (and vice versa)
+        double trackArea = Math.max(track.width * track.height, 1);
+        double blobArea = Math.max(blob.area(), 1);
+        if (Math.min(trackArea, blobArea) < Math.max(trackArea, blobArea) * minAreaRatio)
+            return 0;
+
+        double left = track.x.position - track.width / 2;
+        double top = track.y.position - track.height / 2;
+        double overlapWidth = Math.min(left + track.width, blob.x + blob.width)
+                - Math.max(left, blob.x);
+        double overlapHeight = Math.min(top + track.height, blob.y + blob.height)
+                - Math.max(top, blob.y);
+        if (overlapWidth > 0 && overlapHeight > 0) {
+            double intersection = overlapWidth * overlapHeight;
+            double union = trackArea + blobArea - intersection;
+            return 1 + intersection / Math.max(union, 1);
+        }
+
+        // Allow jumps up to the track size (fast objects at low detection rate)
+        double gate = Math.max(Math.max(track.width, track.height), 2);
+        double dx = blob.x + blob.width / 2.0 - track.x.position;
+        double dy = blob.y + blob.height / 2.0 - track.y.position;
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        return Math.max(0, 1 - distance / gate);
+    }
+}
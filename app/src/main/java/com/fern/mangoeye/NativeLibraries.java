@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.bytedeco.javacpp.Loader;
+import org.opencv.android.OpenCVLoader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads native libraries (OpenCV and FFmpeg) in background threads,
+ * so they can be loaded concurrently and off the main thread
+ */
+public class NativeLibraries {
+    private static final String TAG = NativeLibraries.class.getName();
+
+    private static final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private static Future<Boolean> openCVFuture;
+    private static Future<Boolean> ffmpegFuture;
+
+    /**
+     * Starts loading OpenCV library (if not started yet)
+     * @return Future with true if library loaded successfully
+     */
+    public static synchronized Future<Boolean> loadOpenCV() {
+        if (openCVFuture == null) {
+            openCVFuture = executorService.submit(() -> {
+                long startTime = SystemClock.elapsedRealtime();
+                boolean loaded = OpenCVLoader.initDebug();
+                PerformanceMetrics.setGauge("startup_opencv_load_ms",
+                        SystemClock.elapsedRealtime() - startTime);
+                PerformanceMetrics.markStartupPhase("opencv_loaded");
+                Log.i(TAG, "OpenCV loaded: " + loaded);
+                return loaded;
+            });
+        }
+        return openCVFuture;
+    }
+
+    /**
+     * Starts loading FFmpeg libraries with background priority (if not started yet)
+     * @return Future with true if libraries loaded successfully
+     */
+    public static synchronized Future<Boolean> loadFFmpeg() {
+        if (ffmpegFuture == null) {
+            ffmpegFuture = executorService.submit(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long startTime = SystemClock.elapsedRealtime();
+                try {
+                    Log.i(TAG, "Loading ffmpeg libraries");
+                    Loader.load(org.bytedeco.ffmpeg.global.avutil.class);
+                    Loader.load(org.bytedeco.ffmpeg.global.avcodec.class);
+                    Loader.load(org.bytedeco.ffmpeg.global.avformat.class);
+                } catch (Throwable e) {
+                    Log.e(TAG, "Error loading ffmpeg libraries!", e);
+                    return false;
+                } finally {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                }
+                PerformanceMetrics.setGauge("startup_ffmpeg_load_ms",
+                        SystemClock.elapsedRealtime() - startTime);
+                return true;
+            });
+        }
+        return ffmpegFuture;
+    }
+
+    /**
+     * Waits for OpenCV library (starts loading if needed)
+     * @return true if library loaded successfully
+     */
+    public static boolean awaitOpenCV() {
+        return await(loadOpenCV());
+    }
+
+    /**
+     * Waits for FFmpeg libraries (starts loading if needed)
+     * @return true if libraries loaded successfully
+     */
+    public static boolean awaitFFmpeg() {
+        return await(loadFFmpeg());
+    }
+
+    private static boolean await(Future<Boolean> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading native libraries!", e);
+        }
+        return false;
+    }
+}
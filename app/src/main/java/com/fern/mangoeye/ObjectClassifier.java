@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class classifies frames with motion (person / vehicle / animal) with an OpenCV dnn
+ * SSD detector (MobileNet-SSD layout: 300x300 input, [1, 1, N, 7] output).
+ * Inference runs on a single background thread shared by all cameras. Requests wait in a
+ * small queue and are dropped if the thread can't keep up. While no model is loaded
+ * (missing file, load error) the classifier doesn't block recording
+ */
+public class ObjectClassifier {
+    private static final String TAG = ObjectClassifier.class.getName();
+
+    public static final String CATEGORY_PERSON = "person";
+    public static final String CATEGORY_VEHICLE = "vehicle";
+    public static final String CATEGORY_ANIMAL = "animal";
+
+    private static final int inputSize = 300;
+    private static final double inputScale = 1 / 127.5;
+    private static final Scalar inputMean = new Scalar(127.5, 127.5, 127.5);
+    private static final int queueCapacity = 2;
+    private static final long matchTimeout = 3000;
+    private static final long loadRetryInterval = 30000;
+
+    // Labels of the VOC MobileNet-SSD model
+    private static final String[] defaultLabels = {"background", "aeroplane", "bicycle", "bird",
+            "boat", "bottle", "bus", "car", "cat", "chair", "cow", "diningtable", "dog", "horse",
+            "motorbike", "person", "pottedplant", "sheep", "sofa", "train", "tvmonitor"};
+    private static final Set<String> vehicleLabels = new HashSet<>(Arrays.asList("aeroplane",
+            "bicycle", "boat", "bus", "car", "motorbike", "train"));
+    private static final Set<String> animalLabels = new HashSet<>(Arrays.asList("bird", "cat",
+            "cow", "dog", "horse", "sheep"));
+
+    private static final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(queueCapacity);
+    private static Thread thread;
+    private static volatile boolean netLoaded;
+
+    // Downscaled NV21 frame: Y plane, then interleaved VU plane at half resolution
+    private final Mat matSmallYUV = new Mat(inputSize * 3 / 2, inputSize, CvType.CV_8UC1);
+    private final Mat matSmallY = matSmallYUV.rowRange(0, inputSize);
+    private final Mat matSmallVU = matSmallYUV.rowRange(inputSize, inputSize * 3 / 2)
+            .reshape(2);
+    private final Mat matSmall = new Mat();
+    private final Mat matRotated = new Mat();
+    private final Size smallYSize = new Size(inputSize, inputSize);
+    private final Size smallVUSize = new Size(inputSize / 2, inputSize / 2);
+    private final String metricsPrefix;
+    private volatile boolean pending;
+    private volatile long lastMatchTime;
+    private volatile String lastCategory = "";
+
+    private static class Request {
+        final ObjectClassifier classifier;
+        final Mat bgr;
+
+        Request(ObjectClassifier classifier, Mat bgr) {
+            this.classifier = classifier;
+            this.bgr = bgr;
+        }
+    }
+
+    /**
+     * @param metricsPrefix prefix of the metrics names (camera name)
+     */
+    ObjectClassifier(String metricsPrefix) {
+        this.metricsPrefix = metricsPrefix;
+
+        // Model is loaded before the first motion
+        startThread();
+    }
+
+    /**
+     * @return true if model is set in the settings
+     */
+    public static boolean isEnabled() {
+        return !SettingsContainer.getSnapshot().classifierModel.isEmpty();
+    }
+
+    /**
+     * @return true if model is loaded, previous frame of this camera is classified
+     * and queue has free space
+     */
+    public boolean isReady() {
+        return netLoaded && !pending && queue.remainingCapacity() > 0;
+    }
+
+    /**
+     * Downscales frame and adds it to the queue (dropped if the queue is full).
+     * Planes are downscaled before the color conversion, so full size frame is never
+     * converted
+     * @param yuv NV21 camera frame (camera orientation)
+     * @param degrees clockwise rotation that makes the frame upright
+     */
+    public void submit(Mat yuv, int degrees) {
+        int height = yuv.rows() * 2 / 3;
+        Mat y = yuv.rowRange(0, height);
+        Mat vu = yuv.rowRange(height, yuv.rows()).reshape(2);
+        Imgproc.resize(y, matSmallY, smallYSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.resize(vu, matSmallVU, smallVUSize, 0, 0, Imgproc.INTER_AREA);
+        y.release();
+        vu.release();
+        Imgproc.cvtColor(matSmallYUV, matSmall, Imgproc.COLOR_YUV2BGR_NV21);
+        Mat bgr = new Mat();
+        FrameRotation.rotate(matSmall, matRotated, degrees).copyTo(bgr);
+
+        pending = true;
+        if (!queue.offer(new Request(this, bgr))) {
+            pending = false;
+            bgr.release();
+            PerformanceMetrics.incrementCounter("classifier_dropped");
+        }
+        PerformanceMetrics.setGauge("classifier_queue", queue.size());
+    }
+
+    /**
+     * @param currentTime current time in milliseconds
+     * @return true if classifier is disabled, has no loaded model
+     * or found configured class recently
+     */
+    public boolean isTriggered(long currentTime) {
+        return !isEnabled() || !netLoaded || currentTime - lastMatchTime < matchTimeout;
+    }
+
+    /**
+     * @return category of the last matched object or empty string
+     */
+    public String getLastCategory() {
+        return lastCategory;
+    }
+
+    private static synchronized void startThread() {
+        if (thread != null)
+            return;
+        thread = new Thread(ObjectClassifier::run, "ObjectClassifier");
+        thread.start();
+    }
+
+    private static void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Net net = null;
+        String loadedModel = null;
+        String failedModel = null;
+        long failedTime = 0;
+        PerformanceMetrics.setGauge("classifier_loaded", 0);
+        while (true) {
+            // Wake up periodically to retry failed loads
+            Request request;
+            try {
+                request = queue.poll(loadRetryInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Load model when it's set or changed. Failed load is retried after an interval
+            SettingsSnapshot settings = SettingsContainer.getSnapshot();
+            String model = settings.classifierModel + "\n" + settings.classifierConfig;
+            long currentTime = System.currentTimeMillis();
+            if (!model.equals(loadedModel) && (!model.equals(failedModel)
+                    || currentTime - failedTime >= loadRetryInterval)) {
+                net = settings.classifierModel.isEmpty() ? null
+                        : loadNet(settings.classifierModel, settings.classifierConfig);
+                if (net != null || settings.classifierModel.isEmpty()) {
+                    loadedModel = model;
+                    failedModel = null;
+                } else {
+                    loadedModel = null;
+                    failedModel = model;
+                    failedTime = currentTime;
+                }
+                netLoaded = net != null;
+                PerformanceMetrics.setGauge("classifier_loaded", netLoaded ? 1 : 0);
+            }
+            if (request == null)
+                continue;
+
+            try {
+                if (net != null)
+                    request.classifier.classify(net, request.bgr, settings);
+            } catch (Exception e) {
+                Log.e(TAG, "Error classifying frame!", e);
+            } finally {
+                request.bgr.release();
+                request.classifier.pending = false;
+                PerformanceMetrics.setGauge("classifier_queue", queue.size());
+            }
+        }
+    }
+
+    private static Net loadNet(String model, String config) {
+        if (!new File(model).exists()) {
+            Log.e(TAG, "Model not found: " + model);
+            return null;
+        }
+        try {
+            Net net = config.isEmpty() ? Dnn.readNet(model) : Dnn.readNet(model, config);
+            net.setPreferableBackend(Dnn.DNN_BACKEND_OPENCV);
+            net.setPreferableTarget(Dnn.DNN_TARGET_CPU);
+            Log.i(TAG, "Loaded model " + model);
+            return net;
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading model " + model, e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs detector and remembers time of the last detection of the configured categories.
+     * Calls on the classifier thread
+     */
+    private void classify(Net net, Mat bgr, SettingsSnapshot settings) {
+        long startTime = System.currentTimeMillis();
+        Mat blob = Dnn.blobFromImage(bgr, inputScale, new Size(inputSize, inputSize),
+                inputMean, false, false);
+        net.setInput(blob);
+        Mat output = net.forward();
+        PerformanceMetrics.recordLatency(metricsPrefix + "classifier_inference_ms",
+                System.currentTimeMillis() - startTime);
+
+        // Output: [1, 1, N, 7] (image, label, confidence, box)
+        Mat detections = output.reshape(1, (int) (output.total() / 7));
+        List<String> categories = new ArrayList<>();
+        for (String category : settings.classifierCategories.split(","))
+            if (!category.trim().isEmpty())
+                categories.add(category.trim());
+        float[] row = new float[7];
+        for (int i = 0; i < detections.rows(); i++) {
+            detections.get(i, 0, row);
+            if (row[2] < settings.classifierConfidence)
+                continue;
+            String category = getCategory((int) row[1]);
+            if (category != null && categories.contains(category)) {
+                lastCategory = category;
+                lastMatchTime = System.currentTimeMillis();
+                PerformanceMetrics.incrementCounter(metricsPrefix + "classifier_matches");
+                break;
+            }
+        }
+        detections.release();
+        output.release();
+        blob.release();
+    }
+
+    private static String getCategory(int labelId) {
+        if (labelId < 0 || labelId >= defaultLabels.length)
+            return null;
+        String label = defaultLabels[labelId];
+        if (label.equals(CATEGORY_PERSON))
+            return CATEGORY_PERSON;
+        if (vehicleLabels.contains(label))
+            return CATEGORY_VEHICLE;
+        if (animalLabels.contains(label))
+            return CATEGORY_ANIMAL;
+        return null;
+    }
+}
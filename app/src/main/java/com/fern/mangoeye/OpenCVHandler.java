@@ -21,23 +21,28 @@
 
 package com.fern.mangoeye;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.util.Log;
-import android.view.Surface;
+import android.view.WindowManager;
 
+import org.json.JSONObject;
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.android.JavaCameraView;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
-import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2 {
     private final String TAG = this.getClass().getName();
@@ -46,95 +51,185 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
     private static final long stopRecordingTimeout = 5000;
     private static final long warmupTimeout = 5000;
     private static final double speedThreshold = 0.3;
-
-    private final JavaCameraView cameraBridgeViewBase;
-    private final Activity activity;
+    private static final double lightingChangeRatio = 0.5;
+    private static final double minGain = 0.5;
+    private static final double maxGain = 2.0;
+    private static final int lightingRecoveryFrames = 3;
+    private static final long idleTimeout = 30000;
+    private static final long idleDetectionInterval = 300;
+    private static final long motionEventInterval = 1000;
+
+    private final HeadlessCamera headlessCamera;
+    private final Context context;
+    private final WindowManager windowManager;
     private final Recorder recorder;
+    private final int cameraID;
+    private final String cameraName;
+    private final String metricsPrefix;
+    private final File directory;
+    private final MotionTracker motionTracker = new MotionTracker(
+            SettingsContainer.getSnapshot().trackerMinFrames,
+            SettingsContainer.getSnapshot().trackerKalman);
+
+    // Hold native Mats, so they are created when the camera starts (OpenCV is loaded)
+    private BlobDetector blobDetector;
+    private MotionHeatmap motionHeatmap;
+    private TimelapseRecorder timelapseRecorder;
+    private ObjectClassifier objectClassifier;
+    private PreviewCompositor previewCompositor;
+    private PreviewCompositor.TextSprite timestampSprite;
+    private PreviewCompositor.TextSprite recordingTimestampSprite;
+
+    private volatile PreviewListener previewListener;
+
+    private Mat inputRGBA, inputGray, outputRGBA;
+    private Mat matGrayRotated;
+    private Mat matRef, matRefFloat, matDiff, inputGrayNormalized;
+    private Mat matMask;
+    private List<double[]> matMaskSource;
+    private int maskedPixels;
+    private MatOfDouble inputMean, inputStdDev, refMean, refStdDev;
+
+    private final SimpleDateFormat timestampFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private long timestampSecond = -1;
+    private String timestampText;
 
-    private boolean initialized;
-
-    private Mat inputRGBA, inputGray, outputRGBA, matRGBAt;
-    private Mat matRef, matRefFloat, matDiff, matDiffRGBA;
-    private List<Mat> channels;
-
-    private final Timestamp timestamp = new Timestamp(0);
-    private final Scalar textBackgroundColor = new Scalar(255, 255, 255, 255);
-    private final Scalar textForegroundColor = new Scalar(0, 0, 0, 255);
-
-    private int rotationLast;
     private boolean flashlightStateLast;
     private int motionFrames;
+    private int recoveryFramesLeft;
     private long warmupTimer, stopTimer;
+    private long lastMotionTime, lastDetectionTime, lastPreviewTime;
+    private long dutyCycleTimer;
+    private long lastMotionEventTime;
+    private int framesReceived, framesProcessed;
 
-    OpenCVHandler(JavaCameraView cameraBridgeViewBase,
-                  Activity activity, Recorder recorder) {
-        this.cameraBridgeViewBase = cameraBridgeViewBase;
-        this.activity = activity;
-        this.recorder = recorder;
-
-        this.initialized = false;
+    /**
+     * Receives composited preview frames (camera frame with overlays)
+     */
+    public interface PreviewListener {
+        /**
+         * Calls on the camera thread before composing preview frame
+         * @return false to skip composing (previous frame is not shown yet)
+         */
+        boolean isReadyForFrame();
+
+        /**
+         * Calls on the camera thread for each processed frame
+         * @param frame RGBA frame. Valid only until the method returns
+         */
+        void onPreviewFrame(Mat frame);
     }
 
     /**
-     * @return CameraBridgeViewBase class
+     * This class runs capture, detection and recording of one camera
+     * @param context Android context
+     * @param recorder recorder of the camera
+     * @param cameraID camera index (CameraBridgeViewBase.CAMERA_ID_...)
+     * @param cameraName name of the camera in the web API and events (empty for the main camera)
+     * @param directory directory of the camera recordings
+     * @param primary true for the main camera (metrics names without camera prefix)
      */
-    public CameraBridgeViewBase getCameraBridgeViewBase() {
-        return cameraBridgeViewBase;
+    OpenCVHandler(Context context, Recorder recorder, int cameraID, String cameraName,
+                  File directory, boolean primary) {
+        this.context = context;
+        this.windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        this.recorder = recorder;
+        this.cameraID = cameraID;
+        this.cameraName = cameraName;
+        this.metricsPrefix = primary ? "" : cameraName + "_";
+        this.directory = directory;
+        this.headlessCamera = new HeadlessCamera(cameraID, this);
     }
 
     /**
-     * Initializes the components of the class.
-     * NOTE: Make sure the method is called no more than once to prevent memory leaks
+     * Sets listener for the preview frames. Overlays are not drawn without listener
+     * @param previewListener PreviewListener or null to disable preview
      */
-    public void initView() {
-        // Initialize CameraBridgeViewBase object
-        cameraBridgeViewBase.setCvCameraViewListener(this);
-        cameraBridgeViewBase.setCameraIndex(SettingsContainer.cameraID);
-        cameraBridgeViewBase.setVisibility(CameraBridgeViewBase.VISIBLE);
+    public void setPreviewListener(PreviewListener previewListener) {
+        this.previewListener = previewListener;
+    }
 
+    /**
+     * Initializes the components of the class and starts the camera
+     */
+    public void start() {
         // Initialize variables
-        rotationLast = -1;
         flashlightStateLast = false;
         motionFrames = 0;
+        recoveryFramesLeft = 0;
         warmupTimer = 0;
         stopTimer = 0;
+        lastMotionTime = System.currentTimeMillis();
+        lastDetectionTime = 0;
+        lastPreviewTime = 0;
+        dutyCycleTimer = 0;
+        lastMotionEventTime = 0;
+        framesReceived = 0;
+        framesProcessed = 0;
 
         // Initialize mats
         inputRGBA = new Mat();
-        inputGray = new Mat();
         outputRGBA = new Mat();
-        matRGBAt = new Mat();
+        matGrayRotated = new Mat();
 
         matRef = new Mat();
         matRefFloat = new Mat();
         matDiff = new Mat();
-        matDiffRGBA = new Mat();
-        channels = new ArrayList<>();
-
-        // Set initialized flag
-        initialized = true;
+        inputGrayNormalized = new Mat();
+        matMask = new Mat();
+        matMaskSource = null;
+        inputMean = new MatOfDouble();
+        inputStdDev = new MatOfDouble();
+        refMean = new MatOfDouble();
+        refStdDev = new MatOfDouble();
+
+        // Start capturing
+        headlessCamera.start();
     }
 
     /**
-     * @return true if initView() was called
+     * Stops the camera (and recording)
      */
-    public boolean isInitialized() {
-        return initialized;
+    public void stop() {
+        headlessCamera.stop();
+        if (timelapseRecorder != null)
+            timelapseRecorder.finish();
     }
 
     @Override
     public void onCameraViewStarted(int width, int height) {
         Log.i(TAG, "onCameraViewStarted");
 
+        // Create components with native Mats (once, they keep state between camera restarts)
+        if (blobDetector == null) {
+            blobDetector = new BlobDetector();
+            motionHeatmap = new MotionHeatmap(directory);
+            timelapseRecorder = new TimelapseRecorder(directory);
+            objectClassifier = new ObjectClassifier(metricsPrefix);
+            previewCompositor = new PreviewCompositor();
+            timestampSprite = new PreviewCompositor.TextSprite(Core.FONT_HERSHEY_PLAIN);
+            recordingTimestampSprite = new PreviewCompositor.TextSprite(Core.FONT_HERSHEY_PLAIN,
+                    CvType.CV_8UC1);
+        }
+
         // Reset variables
-        rotationLast = -1;
         flashlightStateLast = false;
         motionFrames = 0;
+        motionTracker.reset();
+        recoveryFramesLeft = 0;
         warmupTimer = 0;
         stopTimer = 0;
+        lastMotionTime = System.currentTimeMillis();
+        lastDetectionTime = 0;
+        lastPreviewTime = 0;
+        dutyCycleTimer = 0;
+        lastMotionEventTime = 0;
+        framesReceived = 0;
+        framesProcessed = 0;
 
-        // Disable auto focus
-        cameraBridgeViewBase.disableAutoFocus();
+        // Start loading FFmpeg in background. Recording can't start before warmup anyway
+        NativeLibraries.loadFFmpeg();
 
         System.gc();
     }
@@ -147,14 +242,44 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
         if (recorder.isRecording())
             recorder.stopRecording();
 
+        // Save heatmap
+        motionHeatmap.save();
+
+        // Finish time-lapse file
+        timelapseRecorder.finish();
+
         System.gc();
     }
 
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
         try {
-            // Read input RGBA image
-            inputRGBA = inputFrame.rgba();
+            long currentTime = System.currentTimeMillis();
+
+            // Read live settings once per frame
+            SettingsSnapshot settings = SettingsContainer.getSnapshot();
+
+            // Measure time to first frame
+            if (framesProcessed == 0 && dutyCycleTimer == 0)
+                PerformanceMetrics.markStartupPhase("first_frame");
+
+            // Calculate duty cycle
+            updateDutyCycle(currentTime);
+            framesReceived++;
+
+            // Skip frames to keep detection (and recording) rate of the performance level
+            // and in idle mode. Show previous output (camera Y plane before the first preview)
+            PerformanceGovernor.Level level = PerformanceGovernor.getLevel();
+            long detectionInterval = recorder.isRecording() ?
+                    level.recordingFrameInterval : level.detectionInterval;
+            boolean idle = isIdle(currentTime);
+            headlessCamera.setIdle(idle);
+            if (idle)
+                detectionInterval = Math.max(detectionInterval, idleDetectionInterval);
+            if (currentTime - lastDetectionTime < detectionInterval)
+                return outputRGBA.empty() ? inputFrame.gray() : outputRGBA;
+            lastDetectionTime = currentTime;
+            framesProcessed++;
 
             // Initialise warmup timer
             if (warmupTimer == 0)
@@ -163,29 +288,13 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
             // Calculate warmup time left
             long warmupTimeLeft = System.currentTimeMillis() - warmupTimer;
 
-            // Get current screen rotation angle
-            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-
-            // Rotate frame on different orientations
-            if (rotation == Surface.ROTATION_0) {
-                Core.transpose(inputRGBA, matRGBAt);
-                if (SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT)
-                    Core.flip(matRGBAt, inputRGBA, 0);
-                else
-                    Core.flip(matRGBAt, inputRGBA, 1);
-            } else if (rotation == Surface.ROTATION_270) {
-                Core.flip(inputRGBA, inputRGBA, 0);
-                Core.flip(inputRGBA, inputRGBA, 1);
-            } else if (rotation == Surface.ROTATION_180) {
-                Core.transpose(inputRGBA, matRGBAt);
-                if (SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT)
-                    Core.flip(matRGBAt, inputRGBA, 1);
-                else
-                    Core.flip(matRGBAt, inputRGBA, 0);
-            }
+            // Get rotation of the camera frame for the current screen rotation
+            int rotationDegrees = FrameRotation.getDegrees(
+                    windowManager.getDefaultDisplay().getRotation(), cameraID);
 
-            // Convert to grayscale
-            Imgproc.cvtColor(inputRGBA, inputGray, Imgproc.COLOR_RGBA2GRAY);
+            // Read Y plane of the camera frame (no color conversion) and rotate it
+            Mat inputGrayNative = inputFrame.gray();
+            inputGray = FrameRotation.rotate(inputGrayNative, matGrayRotated, rotationDegrees);
 
             // Fill reference frame on first run
             if (warmupTimeLeft < warmupTimeout / 2
@@ -194,22 +303,51 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
                 inputGray.convertTo(matRefFloat, CvType.CV_32FC1);
             }
 
-            // Find difference in frames
+            // Find difference in frames (with global brightness compensation)
             matRefFloat.convertTo(matRef, CvType.CV_8UC1);
-            Core.absdiff(inputGray, matRef, matDiff);
+            boolean lightingChanged = compensateBrightness();
+            Core.absdiff(inputGrayNormalized, matRef, matDiff);
 
             // Accumulate reference frame
             Imgproc.accumulateWeighted(inputGray, matRefFloat, speedThreshold);
 
             // Threshold difference
             Imgproc.threshold(matDiff, matDiff,
-                    50 - SettingsContainer.sensitivity, 255, 0);
+                    50 - settings.sensitivity, 255, 0);
+
+            // Ignore excluded areas
+            int totalPixels = matDiff.cols() * matDiff.rows();
+            if (!settings.motionMask.isEmpty()) {
+                updateMask(settings.motionMask, matDiff.cols(), matDiff.rows());
+                Core.bitwise_and(matDiff, matMask, matDiff);
+                totalPixels = Math.max(maskedPixels, 1);
+            }
 
-            // Increment number of frames with motion
+            // Count changed pixels
             int nonZeroPixels = Core.countNonZero(matDiff);
-            if (nonZeroPixels > matDiff.cols() * matDiff.rows()
-                    * SettingsContainer.sizeThreshold
-                    && nonZeroPixels < (matDiff.cols() * matDiff.rows()) / 2) {
+
+            // Most of the frame changed even after compensation. Treat as lighting change
+            if (nonZeroPixels > totalPixels * lightingChangeRatio)
+                lightingChanged = true;
+
+            // Re-seed reference frame on global lighting change
+            if (lightingChanged) {
+                inputGray.convertTo(matRefFloat, CvType.CV_32FC1);
+                recoveryFramesLeft = lightingRecoveryFrames;
+            }
+
+            // Add motion to the heatmap (not lighting changes)
+            if (!lightingChanged && recoveryFramesLeft <= 0 && nonZeroPixels > 0)
+                motionHeatmap.accumulate(matDiff);
+
+            // Keep motion counter as is while the reference frame converges
+            boolean motionDetected = nonZeroPixels > totalPixels * settings.sizeThreshold;
+            if (recoveryFramesLeft > 0)
+                recoveryFramesLeft--;
+
+            // Increment number of frames with motion
+            else if (motionDetected) {
+                lastMotionTime = currentTime;
                 if (warmupTimeLeft > warmupTimeout && motionFrames <= detectMotionFrames)
                     motionFrames++;
             }
@@ -218,15 +356,56 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
             else if (motionFrames > 0)
                 motionFrames--;
 
-            // Start new recording
+            // Track motion blobs (blobs of lighting changes would start false tracks)
+            List<Rect> blobs = blobDetector.detect(matDiff);
+            motionTracker.setParameters(settings.trackerMinFrames, settings.trackerKalman);
+            motionTracker.update(lightingChanged || recoveryFramesLeft > 0
+                    ? Collections.<Rect>emptyList() : blobs, currentTime);
+
+            // Send motion score to the web clients (not more often than once per second)
+            if (currentTime - lastMotionEventTime >= motionEventInterval
+                    && EventBroadcaster.hasSubscribers()) {
+                lastMotionEventTime = currentTime;
+                try {
+                    JSONObject event = new JSONObject();
+                    event.put("score", (int) ((long) nonZeroPixels * 255 / totalPixels));
+                    event.put("motion", motionDetected);
+                    event.put("recording", recorder.isRecording());
+                    event.put("camera", cameraName);
+                    event.put("tracks", motionTracker.getTracks().size());
+                    if (ObjectClassifier.isEnabled())
+                        event.put("object", objectClassifier.getLastCategory());
+                    EventBroadcaster.broadcast("motion", event);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error sending motion event!", e);
+                }
+            }
+
+            // Classify frames with motion until recording starts (one frame at a time,
+            // not after a recent match). Frame is converted only if it's submitted
+            if (ObjectClassifier.isEnabled() && motionDetected && !recorder.isRecording()
+                    && objectClassifier.isReady() && !objectClassifier.isTriggered(currentTime))
+                objectClassifier.submit(((HeadlessCamera.HeadlessCameraFrame) inputFrame).yuv(),
+                        rotationDegrees);
+
+            // Start new recording (only for configured objects if classifier is enabled
+            // and only for tracks that lived for trackerMinFrames if tracker trigger is enabled)
+            boolean recordingStarted = false;
             if (warmupTimeLeft > warmupTimeout && motionFrames >= detectMotionFrames) {
-                if (!recorder.isRecording()) {
+                if (!recorder.isRecording() && objectClassifier.isTriggered(currentTime)
+                        && (!settings.trackerTrigger
+                        || motionTracker.hasConfirmedTrack())) {
+                    recordingStarted = true;
+
                     // Enable flashlight
-                    if (SettingsContainer.enableFlashlight)
+                    if (settings.enableFlashlight)
                         setFlashlight(true);
 
-                    // Start recording
-                    recorder.startRecording(inputRGBA.width(), inputRGBA.height(), 30);
+                    // Start recording (size and frame rate of the performance level)
+                    recorder.startRecording(
+                            (int) (inputGrayNative.width() * level.recordingScale) & ~1,
+                            (int) (inputGrayNative.height() * level.recordingScale) & ~1,
+                            level.recordingFrameRate, rotationDegrees);
                 }
                 stopTimer = 0;
             }
@@ -244,88 +423,80 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
 
                     // Reset warmup timer
                     warmupTimer = System.currentTimeMillis();
+
+                    // Send stopped state with the next motion event
+                    lastMotionEventTime = 0;
                 }
             }
 
-            // Set current timestamp
-            timestamp.setTime(System.currentTimeMillis());
-
-            // Add timestamp text
-            Imgproc.putText(inputRGBA, timestamp.toString(), new Point(10, 20),
-                    Core.FONT_HERSHEY_PLAIN, 1, textBackgroundColor, 2);
-            Imgproc.putText(inputRGBA, timestamp.toString(), new Point(10, 20),
-                    Core.FONT_HERSHEY_PLAIN, 1, textForegroundColor, 1);
-
-            // Record input frame
-            if (recorder.isRecording())
-                recorder.recordRGBAMat(inputRGBA);
-
-            // Combine channels
-            channels.clear();
-            channels.add(Mat.zeros(matDiff.rows(), matDiff.cols(), matDiff.type()));
-            channels.add(matDiff);
-            channels.add(Mat.zeros(matDiff.rows(), matDiff.cols(), matDiff.type()));
-            channels.add(matDiff);
-            Core.merge(channels, matDiff);
-
-            // Convert to RGBA
-            Imgproc.cvtColor(matDiff, matDiffRGBA, Imgproc.COLOR_RGB2RGBA);
-
-            // Combine output image
-            Core.add(inputRGBA, matDiffRGBA, outputRGBA);
-
-            // Add recording text
+            // Write motion metadata of the recording
             if (recorder.isRecording()) {
-                Imgproc.putText(outputRGBA, "Recording...", new Point(10, 35),
-                        Core.FONT_HERSHEY_PLAIN, 1, textBackgroundColor, 2);
-                Imgproc.putText(outputRGBA, "Recording...", new Point(10, 35),
-                        Core.FONT_HERSHEY_PLAIN, 1, textForegroundColor, 1);
+                int reason = 0;
+                if (motionDetected)
+                    reason |= MotionMetadata.REASON_MOTION;
+                if (lightingChanged)
+                    reason |= MotionMetadata.REASON_LIGHTING_CHANGE;
+                if (recordingStarted)
+                    reason |= MotionMetadata.REASON_RECORDING_STARTED;
+                recorder.recordMotion((int) ((long) nonZeroPixels * 255 / totalPixels), reason,
+                        blobs, motionTracker.getTracks(),
+                        blobDetector.getWidth(), blobDetector.getHeight());
             }
 
-            // Add warming up text
-            if (warmupTimeLeft < warmupTimeout) {
-                int warmupSeconds = (int) ((warmupTimeout - warmupTimeLeft) / 1000);
-                Imgproc.putText(outputRGBA, "Warming up: " + warmupSeconds + "s",
-                        new Point(10, 50), Core.FONT_HERSHEY_PLAIN, 1,
-                        textBackgroundColor, 2);
-                Imgproc.putText(outputRGBA, "Warming up: " + warmupSeconds + "s",
-                        new Point(10, 50), Core.FONT_HERSHEY_PLAIN, 1,
-                        textForegroundColor, 1);
+            // Skip color conversion and overlays if nobody needs the frame
+            PreviewListener previewListener = this.previewListener;
+            boolean previewWanted = previewListener != null
+                    && currentTime - lastPreviewTime >= level.previewInterval
+                    && previewListener.isReadyForFrame();
+            boolean timelapseFrameDue = timelapseRecorder.isFrameDue(currentTime);
+            if (!recorder.isRecording() && !previewWanted && !timelapseFrameDue)
+                return inputGray;
+
+            // Format timestamp (once per second)
+            if (currentTime / 1000 != timestampSecond) {
+                timestampSecond = currentTime / 1000;
+                timestampText = timestampFormat.format(new Date(currentTime));
             }
 
-            // Add server IP and port text
-            if (WebServer.serverHost.length() > 0 && WebServer.isServerListening()) {
-                String serverIpPort = WebServer.serverHost + ":" + WebServer.serverPort;
-                Imgproc.putText(outputRGBA, serverIpPort,
-                        new Point(10, 90), Core.FONT_HERSHEY_SIMPLEX, 1,
-                        textBackgroundColor, 2);
-                Imgproc.putText(outputRGBA, serverIpPort,
-                        new Point(10, 90), Core.FONT_HERSHEY_SIMPLEX, 1,
-                        textForegroundColor, 1);
+            // Read input RGBA image (only needed for preview and time-lapse, recording takes
+            // NV21). Frame keeps camera orientation, rotation is applied to small images
+            // or stored as metadata
+            if (previewWanted || timelapseFrameDue)
+                inputRGBA = inputFrame.rgba();
+
+            // Compose preview from the clean frame and send it to the viewer
+            if (previewWanted) {
+                String warmupText = null;
+                if (warmupTimeLeft < warmupTimeout)
+                    warmupText = "Warming up: " + (warmupTimeout - warmupTimeLeft) / 1000 + "s";
+                String serverText = null;
+                if (WebServer.serverHost.length() > 0 && WebServer.isServerListening())
+                    serverText = WebServer.serverHost + ":" + WebServer.serverPort;
+                outputRGBA = previewCompositor.compose(inputRGBA, rotationDegrees, matDiff, timestampText,
+                        recorder.isRecording(), warmupText, serverText);
+                previewListener.onPreviewFrame(outputRGBA);
+                lastPreviewTime = currentTime;
             }
 
-            // Resize to original size
-            Imgproc.resize(outputRGBA, outputRGBA, inputFrame.rgba().size());
-
-            // On rotation changed
-            if (rotation != rotationLast) {
-                // Set MAX_PRIORITY to the current thread
-                Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-
-                // Set new scaling factor
-                if (rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180)
-                    cameraBridgeViewBase.setScaleY((float)
-                            ((inputRGBA.size().width * inputRGBA.size().width)
-                                    / (inputRGBA.size().height * inputRGBA.size().height)));
-                else
-                    cameraBridgeViewBase.setScaleY(1);
+            // Timestamp is drawn upright in the recording
+            int stampDegrees = recorder.isRecording() ?
+                    recorder.getRotationDegrees() : rotationDegrees;
+
+            // Add time-lapse frame
+            if (timelapseFrameDue) {
+                timestampSprite.draw(inputRGBA, timestampText, 10, 20, stampDegrees);
+                timelapseRecorder.addFrame(inputRGBA, stampDegrees);
             }
 
-            // Remember new rotation
-            rotationLast = rotation;
+            // Record camera NV21 frame with timestamp on the Y plane (after RGBA conversion)
+            if (recorder.isRecording()) {
+                recordingTimestampSprite.draw(inputGrayNative, timestampText, 10, 20,
+                        stampDegrees);
+                recorder.recordNV21Mat(((HeadlessCamera.HeadlessCameraFrame) inputFrame).yuv());
+            }
 
             // Return frame
-            return outputRGBA;
+            return previewWanted ? outputRGBA : inputGray;
         } catch (Exception e) {
             // Show error message
             Log.e(TAG, "Error processing frame!", e);
@@ -335,24 +506,96 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
         return inputFrame.rgba();
     }
 
+    /**
+     * Checks if there was no motion for a long time, so detection can run at reduced rate
+     * @param currentTime current time in milliseconds
+     * @return true if detector is idle
+     */
+    private boolean isIdle(long currentTime) {
+        return !recorder.isRecording()
+                && motionFrames <= 0
+                && recoveryFramesLeft <= 0
+                && currentTime - warmupTimer > warmupTimeout
+                && currentTime - lastMotionTime > idleTimeout;
+    }
+
+    /**
+     * Publishes share of processed frames and detection rate every second
+     * @param currentTime current time in milliseconds
+     */
+    private void updateDutyCycle(long currentTime) {
+        if (dutyCycleTimer == 0)
+            dutyCycleTimer = currentTime;
+        long elapsed = currentTime - dutyCycleTimer;
+        if (elapsed >= 1000) {
+            PerformanceMetrics.setGauge(metricsPrefix + "detection_duty_cycle",
+                    framesReceived > 0 ? (double) framesProcessed / framesReceived : 0);
+            PerformanceMetrics.setGauge(metricsPrefix + "detection_fps",
+                    framesProcessed * 1000.0 / elapsed);
+            PerformanceMetrics.setGauge(metricsPrefix + "camera_fps",
+                    framesReceived * 1000.0 / elapsed);
+            dutyCycleTimer = currentTime;
+            framesReceived = 0;
+            framesProcessed = 0;
+        }
+    }
+
+    /**
+     * Matches mean and contrast of the input grayscale frame to the reference frame
+     * and writes result into inputGrayNormalized
+     * @return true if lighting change is too strong to be compensated (gain is out of range)
+     */
+    private boolean compensateBrightness() {
+        Core.meanStdDev(inputGray, inputMean, inputStdDev);
+        Core.meanStdDev(matRef, refMean, refStdDev);
+
+        double inputMeanValue = inputMean.toArray()[0];
+        double inputStdDevValue = inputStdDev.toArray()[0];
+        double refMeanValue = refMean.toArray()[0];
+        double refStdDevValue = refStdDev.toArray()[0];
+
+        // Calculate gain from standard deviations (or means on flat images)
+        double gain;
+        if (inputStdDevValue > 1 && refStdDevValue > 1)
+            gain = refStdDevValue / inputStdDevValue;
+        else if (inputMeanValue > 1)
+            gain = refMeanValue / inputMeanValue;
+        else
+            gain = 1;
+        boolean outOfRange = gain < minGain || gain > maxGain;
+        gain = Math.max(minGain, Math.min(maxGain, gain));
+
+        // Apply gain and offset
+        double offset = refMeanValue - gain * inputMeanValue;
+        inputGray.convertTo(inputGrayNormalized, -1, gain, offset);
+
+        return outOfRange;
+    }
+
+    /**
+     * Rebuilds motion mask (255 - detect, 0 - ignore) when the mask setting or frame size changes
+     * @param motionMask excluded rectangles from SettingsSnapshot
+     * @param width frame width
+     * @param height frame height
+     */
+    private void updateMask(List<double[]> motionMask, int width, int height) {
+        if (motionMask == matMaskSource && matMask.cols() == width && matMask.rows() == height)
+            return;
+        matMaskSource = motionMask;
+
+        matMask.create(height, width, CvType.CV_8UC1);
+        matMask.setTo(new Scalar(255));
+        for (double[] rect : motionMask) {
+            Imgproc.rectangle(matMask,
+                    new Point(rect[0] * width, rect[1] * height),
+                    new Point((rect[0] + rect[2]) * width, (rect[1] + rect[3]) * height),
+                    new Scalar(0), -1);
+        }
+        maskedPixels = Core.countNonZero(matMask);
+    }
+
     /**
      * Turns on or off flashlight
-     *
-     * NOTE: Please add following code to the JavaCameraView class
-     * (file (in the OpenCV SDK): java/src/org.opencv/android/JavaCameraView.java)
-     *
-     *     public void turnOffTheFlash() {
-     *         Camera.Parameters params = mCamera.getParameters();
-     *         params.setFlashMode(params.FLASH_MODE_OFF);
-     *         mCamera.setParameters(params);
-     *     }
-     *
-     *     public void turnOnTheFlash() {
-     *         Camera.Parameters params = mCamera.getParameters();
-     *         params.setFlashMode(params.FLASH_MODE_TORCH);
-     *         mCamera.setParameters(params);
-     *     }
-     *
      * @param state set to true to enable flashlight or false to disable it
      */
     private void setFlashlight(boolean state) {
@@ -360,14 +603,11 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
             return;
 
         // Check if flashlight supported
-        if (activity.getApplicationContext().getPackageManager()
+        if (context.getPackageManager()
                 .hasSystemFeature(PackageManager.FEATURE_CAMERA_FLASH)) {
 
             // Enable or disable flashlight
-            if (state)
-                cameraBridgeViewBase.turnOnTheFlash();
-            else
-                cameraBridgeViewBase.turnOffTheFlash();
+            headlessCamera.setFlashlight(state);
         }
 
         flashlightStateLast = state;
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches battery temperature, charge state and system thermal status (Android 10+)
+ * or CPU frequency limits (older versions) and selects performance level of the capture pipeline.
+ * Level goes up as soon as any source reports pressure and goes down one step at a time
+ * after the pressure was gone for cooldownTime
+ */
+public class PerformanceGovernor {
+    private static final String TAG = PerformanceGovernor.class.getName();
+
+    private static final long pollInterval = 10000;
+    private static final long cooldownTime = 60000;
+
+    // Battery temperature thresholds of WARM, HOT and CRITICAL levels in tenths of a degree Celsius
+    private static final int[] temperatureThresholds = {400, 430, 460};
+
+    // Battery level thresholds of WARM and HOT levels while not charging in %
+    private static final int[] batteryThresholds = {20, 10};
+
+    // Shares of the CPU frequency cap seen before throttling (WARM, HOT)
+    private static final double[] cpuFrequencyThresholds = {0.8, 0.6};
+
+    /**
+     * Limits of the capture pipeline. Recording size and frame rate apply to new recordings
+     */
+    public static class Level {
+        public final int index;
+        public final String name;
+        // Minimum time between processed frames while not recording in ms
+        public final long detectionInterval;
+        // Minimum time between composed preview frames in ms
+        public final long previewInterval;
+        // Scale of the recording frame size
+        public final double recordingScale;
+        public final int recordingFrameRate;
+        // Minimum time between recorded frames in ms (a bit shorter than the frame period
+        // to tolerate camera frame jitter)
+        public final long recordingFrameInterval;
+        public final int webWorkers;
+
+        private Level(int index, String name, long detectionInterval, long previewInterval,
+                      double recordingScale, int recordingFrameRate,
+                      long recordingFrameInterval, int webWorkers) {
+            this.index = index;
+            this.name = name;
+            this.detectionInterval = detectionInterval;
+            this.previewInterval = previewInterval;
+            this.recordingScale = recordingScale;
+            this.recordingFrameRate = recordingFrameRate;
+            this.recordingFrameInterval = recordingFrameInterval;
+            this.webWorkers = webWorkers;
+        }
+    }
+
+    public static final Level NORMAL = new Level(0, "normal", 0, 0, 1, 30, 0, 3);
+    public static final Level WARM = new Level(1, "warm", 100, 100, 1, 20, 45, 2);
+    public static final Level HOT = new Level(2, "hot", 200, 500, 0.5, 15, 60, 1);
+    public static final Level CRITICAL = new Level(3, "critical", 300, 1000, 0.5, 10, 90, 1);
+    private static final Level[] levels = {NORMAL, WARM, HOT, CRITICAL};
+
+    private static final ScheduledExecutorService governorExecutor =
+            Executors.newSingleThreadScheduledExecutor(
+                    runnable -> new Thread(runnable, "PerformanceGovernor"));
+
+    private static volatile Level level = NORMAL;
+    private static ScheduledFuture<?> pollFuture;
+    private static long pressureGoneTime;
+
+    // Highest frequency cap of each CPU seen so far (governor thread only). Big cores of
+    // many devices are capped below cpuinfo_max_freq by design, so only drops count
+    private static final Map<String, Long> cpuFrequencyCaps = new HashMap<>();
+
+    /**
+     * Starts polling of the sensors. Level stays NORMAL while the governor is disabled
+     * in the live settings
+     * @param context Android context
+     */
+    public static synchronized void start(Context context) {
+        if (pollFuture != null)
+            return;
+        Context applicationContext = context.getApplicationContext();
+        pollFuture = governorExecutor.scheduleWithFixedDelay(() -> poll(applicationContext),
+                0, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling and restores NORMAL level
+     */
+    public static synchronized void stop() {
+        if (pollFuture != null)
+            pollFuture.cancel(false);
+        pollFuture = null;
+        governorExecutor.execute(() -> setLevel(NORMAL, "stopped"));
+    }
+
+    /**
+     * @return current performance level
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Reads all sources and changes level if needed. Runs on the governor thread
+     * @param context application context
+     */
+    private static void poll(Context context) {
+        if (!SettingsContainer.getSnapshot().performanceGovernor) {
+            setLevel(NORMAL, "disabled");
+            return;
+        }
+        try {
+            int target = 0;
+            StringBuilder reason = new StringBuilder();
+
+            // Battery temperature and charge state (sticky broadcast, no receiver needed)
+            Intent battery = context.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                        Integer.MIN_VALUE);
+                int batteryLevel = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int batteryScale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                int batteryPercent = batteryLevel >= 0 && batteryScale > 0
+                        ? batteryLevel * 100 / batteryScale : -1;
+                if (temperature != Integer.MIN_VALUE)
+                    PerformanceMetrics.setGauge("battery_temperature", temperature / 10.0);
+                PerformanceMetrics.setGauge("battery_level", batteryPercent);
+                PerformanceMetrics.setGauge("battery_charging", charging ? 1 : 0);
+
+                int temperatureTarget = 0;
+                while (temperatureTarget < temperatureThresholds.length
+                        && temperature >= temperatureThresholds[temperatureTarget])
+                    temperatureTarget++;
+                if (temperatureTarget > target) {
+                    target = temperatureTarget;
+                    reason.append(" battery_temperature=").append(temperature / 10.0);
+                }
+
+                // Save energy on low battery
+                int batteryTarget = 0;
+                while (!charging && batteryPercent >= 0
+                        && batteryTarget < batteryThresholds.length
+                        && batteryPercent <= batteryThresholds[batteryTarget])
+                    batteryTarget++;
+                if (batteryTarget > target) {
+                    target = batteryTarget;
+                    reason.append(" battery_level=").append(batteryPercent);
+                }
+            }
+
+            // System thermal status (covers skin and SoC sensors)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                PowerManager powerManager =
+                        (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+                int thermalStatus = powerManager.getCurrentThermalStatus();
+                PerformanceMetrics.setGauge("thermal_status", thermalStatus);
+                int thermalTarget = Math.min(thermalStatus, CRITICAL.index);
+                if (thermalTarget > target) {
+                    target = thermalTarget;
+                    reason.append(" thermal_status=").append(thermalStatus);
+                }
+            }
+
+            // CPU frequency cap (lowered by the kernel when it throttles). Thermal status
+            // already includes it where available
+            double cpuFrequencyRatio = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? -1
+                    : getCPUFrequencyRatio();
+            if (cpuFrequencyRatio > 0) {
+                PerformanceMetrics.setGauge("cpu_max_frequency_ratio", cpuFrequencyRatio);
+                int cpuTarget = 0;
+                while (cpuTarget < cpuFrequencyThresholds.length
+                        && cpuFrequencyRatio < cpuFrequencyThresholds[cpuTarget])
+                    cpuTarget++;
+                if (cpuTarget > target) {
+                    target = cpuTarget;
+                    reason.append(" cpu_max_frequency_ratio=")
+                            .append(Math.round(cpuFrequencyRatio * 100) / 100.0);
+                }
+            }
+
+            // Go up immediately, go down one level after cooldown
+            long currentTime = System.currentTimeMillis();
+            int current = level.index;
+            if (target >= current)
+                pressureGoneTime = 0;
+            if (target > current)
+                setLevel(levels[target], reason.toString().trim());
+            else if (target < current) {
+                if (pressureGoneTime == 0)
+                    pressureGoneTime = currentTime;
+                else if (currentTime - pressureGoneTime >= cooldownTime) {
+                    setLevel(levels[current - 1], "cooldown");
+                    pressureGoneTime = currentTime;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error polling performance sources!", e);
+        }
+    }
+
+    /**
+     * Applies new level and logs it to the metrics and the web clients
+     * @param newLevel new performance level
+     * @param reason description of the readings that caused the change
+     */
+    private static void setLevel(Level newLevel, String reason) {
+        Level oldLevel = level;
+        if (newLevel == oldLevel)
+            return;
+        Log.i(TAG, "Performance level " + oldLevel.name + " -> " + newLevel.name
+                + " (" + reason + ")");
+        level = newLevel;
+        RequestExecutor.setWorkerThreads(newLevel.webWorkers);
+
+        PerformanceMetrics.setGauge("performance_level", newLevel.index);
+        PerformanceMetrics.incrementCounter("performance_level_changes");
+        PerformanceMetrics.incrementCounter("performance_level_" + newLevel.name);
+
+        try {
+            JSONObject event = new JSONObject();
+            event.put("level", newLevel.name);
+            event.put("previous", oldLevel.name);
+            event.put("reason", reason);
+            EventBroadcaster.broadcast("performance", event);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending performance event!", e);
+        }
+    }
+
+    /**
+     * @return lowest share of the highest frequency cap seen on each CPU
+     * or -1 if cpufreq is not readable
+     */
+    private static double getCPUFrequencyRatio() {
+        double ratio = -1;
+        File[] cpus = new File("/sys/devices/system/cpu").listFiles();
+        if (cpus == null)
+            return ratio;
+        for (File cpu : cpus) {
+            if (!cpu.getName().matches("cpu[0-9]+"))
+                continue;
+            long allowed = readLong(new File(cpu, "cpufreq/scaling_max_freq"));
+            if (allowed <= 0)
+                continue;
+            Long cap = cpuFrequencyCaps.get(cpu.getName());
+            if (cap == null || allowed > cap) {
+                cap = allowed;
+                cpuFrequencyCaps.put(cpu.getName(), cap);
+            }
+            double cpuRatio = (double) allowed / cap;
+            if (ratio < 0 || cpuRatio < ratio)
+                ratio = cpuRatio;
+        }
+        return ratio;
+    }
+
+    /**
+     * @param file file with a single number
+     * @return number or -1 if the file is missing or not readable
+     */
+    private static long readLong(File file) {
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            String line = bufferedReader.readLine();
+            return line == null ? -1 : Long.parseLong(line.trim());
+        } catch (Exception ignored) {
+            return -1;
+        }
+    }
+}
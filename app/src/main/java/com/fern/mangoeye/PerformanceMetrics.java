@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class stores runtime performance metrics (gauges, counters and latency histograms)
+ * that can be read through the web server
+ */
+public class PerformanceMetrics {
+    private static final Map<String, Double> gauges = new TreeMap<>();
+    private static final Map<String, Long> counters = new TreeMap<>();
+    private static final Map<String, long[]> histograms = new TreeMap<>();
+
+    // Upper bounds of histogram buckets in ms (last bucket is unbounded)
+    private static final long[] latencyBuckets = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private static final long processStartTime =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+                    Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    /**
+     * Sets current value of the gauge
+     * @param name name of the metric
+     * @param value new value
+     */
+    public static synchronized void setGauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Stores time from the process start to the startup phase (only first time per process)
+     * @param phase name of the startup phase
+     */
+    public static synchronized void markStartupPhase(String phase) {
+        String name = "startup_" + phase + "_at_ms";
+        if (!gauges.containsKey(name))
+            gauges.put(name, (double) (SystemClock.elapsedRealtime() - processStartTime));
+    }
+
+    /**
+     * Increments counter by 1
+     * @param name name of the metric
+     */
+    public static synchronized void incrementCounter(String name) {
+        Long value = counters.get(name);
+        counters.put(name, value == null ? 1 : value + 1);
+    }
+
+    /**
+     * Adds latency sample to the histogram
+     * @param name name of the metric
+     * @param milliseconds latency in ms
+     */
+    public static synchronized void recordLatency(String name, long milliseconds) {
+        // Buckets, count and sum
+        long[] histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new long[latencyBuckets.length + 3];
+            histograms.put(name, histogram);
+        }
+        int bucket = 0;
+        while (bucket < latencyBuckets.length && milliseconds > latencyBuckets[bucket])
+            bucket++;
+        histogram[bucket]++;
+        histogram[latencyBuckets.length + 1]++;
+        histogram[latencyBuckets.length + 2] += milliseconds;
+    }
+
+    /**
+     * @return all metrics as JSON object
+     */
+    public static synchronized JSONObject toJSON() {
+        JSONObject jsonObject = new JSONObject();
+        try {
+            JSONObject gaugesObject = new JSONObject();
+            for (Map.Entry<String, Double> entry : gauges.entrySet())
+                gaugesObject.put(entry.getKey(), entry.getValue());
+            jsonObject.put("gauges", gaugesObject);
+
+            JSONObject countersObject = new JSONObject();
+            for (Map.Entry<String, Long> entry : counters.entrySet())
+                countersObject.put(entry.getKey(), entry.getValue());
+            jsonObject.put("counters", countersObject);
+
+            JSONObject histogramsObject = new JSONObject();
+            for (Map.Entry<String, long[]> entry : histograms.entrySet()) {
+                long[] histogram = entry.getValue();
+                JSONObject histogramObject = new JSONObject();
+                for (int i = 0; i < latencyBuckets.length; i++)
+                    histogramObject.put("le_" + latencyBuckets[i], histogram[i]);
+                histogramObject.put("le_inf", histogram[latencyBuckets.length]);
+                histogramObject.put("count", histogram[latencyBuckets.length + 1]);
+                histogramObject.put("sum", histogram[latencyBuckets.length + 2]);
+                histogramsObject.put(entry.getKey(), histogramObject);
+            }
+            jsonObject.put("histograms", histogramsObject);
+        } catch (Exception ignored) { }
+        return jsonObject;
+    }
+}
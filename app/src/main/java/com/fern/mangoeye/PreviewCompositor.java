@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * This class builds preview frames: downscaled and rotated camera frame, motion mask overlay
+ * and text.
+ * Text is rasterized into cached sprites, so putText runs only when the text changes
+ */
+public class PreviewCompositor {
+    private static final int maxPreviewSize = 640;
+    private static final Scalar diffColor = new Scalar(0, 255, 0, 0);
+
+    private final Mat previewRGBA = new Mat();
+    private final Mat previewRotated = new Mat();
+    private final Mat diffSmall = new Mat();
+    private final Size previewSize = new Size();
+
+    private final TextSprite timestampSprite = new TextSprite(Core.FONT_HERSHEY_PLAIN);
+    private final TextSprite recordingSprite = new TextSprite(Core.FONT_HERSHEY_PLAIN);
+    private final TextSprite warmupSprite = new TextSprite(Core.FONT_HERSHEY_PLAIN);
+    private final TextSprite serverSprite = new TextSprite(Core.FONT_HERSHEY_SIMPLEX);
+
+    /**
+     * Builds preview frame. Input frame is not modified
+     * @param frameRGBA camera frame (camera orientation)
+     * @param degrees clockwise rotation that makes the frame upright
+     * @param diffMask thresholded motion mask (detection resolution, upright)
+     * @param timestampText timestamp text
+     * @param recording true to show recording text
+     * @param warmupText warmup text or null
+     * @param serverText server address text or null
+     * @return preview frame. Valid until the next call
+     */
+    public Mat compose(Mat frameRGBA, int degrees, Mat diffMask, String timestampText, boolean recording,
+                       String warmupText, String serverText) {
+        // Downscale frame to the preview size (copy if it's small enough)
+        double scale = Math.min(1.0,
+                (double) maxPreviewSize / Math.max(frameRGBA.cols(), frameRGBA.rows()));
+        if (scale < 1.0) {
+            previewSize.width = (int) (frameRGBA.cols() * scale);
+            previewSize.height = (int) (frameRGBA.rows() * scale);
+            Imgproc.resize(frameRGBA, previewRGBA, previewSize, 0, 0, Imgproc.INTER_LINEAR);
+        } else
+            frameRGBA.copyTo(previewRGBA);
+
+        // Rotate small frame instead of the camera frame
+        Mat preview = FrameRotation.rotate(previewRGBA, previewRotated, degrees);
+
+        // Highlight changed pixels in green
+        if (!diffMask.empty()) {
+            Imgproc.resize(diffMask, diffSmall, preview.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Core.add(preview, diffColor, preview, diffSmall);
+        }
+
+        // Add text
+        timestampSprite.draw(preview, timestampText, 10, 20);
+        if (recording)
+            recordingSprite.draw(preview, "Recording...", 10, 35);
+        if (warmupText != null)
+            warmupSprite.draw(preview, warmupText, 10, 50);
+        if (serverText != null)
+            serverSprite.draw(preview, serverText, 10, 90);
+
+        return preview;
+    }
+
+    /**
+     * Outlined text rasterized once and copied into frames until the text changes
+     */
+    static class TextSprite {
+        private static final int padding = 2;
+        private static final Scalar backgroundColor = new Scalar(255, 255, 255, 255);
+        private static final Scalar foregroundColor = new Scalar(0, 0, 0, 255);
+        private static final Scalar maskColor = new Scalar(255);
+
+        private final int fontFace;
+        private final int type;
+        private final Mat sprite = new Mat();
+        private final Mat mask = new Mat();
+        private final Mat rotatedSprite = new Mat();
+        private final Mat rotatedMask = new Mat();
+        private int rotatedDegrees;
+        private String text;
+        private int baselineOffset;
+
+        /**
+         * @param fontFace font (Core.FONT_...), scale 1
+         */
+        TextSprite(int fontFace) {
+            this(fontFace, CvType.CV_8UC4);
+        }
+
+        /**
+         * @param fontFace font (Core.FONT_...), scale 1
+         * @param type type of the frames (CvType.CV_8UC4 for RGBA, CvType.CV_8UC1 for Y plane)
+         */
+        TextSprite(int fontFace, int type) {
+            this.fontFace = fontFace;
+            this.type = type;
+        }
+
+        /**
+         * Draws text (same result as putText with outline)
+         * @param target frame of the sprite type
+         * @param text text to draw
+         * @param x left side of the text
+         * @param y baseline of the text
+         */
+        void draw(Mat target, String text, int x, int y) {
+            draw(target, text, x, y, 0);
+        }
+
+        /**
+         * Draws text into frame that will be shown rotated, so the text is upright on display
+         * @param target frame of the sprite type
+         * @param text text to draw
+         * @param x left side of the text (display coordinates)
+         * @param y baseline of the text (display coordinates)
+         * @param degrees clockwise rotation of the frame on display (0, 90, 180 or 270)
+         */
+        void draw(Mat target, String text, int x, int y, int degrees) {
+            if (!text.equals(this.text))
+                render(text);
+            if (degrees != rotatedDegrees) {
+                rotatedDegrees = degrees;
+                FrameRotation.rotate(sprite, rotatedSprite, (360 - degrees) % 360);
+                FrameRotation.rotate(mask, rotatedMask, (360 - degrees) % 360);
+            }
+            Mat spriteRotated = degrees == 0 ? sprite : rotatedSprite;
+            Mat maskRotated = degrees == 0 ? mask : rotatedMask;
+
+            // Map display rectangle of the text to the frame
+            int top = y - baselineOffset;
+            int width = sprite.cols();
+            int height = sprite.rows();
+            int frameWidth = target.cols();
+            int frameHeight = target.rows();
+            int left;
+            if (degrees == 90) {
+                left = top;
+                top = frameHeight - x - width;
+            } else if (degrees == 180) {
+                left = frameWidth - x - width;
+                top = frameHeight - top - height;
+            } else if (degrees == 270) {
+                left = frameWidth - top - height;
+                top = x;
+            } else
+                left = x;
+
+            // Skip text that doesn't fit into the frame
+            if (left < 0 || top < 0 || left + spriteRotated.cols() > frameWidth
+                    || top + spriteRotated.rows() > frameHeight)
+                return;
+
+            Mat targetArea = target.submat(top, top + spriteRotated.rows(),
+                    left, left + spriteRotated.cols());
+            spriteRotated.copyTo(targetArea, maskRotated);
+            targetArea.release();
+        }
+
+        private void render(String text) {
+            int[] baseline = new int[1];
+            Size textSize = Imgproc.getTextSize(text, fontFace, 1, 2, baseline);
+            int width = (int) textSize.width + padding * 2;
+            int height = (int) textSize.height + baseline[0] + padding * 2;
+            baselineOffset = padding + (int) textSize.height;
+            Point origin = new Point(padding, baselineOffset);
+
+            sprite.create(height, width, type);
+            sprite.setTo(Scalar.all(0));
+            Imgproc.putText(sprite, text, origin, fontFace, 1, backgroundColor, 2);
+            Imgproc.putText(sprite, text, origin, fontFace, 1, foregroundColor, 1);
+
+            mask.create(height, width, CvType.CV_8UC1);
+            mask.setTo(Scalar.all(0));
+            Imgproc.putText(mask, text, origin, fontFace, 1, maskColor, 2);
+
+            this.text = text;
+            rotatedDegrees = -1;
+        }
+    }
+}
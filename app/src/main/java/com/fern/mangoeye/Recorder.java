@@ -23,64 +23,141 @@ package com.fern.mangoeye;
 
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
-import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGBA;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_NV21;
 import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
 
-import android.app.Activity;
+import android.content.Context;
 import android.media.AudioRecord;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
-import androidx.core.app.ActivityCompat;
-
-import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.json.JSONObject;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 public class Recorder {
     private final String TAG = this.getClass().getName();
 
-    public static String recordingFileName = "";
+    // Absolute paths of the files that are being recorded (by all cameras)
+    private static final Set<String> recordingFiles = new HashSet<>();
+
+    // Frames that can wait for the encoder. Frames captured while all are queued are dropped
+    private static final int encoderFrames = 2;
 
-    private final Activity activity;
+    private final Context context;
+    private final Handler mainHandler;
     private FFmpegFrameRecorder fFmpegFrameRecorder;
+    private AsyncFileOutputStream outputStream;
     private AudioRecordRunnable audioRecordRunnable;
     private Thread audioThread;
-    private boolean recording = false;
-    private Frame frameYUV = null;
+    private volatile boolean recording = false;
+    private final Executor encoder = EncoderPool.newSerialExecutor();
+    private BlockingQueue<Frame> freeFrames;
+    private volatile boolean encodingFailed;
+    // Time of the first recorded video frame (0 until then). Video and motion metadata
+    // timestamps are relative to it
     private long startTime;
-    private byte[] rgbaBytes;
+    private byte[] nv21Bytes;
+    private File recordingFile;
+    private MotionMetadata motionMetadata;
+    private boolean motionMetadataFailed;
+    private int rotationDegrees;
+    private int frameRotation;
+    private Size scaledSize, scaledChromaSize;
+    private Mat matPlane, matNV21;
+
+    private final File directory;
+    private final String cameraName;
+    private final boolean recordAudio;
+
+    /**
+     * @param context Android context
+     * @param directory directory of the recordings
+     * @param cameraName name of the camera in the web API and events (empty for the main camera)
+     * @param recordAudio true to record audio (microphone can be used only by one recorder)
+     */
+    Recorder(Context context, File directory, String cameraName, boolean recordAudio) {
+        this.context = context;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.directory = directory;
+        this.cameraName = cameraName;
+        this.recordAudio = recordAudio;
+    }
+
+    /**
+     * @param file video file
+     * @return true if the file is being recorded now
+     */
+    public static boolean isRecordingFile(File file) {
+        synchronized (recordingFiles) {
+            return recordingFiles.contains(file.getAbsolutePath());
+        }
+    }
 
-    Recorder(Activity activity) {
-        this.activity = activity;
+    /**
+     * @return true if any camera is recording now
+     */
+    public static boolean isAnyRecording() {
+        synchronized (recordingFiles) {
+            return !recordingFiles.isEmpty();
+        }
     }
 
     /**
      * Starts recording video and audio
+     * @param frameWidth width of the recording in camera orientation
+     *                   (camera frames of other size are scaled)
+     * @param frameHeight height of the recording in camera orientation
+     * @param frameRate frame rate
+     * @param rotationDegrees clockwise rotation that makes camera frame upright.
+     *                        Stored as MP4 rotation metadata (Matroska frames are rotated)
      */
-    public void startRecording(int frameWidth, int frameHeight, int frameRate) {
-        if (activity != null && !activity.isDestroyed() && !activity.isFinishing()) {
-            try {
-                Log.i(TAG, "Starting new recording");
-                initRecorder(frameWidth, frameHeight, frameRate);
-                fFmpegFrameRecorder.start();
-                startTime = System.currentTimeMillis();
-                if (audioThread != null) {
-                    activity.runOnUiThread(() -> audioThread.start());
-                    recording = true;
-                } else
-                    stopRecording();
-            } catch (Exception e) {
-                Log.e(TAG, "Error starting record!", e);
-                activity.runOnUiThread(() -> Toast.makeText(activity, R.string.error_starting_record,
-                        Toast.LENGTH_SHORT).show());
-            }
+    public void startRecording(int frameWidth, int frameHeight, int frameRate,
+                               int rotationDegrees) {
+        try {
+            Log.i(TAG, "Starting new recording");
+
+            // FFmpeg is loaded lazily. Wait for it if it's still loading
+            if (!NativeLibraries.awaitFFmpeg())
+                throw new Exception("FFmpeg libraries not loaded");
+
+            this.rotationDegrees = rotationDegrees;
+            initRecorder(frameWidth, frameHeight, frameRate);
+            fFmpegFrameRecorder.start();
+            startTime = 0;
+            encodingFailed = false;
+            if (audioThread != null || (!recordAudio && recordingFile != null)) {
+                if (audioThread != null)
+                    audioThread.start();
+                recording = true;
+                broadcastRecordingState(true, recordingFile.getName());
+            } else
+                stopRecording();
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting record!", e);
+            showToast(R.string.error_starting_record, Toast.LENGTH_SHORT);
+            if (!recording)
+                stopRecording();
         }
     }
 
@@ -101,70 +178,267 @@ public class Recorder {
         audioThread = null;
 
         // Stop recorder
+        boolean finishFailed = false;
         if (fFmpegFrameRecorder != null && recording) {
             Log.i(TAG, "Finishing recording");
+            awaitEncoder();
             try {
                 //fFmpegFrameRecorder.flush();
                 fFmpegFrameRecorder.stop();
                 fFmpegFrameRecorder.release();
-                //outputStream.flush();
-                //outputStream.close();
+                outputStream.close();
             } catch (Exception e) {
                 Log.e(TAG, "Error finishing record!", e);
-                activity.runOnUiThread(
-                        () -> Toast.makeText(activity, R.string.error_finishing_record,
-                                Toast.LENGTH_SHORT).show());
+                showToast(R.string.error_finishing_record, Toast.LENGTH_SHORT);
+                finishFailed = true;
             }
             fFmpegFrameRecorder = null;
-            frameYUV = null;
+            freeFrames = null;
+        }
+        // Close file of the recording that failed to start
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing record file!", e);
+                finishFailed = true;
+            }
+            outputStream = null;
+        }
+        // Close motion metadata
+        if (motionMetadata != null)
+            motionMetadata.close();
+        motionMetadata = null;
+        motionMetadataFailed = false;
+
+        // Notify web clients about finished recording
+        File finishedFile = recordingFile;
+        if (recording && finishedFile != null) {
+            broadcastRecordingState(false, finishedFile.getName());
+            BackgroundTasks.execute(() -> WebServer.broadcastRecording(finishedFile, cameraName));
+
+            // Replicate finished recording off the device (not if the file is broken)
+            if (!finishFailed) {
+                UploadQueue.enqueue(finishedFile);
+                UploadQueue.enqueue(MotionMetadata.getFile(finishedFile));
+            }
         }
+        if (finishedFile != null) {
+            synchronized (recordingFiles) {
+                recordingFiles.remove(finishedFile.getAbsolutePath());
+            }
+
+            // Move from the fast tier to the storage (broken file stays where it was written)
+            if (finishFailed)
+                Log.w(TAG, "Not moving " + finishedFile.getName() + ", writing failed");
+            else {
+                StorageTiers.move(finishedFile);
+                StorageTiers.move(MotionMetadata.getFile(finishedFile));
+            }
+        }
+        recordingFile = null;
+
         Log.i(TAG, "Recording finished");
         recording = false;
-        recordingFileName = "";
     }
 
-    public void recordRGBAMat(Mat mat) {
+    /**
+     * Sends recording started / stopped event to the web clients
+     * @param recording true if recording started
+     * @param fileName name of the recording file
+     */
+    private void broadcastRecordingState(boolean recording, String fileName) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("recording", recording);
+            event.put("filename", fileName);
+            event.put("camera", cameraName);
+            EventBroadcaster.broadcast("recording", event);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending recording event!", e);
+        }
+    }
+
+    /**
+     * Copies frame on the calling thread and queues it for the encoder threads.
+     * The encoder takes NV21 as is, so there is no color conversion
+     * @param yuv NV21 frame of the camera (Y plane, then interleaved VU plane)
+     */
+    public void recordNV21Mat(Mat yuv) {
+        // Stop recording if the encoder failed
+        if (encodingFailed) {
+            stopRecording();
+            return;
+        }
+
         // Check if audio is recording
-        if(audioRecordRunnable.getAudioRecord() == null
+        if (recordAudio && (audioRecordRunnable == null
+                || audioRecordRunnable.getAudioRecord() == null
                 || audioRecordRunnable.getAudioRecord().getRecordingState()
-                != AudioRecord.RECORDSTATE_RECORDING) {
-            startTime = System.currentTimeMillis();
+                != AudioRecord.RECORDSTATE_RECORDING)) {
             return;
         }
 
-        // Convert to byte byte array and frame
-        mat.get(0, 0, rgbaBytes);
-        ((ByteBuffer) frameYUV.image[0].position(0)).put(rgbaBytes);
+        // Scale to the recording size (reduced by the performance governor) and rotate
+        // plane by plane
+        int width = yuv.cols();
+        int height = yuv.rows() * 2 / 3;
+        if (width != (int) scaledSize.width || height != (int) scaledSize.height
+                || frameRotation != 0) {
+            int recordingHeight = matNV21.rows() * 2 / 3;
+            transformPlane(yuv.submat(0, height, 0, width),
+                    matNV21.submat(0, recordingHeight, 0, matNV21.cols()), 1, scaledSize);
+            transformPlane(yuv.submat(height, yuv.rows(), 0, width),
+                    matNV21.submat(recordingHeight, matNV21.rows(), 0, matNV21.cols()),
+                    2, scaledChromaSize);
+            yuv = matNV21;
+        }
+
+        // Drop the frame if the encoder is still busy with the previous ones
+        BlockingQueue<Frame> frames = freeFrames;
+        Frame frame = frames.poll();
+        if (frame == null) {
+            PerformanceMetrics.incrementCounter("recording_dropped_frames");
+            return;
+        }
+
+        // Copy to byte array and frame
+        yuv.get(0, 0, nv21Bytes);
+        ((ByteBuffer) frame.image[0].position(0)).put(nv21Bytes);
+
+        // Video starts with the first recorded frame. Timestamp is taken at capture time
+        if (startTime == 0)
+            startTime = System.currentTimeMillis();
+        long t = 1000 * (System.currentTimeMillis() - startTime);
+
+        // Record frame on the encoder thread
+        FFmpegFrameRecorder frameRecorder = fFmpegFrameRecorder;
+        encoder.execute(() -> {
+            try {
+                if (encodingFailed)
+                    return;
+                if (t > frameRecorder.getTimestamp())
+                    frameRecorder.setTimestamp(t);
+                frameRecorder.record(frame, AV_PIX_FMT_NV21);
+            }
+            // Recording is stopped by the camera thread on the next frame
+            catch (FFmpegFrameRecorder.Exception e) {
+                Log.e(TAG, "Error recording frame!", e);
+                showToast(R.string.error_recording_frame, Toast.LENGTH_SHORT);
+                encodingFailed = true;
+            } finally {
+                frames.add(frame);
+            }
+        });
+    }
+
+    /**
+     * Scales plane of the NV21 frame to the recording size and rotates it into matNV21
+     * @param src plane of the camera frame (header is released)
+     * @param dst plane of matNV21 (header is released)
+     * @param channels 1 for Y plane, 2 for interleaved VU plane
+     * @param size size of the scaled plane before rotation
+     */
+    private void transformPlane(Mat src, Mat dst, int channels, Size size) {
+        Mat srcPlane = src.reshape(channels, src.rows());
+        Mat dstPlane = dst.reshape(channels, dst.rows());
+        Mat scaled = srcPlane;
+        if (srcPlane.cols() != (int) size.width || srcPlane.rows() != (int) size.height) {
+            Imgproc.resize(srcPlane, matPlane, size, 0, 0, Imgproc.INTER_AREA);
+            scaled = matPlane;
+        }
+        if (FrameRotation.rotate(scaled, dstPlane, frameRotation) == scaled)
+            scaled.copyTo(dstPlane);
+        srcPlane.release();
+        dstPlane.release();
+        src.release();
+        dst.release();
+    }
 
+    /**
+     * Waits until the encoder threads finish frames queued by this recorder
+     */
+    private void awaitEncoder() {
+        CountDownLatch latch = new CountDownLatch(1);
+        encoder.execute(latch::countDown);
         try {
-            // Record frame
-            long t = 1000 * (System.currentTimeMillis() - startTime);
-            if(t > fFmpegFrameRecorder.getTimestamp()) {
-                fFmpegFrameRecorder.setTimestamp(t);
+            latch.await();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for encoder!", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes motion metadata of the current frame to the sidecar file of the recording
+     * @param score share of changed pixels (0-255)
+     * @param reason MotionMetadata.REASON_... flags
+     * @param blobs blob boxes
+     * @param tracks visible tracks of the motion tracker
+     * @param maskWidth width of the mask the blob boxes refer to
+     * @param maskHeight height of the mask the blob boxes refer to
+     */
+    public void recordMotion(int score, int reason, List<Rect> blobs,
+                             List<MotionTracker.Track> tracks, int maskWidth, int maskHeight) {
+        if (!recording || recordingFile == null || motionMetadataFailed)
+            return;
+
+        // Create sidecar file on the first frame
+        if (motionMetadata == null) {
+            try {
+                motionMetadata = new MotionMetadata(MotionMetadata.getFile(recordingFile),
+                        maskWidth, maskHeight);
+            } catch (Exception e) {
+                Log.e(TAG, "Error creating motion metadata file!", e);
+                motionMetadataFailed = true;
+                return;
             }
-            fFmpegFrameRecorder.record(frameYUV, AV_PIX_FMT_RGBA);
-            //recorder.flush();
-        }
-        // Stop recording on error
-        catch(FFmpegFrameRecorder.Exception e) {
-            Log.e(TAG, "Error recording frame!", e);
-            activity.runOnUiThread(() ->
-                    Toast.makeText(activity, R.string.error_recording_frame,
-                            Toast.LENGTH_SHORT).show());
-            stopRecording();
         }
+
+        // Frames before the first video frame are stored at the start of the video
+        long time = startTime == 0 ? 0 : System.currentTimeMillis() - startTime;
+        motionMetadata.addFrame(time, score, reason, blobs, tracks);
     }
 
     public boolean isRecording() {
         return recording;
     }
 
-    private void initRecorder(int frameWidth, int frameHeight, int frameRate) {
+    /**
+     * @return clockwise rotation of the current recording on display
+     */
+    public int getRotationDegrees() {
+        return rotationDegrees;
+    }
+
+    private void initRecorder(int frameWidth, int frameHeight, int frameRate)
+            throws IOException {
         Log.w(TAG, "init recorder");
 
-        frameYUV = new Frame(frameWidth, frameHeight, Frame.DEPTH_UBYTE, 4);
-        rgbaBytes = new byte[frameWidth * frameHeight * 4];
-        Log.i(TAG, "frameYUV created");
+        // MP4 keeps camera orientation and stores rotation in the display matrix.
+        // Matroska muxer can't store rotation, so frames are rotated before encoding
+        boolean rotationMetadata = !SettingsContainer.videoFormat.equals("mkv");
+        frameRotation = rotationMetadata ? 0 : rotationDegrees;
+        scaledSize = new Size(frameWidth, frameHeight);
+        scaledChromaSize = new Size(frameWidth / 2, frameHeight / 2);
+
+        // Recorder is created before OpenCV is loaded
+        if (matNV21 == null) {
+            matPlane = new Mat();
+            matNV21 = new Mat();
+        }
+        if (frameRotation == 90 || frameRotation == 270) {
+            int width = frameWidth;
+            frameWidth = frameHeight;
+            frameHeight = width;
+        }
+
+        freeFrames = new ArrayBlockingQueue<>(encoderFrames);
+        for (int i = 0; i < encoderFrames; i++)
+            freeFrames.add(new Frame(frameWidth, frameHeight, Frame.DEPTH_UBYTE, 2));
+        nv21Bytes = new byte[frameWidth * frameHeight * 3 / 2];
+        matNV21.create(frameHeight * 3 / 2, frameWidth, CvType.CV_8UC1);
+        Log.i(TAG, "Encoder frames created");
 
         File file = getNewFile();
         if (file == null)
@@ -172,10 +446,17 @@ public class Recorder {
 
         Log.i(TAG, "Writing to file: " + file.getAbsolutePath());
 
-        recordingFileName = file.getName();
+        recordingFile = file;
+        synchronized (recordingFiles) {
+            recordingFiles.add(file.getAbsolutePath());
+        }
 
-        fFmpegFrameRecorder =
-                new FFmpegFrameRecorder(file, frameWidth, frameHeight, 1);
+        // Write through the writer thread, so storage stalls don't block the encoder
+        outputStream = new AsyncFileOutputStream(file,
+                SettingsContainer.getSnapshot().writeSyncInterval * 1000L,
+                RecordingCipher.isEnabled());
+        fFmpegFrameRecorder = new FFmpegFrameRecorder(outputStream,
+                frameWidth, frameHeight, recordAudio ? 1 : 0);
 
         if (SettingsContainer.videoFormat.equals("mkv"))
             fFmpegFrameRecorder.setFormat("matroska");
@@ -188,11 +469,15 @@ public class Recorder {
         fFmpegFrameRecorder.setVideoOption("preset", "ultrafast");
 
         fFmpegFrameRecorder.setVideoQuality(0);
-        fFmpegFrameRecorder.setVideoBitrate(2000 * 1024);
+        fFmpegFrameRecorder.setVideoBitrate(SettingsContainer.getSnapshot().videoBitrate * 1024);
         fFmpegFrameRecorder.setFrameRate(frameRate);
+        if (rotationMetadata && rotationDegrees != 0)
+            fFmpegFrameRecorder.setVideoMetadata("rotate", String.valueOf(rotationDegrees));
 
-        audioRecordRunnable = new AudioRecordRunnable(fFmpegFrameRecorder, 22050);
-        audioThread = new Thread(audioRecordRunnable);
+        if (recordAudio) {
+            audioRecordRunnable = new AudioRecordRunnable(fFmpegFrameRecorder, 22050);
+            audioThread = new Thread(audioRecordRunnable);
+        }
 
         Log.i(TAG, "Recorder initialize success");
     }
@@ -204,8 +489,11 @@ public class Recorder {
                     new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss", Locale.US);
             String newFileName = simpleDateFormat.format(System.currentTimeMillis());
 
-            File newFile = new File(SettingsContainer.externalFilesDir
-                    + "/" + newFileName + "." + SettingsContainer.videoFormat);
+            File recordingDirectory = StorageTiers.getRecordingDirectory(directory);
+            if (!recordingDirectory.exists() && !recordingDirectory.mkdirs())
+                throw new Exception("Unable to create directory");
+            File newFile = new File(recordingDirectory,
+                    newFileName + "." + SettingsContainer.videoFormat);
 
             // Replace if file exists
             if (newFile.exists())
@@ -216,12 +504,17 @@ public class Recorder {
 
         } catch (Exception e) {
             Log.e(TAG, "Error creating new file!", e);
-            activity.runOnUiThread(() ->
-                    Toast.makeText(activity, R.string.error_creating_new_file,
-                            Toast.LENGTH_LONG).show());
-            ActivityCompat.finishAffinity(activity);
-            //System.exit(0);
+            showToast(R.string.error_creating_new_file, Toast.LENGTH_LONG);
         }
         return null;
     }
+
+    /**
+     * Shows toast message from any thread
+     * @param resId string resource ID
+     * @param duration Toast.LENGTH_SHORT or Toast.LENGTH_LONG
+     */
+    private void showToast(int resId, int duration) {
+        mainHandler.post(() -> Toast.makeText(context, resId, duration).show());
+    }
 }
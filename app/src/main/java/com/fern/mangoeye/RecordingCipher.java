@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class encrypts recordings at rest with AES-CTR. Any byte of the file can be
+ * encrypted or decrypted without processing the bytes before it, so files are encrypted
+ * while they are written and served with range requests without decrypting the whole file.
+ * Encrypted file: 32 byte header (magic, version, random IV), then encrypted data.
+ * The key file is wrapped with a key of AndroidKeyStore on Android 6+. Older versions
+ * have no usable key store, so there the key is stored as is in the internal app storage
+ * (readable on a rooted device)
+ */
+public class RecordingCipher {
+    private static final String TAG = RecordingCipher.class.getName();
+
+    public static final int HEADER_SIZE = 32;
+    private static final byte[] magic = {'M', 'E', 'Y', 'E'};
+    private static final byte version = 1;
+    private static final int blockSize = 16;
+    private static final int keySize = 32;
+    private static final String keyFileName = "recording.key";
+    private static final String keyStoreName = "AndroidKeyStore";
+    private static final String keyStoreAlias = "recording_key_wrapper";
+    private static final String wrapTransformation = "AES/GCM/NoPadding";
+    private static final byte wrappedKeyMagic = 'W';
+    private static final int wrapTagBits = 128;
+    private static final String transformation = "AES/CTR/NoPadding";
+    private static final int benchmarkSize = 4 * 1024 * 1024;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static volatile SecretKeySpec key;
+    private static volatile File keyFile;
+
+    /**
+     * Loads the key (creates new one if encryption is enabled). The key is kept in the
+     * internal app storage, never on the recordings storage
+     * @param context Android context
+     */
+    public static void init(Context context) {
+        keyFile = new File(context.getFilesDir(), keyFileName);
+        if (!loadKey(SettingsContainer.getSnapshot().encryptRecordings))
+            return;
+
+        // Measure cost of encryption against plain copying
+        BackgroundTasks.execute(RecordingCipher::benchmark);
+    }
+
+    /**
+     * Loads the key from the key file
+     * @param create true to create new key if there is no key file
+     * @return true if the key is loaded
+     */
+    private static synchronized boolean loadKey(boolean create) {
+        if (key != null)
+            return true;
+        if (keyFile == null)
+            return false;
+        try {
+            byte[] keyBytes;
+            if (keyFile.exists()) {
+                byte[] fileBytes = new byte[(int) Math.min(keyFile.length(), 1024)];
+                try (FileInputStream inputStream = new FileInputStream(keyFile)) {
+                    if (inputStream.read(fileBytes) != fileBytes.length)
+                        throw new IOException("Unable to read key file");
+                }
+                if (fileBytes.length == keySize) {
+                    // Plain key of the older version. Wrap it if the key store is available
+                    keyBytes = fileBytes;
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                        writeKeyFile(keyBytes);
+                } else if (fileBytes.length > 2 && fileBytes[0] == wrappedKeyMagic
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                    keyBytes = unwrapKey(fileBytes);
+                else
+                    throw new IOException("Invalid key file");
+            } else if (create) {
+                keyBytes = new byte[keySize];
+                secureRandom.nextBytes(keyBytes);
+                writeKeyFile(keyBytes);
+                Log.i(TAG, "Created recording key");
+            } else
+                return false;
+            key = new SecretKeySpec(keyBytes, "AES");
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading recording key!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the key file (wrapped with the key store key on Android 6+)
+     * @param keyBytes recording key
+     */
+    private static void writeKeyFile(byte[] keyBytes) throws IOException {
+        byte[] fileBytes = keyBytes;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                fileBytes = wrapKey(keyBytes);
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, "Unable to wrap recording key, storing it as is!", e);
+            }
+        }
+
+        // Replace the file atomically, so the key can't be lost
+        File temporary = new File(keyFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            outputStream.write(fileBytes);
+            outputStream.getFD().sync();
+        }
+        if (!temporary.renameTo(keyFile))
+            throw new IOException("Unable to replace key file");
+    }
+
+    /**
+     * @return key store key that wraps the recording key (created on the first call)
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getWrappingKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(keyStoreName);
+        keyStore.load(null);
+        Key wrappingKey = keyStore.getKey(keyStoreAlias, null);
+        if (wrappingKey instanceof SecretKey)
+            return (SecretKey) wrappingKey;
+        KeyGenerator keyGenerator =
+                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, keyStoreName);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(keyStoreAlias,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    /**
+     * @param keyBytes recording key
+     * @return key file: magic, IV length, IV, encrypted key
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static byte[] wrapKey(byte[] keyBytes) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(wrapTransformation);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, getWrappingKey());
+        } catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+        byte[] wrapIV = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(keyBytes);
+        byte[] fileBytes = new byte[2 + wrapIV.length + encrypted.length];
+        fileBytes[0] = wrappedKeyMagic;
+        fileBytes[1] = (byte) wrapIV.length;
+        System.arraycopy(wrapIV, 0, fileBytes, 2, wrapIV.length);
+        System.arraycopy(encrypted, 0, fileBytes, 2 + wrapIV.length, encrypted.length);
+        return fileBytes;
+    }
+
+    /**
+     * @param fileBytes key file written by wrapKey()
+     * @return recording key
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static byte[] unwrapKey(byte[] fileBytes) throws GeneralSecurityException,
+            IOException {
+        int wrapIVLength = fileBytes[1] & 0xFF;
+        if (fileBytes.length <= 2 + wrapIVLength)
+            throw new IOException("Invalid key file");
+        Cipher cipher = Cipher.getInstance(wrapTransformation);
+        cipher.init(Cipher.DECRYPT_MODE, getWrappingKey(),
+                new GCMParameterSpec(wrapTagBits, fileBytes, 2, wrapIVLength));
+        byte[] keyBytes = cipher.doFinal(fileBytes, 2 + wrapIVLength,
+                fileBytes.length - 2 - wrapIVLength);
+        if (keyBytes.length != keySize)
+            throw new IOException("Invalid key file");
+        return keyBytes;
+    }
+
+    /**
+     * Uses the key without the key file (for tests)
+     * @param keyBytes recording key
+     */
+    static void setKey(byte[] keyBytes) {
+        key = new SecretKeySpec(keyBytes, "AES");
+    }
+
+    /**
+     * @return true if new recordings should be encrypted. The key is created when
+     * encryption is enabled in the live settings
+     */
+    public static boolean isEnabled() {
+        return SettingsContainer.getSnapshot().encryptRecordings
+                && (key != null || loadKey(true));
+    }
+
+    /**
+     * @return random IV for a new file
+     */
+    static byte[] newIV() {
+        byte[] iv = new byte[blockSize];
+        secureRandom.nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * @param iv IV of the file
+     * @return header of the encrypted file
+     */
+    static byte[] createHeader(byte[] iv) {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(magic, 0, header, 0, magic.length);
+        header[magic.length] = version;
+        System.arraycopy(iv, 0, header, HEADER_SIZE - blockSize, blockSize);
+        return header;
+    }
+
+    /**
+     * Encrypts or decrypts data in place
+     * @param iv IV of the file
+     * @param position position of the data (without header)
+     * @param data data
+     * @param offset offset in the data array
+     * @param length length of the data
+     */
+    static void crypt(byte[] iv, long position, byte[] data, int offset, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = createCipher(iv, position);
+        cipher.update(data, offset, length, data, offset);
+    }
+
+    /**
+     * Encrypts or decrypts remaining bytes of the input buffer into the output buffer
+     * @param iv IV of the file
+     * @param position position of the data (without header)
+     * @param input data (position is moved to the limit)
+     * @param output buffer for the result (must be other buffer with enough space)
+     */
+    static void crypt(byte[] iv, long position, ByteBuffer input, ByteBuffer output)
+            throws GeneralSecurityException {
+        Cipher cipher = createCipher(iv, position);
+        cipher.update(input, output);
+    }
+
+    /**
+     * @param file recording
+     * @return true if the file is encrypted
+     */
+    public static boolean isEncrypted(File file) {
+        byte[] header = new byte[magic.length];
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            return inputStream.read(header) == header.length && Arrays.equals(header, magic);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file recording (encrypted or not)
+     * @return length of the plain data
+     */
+    public static long getLength(File file) {
+        return isEncrypted(file) ? Math.max(0, file.length() - HEADER_SIZE) : file.length();
+    }
+
+    /**
+     * Opens recording for reading plain data
+     * @param file recording (encrypted or not)
+     * @param position start position in the plain data
+     * @return input stream. Supports mark / reset, so FFmpeg can seek in it
+     */
+    public static InputStream openInputStream(File file, long position) throws IOException {
+        if (!isEncrypted(file)) {
+            InputStream inputStream = new FileInputStream(file);
+            long skipped = 0;
+            while (skipped < position) {
+                long count = inputStream.skip(position - skipped);
+                if (count <= 0)
+                    break;
+                skipped += count;
+            }
+            return inputStream;
+        }
+        if (key == null)
+            throw new IOException("No key for encrypted recording " + file.getName());
+        DecryptingInputStream inputStream = new DecryptingInputStream(file);
+        inputStream.seek(position);
+        return inputStream;
+    }
+
+    /**
+     * Creates grabber that reads plain data of the recording
+     * @param file recording (encrypted or not)
+     * @return FFmpeg grabber (not started)
+     */
+    public static FFmpegFrameGrabber createGrabber(File file) throws IOException {
+        if (!isEncrypted(file))
+            return new FFmpegFrameGrabber(file);
+        return new FFmpegFrameGrabber(openInputStream(file, 0));
+    }
+
+    private static Cipher createCipher(byte[] iv, long position)
+            throws GeneralSecurityException {
+        // Counter of the block = IV + block index (128-bit big-endian)
+        byte[] counter = iv.clone();
+        long carry = position / blockSize;
+        for (int i = blockSize - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+
+        // Skip to the position inside the block
+        int blockOffset = (int) (position % blockSize);
+        if (blockOffset > 0)
+            cipher.update(new byte[blockOffset]);
+        return cipher;
+    }
+
+    private static void benchmark() {
+        try {
+            byte[] data = new byte[benchmarkSize];
+            byte[] copy = new byte[benchmarkSize];
+            byte[] iv = newIV();
+
+            long startTime = System.nanoTime();
+            System.arraycopy(data, 0, copy, 0, benchmarkSize);
+            long copyTime = Math.max(1, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            crypt(iv, 0, data, 0, benchmarkSize);
+            long cryptTime = Math.max(1, System.nanoTime() - startTime);
+
+            PerformanceMetrics.setGauge("cipher_copy_mbps",
+                    benchmarkSize * 1000.0 / copyTime);
+            PerformanceMetrics.setGauge("cipher_encrypt_mbps",
+                    benchmarkSize * 1000.0 / cryptTime);
+            Log.i(TAG, "Encryption: " + benchmarkSize * 1000L / cryptTime + " MB/s, copy: "
+                    + benchmarkSize * 1000L / copyTime + " MB/s");
+        } catch (Exception e) {
+            Log.e(TAG, "Error measuring encryption speed!", e);
+        }
+    }
+
+    /**
+     * Decrypts file while reading. Seeking restarts the cipher at the new position
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private final RandomAccessFile randomAccessFile;
+        private final byte[] iv = new byte[blockSize];
+        private final long length;
+        private Cipher cipher;
+        private long position;
+        private long markPosition;
+
+        DecryptingInputStream(File file) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            randomAccessFile.seek(HEADER_SIZE - blockSize);
+            randomAccessFile.readFully(iv);
+            length = Math.max(0, randomAccessFile.length() - HEADER_SIZE);
+        }
+
+        void seek(long newPosition) throws IOException {
+            position = Math.max(0, Math.min(length, newPosition));
+            randomAccessFile.seek(HEADER_SIZE + position);
+            try {
+                cipher = createCipher(iv, position);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = randomAccessFile.read(b, off, len);
+            if (count <= 0)
+                return count;
+            try {
+                cipher.update(b, off, count, b, off);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Clamp before adding, so skip(Long.MAX_VALUE) doesn't overflow
+            long count = Math.min(Math.max(0, n), length - position);
+            if (count <= 0)
+                return 0;
+            seek(position + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            markPosition = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            seek(markPosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            randomAccessFile.close();
+        }
+    }
+}
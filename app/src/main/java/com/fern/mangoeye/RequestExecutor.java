@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs blocking request handlers on a bounded worker pool, so the server
+ * thread only does non-blocking I/O. Requests are rejected with 503 if the queue is full
+ * or if they waited in the queue for too long
+ */
+public class RequestExecutor {
+    private static final String TAG = RequestExecutor.class.getName();
+
+    private static final int workerThreads = 3;
+    private static final int maxQueuedRequests = 16;
+    private static final long queueTimeout = 10000;
+    private static final int retryAfterSeconds = 5;
+
+    private static final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+            workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxQueuedRequests),
+            runnable -> new Thread(runnable, "RequestWorker"));
+
+    // Response of the handler running on the worker and whether it was sent (or started)
+    private static final ThreadLocal<AsyncHttpServerResponse> handlerResponse =
+            new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> handlerResponseSent = new ThreadLocal<>();
+
+    /**
+     * Request handler that can block
+     */
+    public interface BlockingHandler {
+        /**
+         * Calls on the worker thread. Responses must be sent with RequestExecutor.send...
+         * @param request server request
+         * @param response server response
+         */
+        void handle(AsyncHttpServerRequest request, AsyncHttpServerResponse response)
+                throws Exception;
+    }
+
+    /**
+     * Wraps blocking handler into server callback
+     * @param route name of the route (for latency metrics)
+     * @param blockingHandler handler to run on the worker pool
+     * @return server callback
+     */
+    public static HttpServerRequestCallback wrap(String route, BlockingHandler blockingHandler) {
+        return (request, response) -> {
+            long receivedTime = SystemClock.elapsedRealtime();
+            try {
+                threadPoolExecutor.execute(() -> {
+                    // Client has probably given up already
+                    if (SystemClock.elapsedRealtime() - receivedTime > queueTimeout) {
+                        PerformanceMetrics.incrementCounter("http_timed_out");
+                        sendUnavailable(response);
+                        return;
+                    }
+
+                    handlerResponse.set(response);
+                    handlerResponseSent.set(false);
+                    try {
+                        blockingHandler.handle(request, response);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error handling " + request.getPath(), e);
+                        // Response may be sent or streaming already
+                        if (!handlerResponseSent.get())
+                            send(response, 500, "text/plain", "");
+                    } finally {
+                        handlerResponse.remove();
+                        handlerResponseSent.remove();
+                    }
+                    PerformanceMetrics.recordLatency("http_" + route + "_ms",
+                            SystemClock.elapsedRealtime() - receivedTime);
+                });
+            } catch (RejectedExecutionException e) {
+                // Overloaded
+                PerformanceMetrics.incrementCounter("http_rejected");
+                sendUnavailable(response);
+            }
+            PerformanceMetrics.setGauge("http_queued_requests",
+                    threadPoolExecutor.getQueue().size());
+        };
+    }
+
+    /**
+     * Runs response action on the server thread. Marks the response as sent, so a handler
+     * that fails after this doesn't send error response
+     * @param response server response
+     * @param action action that sends or starts the response
+     */
+    public static void post(AsyncHttpServerResponse response, Runnable action) {
+        if (handlerResponse.get() == response)
+            handlerResponseSent.set(true);
+        response.getServer().post(action);
+    }
+
+    /**
+     * Changes number of worker threads (running requests are not interrupted)
+     * @param threads number of worker threads (1..workerThreads)
+     */
+    public static synchronized void setWorkerThreads(int threads) {
+        threads = Math.max(1, Math.min(workerThreads, threads));
+
+        // Core size can't exceed maximum size
+        if (threads < threadPoolExecutor.getCorePoolSize()) {
+            threadPoolExecutor.setCorePoolSize(threads);
+            threadPoolExecutor.setMaximumPoolSize(threads);
+        } else {
+            threadPoolExecutor.setMaximumPoolSize(threads);
+            threadPoolExecutor.setCorePoolSize(threads);
+        }
+        PerformanceMetrics.setGauge("http_worker_threads", threads);
+    }
+
+    /**
+     * Sends response from any thread
+     * @param response server response
+     * @param code HTTP code
+     * @param contentType content type
+     * @param body response body
+     */
+    public static void send(AsyncHttpServerResponse response, int code,
+                            String contentType, String body) {
+        post(response, () -> {
+            response.code(code);
+            response.send(contentType, body);
+        });
+    }
+
+    /**
+     * Sends response from any thread
+     * @param response server response
+     * @param code HTTP code
+     * @param contentType content type
+     * @param body response body
+     */
+    public static void send(AsyncHttpServerResponse response, int code,
+                            String contentType, byte[] body) {
+        post(response, () -> {
+            response.code(code);
+            response.send(contentType, body);
+        });
+    }
+
+    /**
+     * Sends 503 with Retry-After from any thread
+     * @param response server response
+     */
+    public static void sendUnavailable(AsyncHttpServerResponse response) {
+        response.getServer().post(() -> {
+            response.getHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+            response.code(503);
+            response.send("text/plain", "Server is busy");
+        });
+    }
+}
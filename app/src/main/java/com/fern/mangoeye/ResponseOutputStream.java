@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class streams data written from a worker thread into the server response
+ * (chunked transfer encoding). Chunks are queued on the server thread and written
+ * when the socket accepts data. The worker blocks while too many chunks are not sent yet,
+ * so a slow client slows down the producer instead of losing data.
+ * Code and headers are sent only with the first chunk, so a producer that fails
+ * before writing anything can still send an error with abort()
+ */
+public class ResponseOutputStream extends OutputStream {
+    private static final int chunkSize = 64 * 1024;
+    private static final int maxPendingChunks = 8;
+
+    private final AsyncHttpServerResponse response;
+    private final Runnable startResponse;
+    private final Semaphore pendingChunksPermits = new Semaphore(maxPendingChunks);
+    private final byte[] buffer = new byte[chunkSize];
+    private int bufferPosition;
+    private volatile boolean responseClosed;
+    private boolean streamClosed, started;
+
+    // Accessed only on the server thread
+    private final ArrayDeque<ByteBufferList> pendingChunks = new ArrayDeque<>();
+    private boolean finished, ended, headersSent;
+
+    /**
+     * @param response server response
+     * @param startResponse sets code and headers. Runs on the server thread before
+     *                      the first chunk
+     */
+    ResponseOutputStream(AsyncHttpServerResponse response, Runnable startResponse) {
+        this.response = response;
+        this.startResponse = startResponse;
+        response.getServer().post(() -> {
+            response.setWriteableCallback(this::drain);
+            response.setClosedCallback(ex -> onClosed());
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (bufferPosition == buffer.length)
+            flush();
+        buffer[bufferPosition++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (bufferPosition == buffer.length)
+                flush();
+            int length = Math.min(len, buffer.length - bufferPosition);
+            System.arraycopy(b, off, buffer, bufferPosition, length);
+            bufferPosition += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (responseClosed)
+            throw new IOException("Connection closed");
+        if (bufferPosition == 0)
+            return;
+
+        // Wait for the server thread if there are too many chunks not sent yet
+        try {
+            pendingChunksPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        if (responseClosed) {
+            pendingChunksPermits.release();
+            throw new IOException("Connection closed");
+        }
+
+        start();
+        ByteBuffer byteBuffer = ByteBufferList.obtain(bufferPosition);
+        byteBuffer.put(buffer, 0, bufferPosition).flip();
+        bufferPosition = 0;
+        response.getServer().post(() -> {
+            if (responseClosed) {
+                ByteBufferList.reclaim(byteBuffer);
+                pendingChunksPermits.release();
+                return;
+            }
+            pendingChunks.add(new ByteBufferList(byteBuffer));
+            drain();
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (streamClosed)
+            return;
+        streamClosed = true;
+        try {
+            flush();
+        } finally {
+            // Empty body
+            start();
+            response.getServer().post(() -> {
+                finished = true;
+                drain();
+            });
+        }
+    }
+
+    /**
+     * Fails the response instead of ending it: sends 500 if nothing is sent yet or closes
+     * the connection, so the client doesn't take a truncated body as complete
+     */
+    public void abort() {
+        if (streamClosed)
+            return;
+        streamClosed = true;
+        response.getServer().post(() -> {
+            if (ended || responseClosed)
+                return;
+            ended = true;
+            for (ByteBufferList chunk : pendingChunks) {
+                chunk.recycle();
+                pendingChunksPermits.release();
+            }
+            pendingChunks.clear();
+            if (headersSent)
+                response.getSocket().close();
+            else {
+                response.code(500);
+                response.send("text/plain", "");
+            }
+        });
+    }
+
+    /**
+     * Posts code and headers before the first chunk. Worker thread
+     */
+    private void start() {
+        if (started)
+            return;
+        started = true;
+        response.getServer().post(() -> {
+            if (responseClosed)
+                return;
+            headersSent = true;
+            startResponse.run();
+        });
+    }
+
+    /**
+     * Writes queued chunks until the socket stops accepting data. Server thread.
+     * Permit is released only after the whole chunk is written
+     */
+    private void drain() {
+        if (responseClosed || ended)
+            return;
+        while (!pendingChunks.isEmpty()) {
+            ByteBufferList chunk = pendingChunks.peek();
+            response.write(chunk);
+            if (chunk.remaining() > 0)
+                return;
+            pendingChunks.poll();
+            pendingChunksPermits.release();
+        }
+        if (finished) {
+            ended = true;
+            response.end();
+        }
+    }
+
+    /**
+     * Drops queued chunks and wakes up the worker when the client disconnects. Server thread
+     */
+    private void onClosed() {
+        responseClosed = true;
+        for (ByteBufferList chunk : pendingChunks) {
+            chunk.recycle();
+            pendingChunksPermits.release();
+        }
+        pendingChunks.clear();
+    }
+}
@@ -40,6 +40,7 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.google.android.material.slider.Slider;
 
+import org.json.JSONObject;
 import org.opencv.android.CameraBridgeViewBase;
 
 import java.io.File;
@@ -55,17 +56,25 @@ public class SettingsActivity extends AppCompatActivity {
     private String externalFilesDir;
     private int cameraID;
     private boolean enableFlashlight;
+    private boolean multiCamera;
+    private boolean tieredStorage;
     private String videoFormat;
     private int sensitivity;
     private double sizeThreshold;
     private int serverPort;
+    private String configToken;
+    private String uploadURL, uploadToken;
+    private int uploadMaxKBps;
+    private boolean uploadDecrypted;
 
     // Elements
     private Spinner spinnerStorages, cameraIDSpinner, formatSpinner;
     @SuppressLint("UseSwitchCompatOrMaterialCode")
-    private Switch switchFlashlight;
+    private Switch switchFlashlight, switchMultiCamera, switchTieredStorage,
+            switchUploadDecrypted;
     private Slider sensitivitySlider, sizeThresholdSlider;
-    private EditText serverPortText;
+    private EditText serverPortText, configTokenText;
+    private EditText uploadURLText, uploadTokenText, uploadMaxKBpsText;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,10 +100,17 @@ public class SettingsActivity extends AppCompatActivity {
         spinnerStorages = findViewById(R.id.spinnerStorages);
         cameraIDSpinner = findViewById(R.id.cameraIDSpinner);
         switchFlashlight = findViewById(R.id.switchFlashlight);
+        switchMultiCamera = findViewById(R.id.switchMultiCamera);
+        switchTieredStorage = findViewById(R.id.switchTieredStorage);
         formatSpinner = findViewById(R.id.formatSpinner);
         sensitivitySlider = findViewById(R.id.sensitivitySlider);
         sizeThresholdSlider = findViewById(R.id.sizeThresholdSlider);
         serverPortText = findViewById(R.id.serverPortText);
+        configTokenText = findViewById(R.id.configTokenText);
+        uploadURLText = findViewById(R.id.uploadURLText);
+        uploadTokenText = findViewById(R.id.uploadTokenText);
+        uploadMaxKBpsText = findViewById(R.id.uploadMaxKBpsText);
+        switchUploadDecrypted = findViewById(R.id.switchUploadDecrypted);
 
         // Connect Restore button
         findViewById(R.id.settingsResetBtn).setOnClickListener(view -> {
@@ -102,10 +118,17 @@ public class SettingsActivity extends AppCompatActivity {
             externalFilesDir = externalFilesDirs.get(0);
             cameraID = CameraBridgeViewBase.CAMERA_ID_ANY;
             enableFlashlight = true;
+            multiCamera = false;
+            tieredStorage = false;
             videoFormat = "mp4";
             sensitivity = 25;
             sizeThreshold = 0.1;
             serverPort = 5000;
+            configToken = "";
+            uploadURL = "";
+            uploadToken = "";
+            uploadMaxKBps = 256;
+            uploadDecrypted = false;
 
             // Update view
             updateView();
@@ -150,6 +173,14 @@ public class SettingsActivity extends AppCompatActivity {
         switchFlashlight.setOnCheckedChangeListener((compoundButton, b) ->
                 enableFlashlight = switchFlashlight.isChecked());
 
+        // Connect multi-camera switch
+        switchMultiCamera.setOnCheckedChangeListener((compoundButton, b) ->
+                multiCamera = switchMultiCamera.isChecked());
+
+        // Connect tiered storage switch
+        switchTieredStorage.setOnCheckedChangeListener((compoundButton, b) ->
+                tieredStorage = switchTieredStorage.isChecked());
+
         // Connect video format spinner
         formatSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -212,14 +243,92 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
+        // Connect config token editText
+        configTokenText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                configToken = editable.toString().trim();
+            }
+        });
+
+        // Connect upload URL editText
+        uploadURLText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                uploadURL = editable.toString().trim();
+            }
+        });
+
+        // Connect upload token editText
+        uploadTokenText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                uploadToken = editable.toString().trim();
+            }
+        });
+
+        // Connect upload speed limit editText
+        uploadMaxKBpsText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                try {
+                    uploadMaxKBps = Integer.parseInt(editable.toString());
+                } catch (Exception ignored) { }
+            }
+        });
+
+        // Connect upload decrypted switch
+        switchUploadDecrypted.setOnCheckedChangeListener((compoundButton, b) ->
+                uploadDecrypted = switchUploadDecrypted.isChecked());
+
         // Copy settings to local variables
+        SettingsSnapshot snapshot = SettingsContainer.getSnapshot();
         this.externalFilesDir = SettingsContainer.externalFilesDir;
         this.cameraID = SettingsContainer.cameraID;
-        this.enableFlashlight = SettingsContainer.enableFlashlight;
+        this.enableFlashlight = snapshot.enableFlashlight;
         this.videoFormat = SettingsContainer.videoFormat;
-        this.sensitivity = SettingsContainer.sensitivity;
-        this.sizeThreshold = SettingsContainer.sizeThreshold;
+        this.multiCamera = SettingsContainer.multiCamera;
+        this.tieredStorage = SettingsContainer.tieredStorage;
+        this.sensitivity = snapshot.sensitivity;
+        this.sizeThreshold = snapshot.sizeThreshold;
         this.serverPort = SettingsContainer.serverPort;
+        this.configToken = SettingsContainer.configToken;
+        this.uploadURL = SettingsContainer.uploadURL;
+        this.uploadToken = SettingsContainer.uploadToken;
+        this.uploadMaxKBps = snapshot.uploadMaxKBps;
+        this.uploadDecrypted = SettingsContainer.uploadDecrypted;
 
         // Load view
         updateView();
@@ -245,6 +354,9 @@ public class SettingsActivity extends AppCompatActivity {
         if (externalFilesDirs.contains(externalFilesDir))
             spinnerStorages.setSelection(externalFilesDirs.indexOf(externalFilesDir));
 
+        // Tiered storage
+        switchTieredStorage.setChecked(tieredStorage);
+
         // Camera index
         cameraIDSpinner.setAdapter(new ArrayAdapter<>(this,
                 R.layout.spinner_layout, R.id.textViewSpinner, cameraOptions));
@@ -258,6 +370,9 @@ public class SettingsActivity extends AppCompatActivity {
         // Enable flashlight
         switchFlashlight.setChecked(enableFlashlight);
 
+        // Multi-camera
+        switchMultiCamera.setChecked(multiCamera);
+
         // Video format
         formatSpinner.setAdapter(new ArrayAdapter<>(this,
                 R.layout.spinner_layout, R.id.textViewSpinner, videoFormats));
@@ -272,41 +387,61 @@ public class SettingsActivity extends AppCompatActivity {
 
         // Server port
         serverPortText.setText(String.valueOf(serverPort));
+
+        // Config token
+        configTokenText.setText(configToken);
+
+        // Upload
+        uploadURLText.setText(uploadURL);
+        uploadTokenText.setText(uploadToken);
+        uploadMaxKBpsText.setText(String.valueOf(uploadMaxKBps));
+        switchUploadDecrypted.setChecked(uploadDecrypted);
     }
 
     /**
-     * Assigns local settings to a SettingsContainer class and calls SettingsHandler.saveSettings()
-     * to save the settings to a JSON file
+     * Applies local settings through SettingsContainer.applySnapshot(), which saves them
+     * to a JSON file. Live settings are applied without restarting capture, the service is
+     * restarted only if a setting that is used only when capturing starts is changed
      */
     private void saveSettings() {
         try {
-            // Copy settings from local variables
-            SettingsContainer.externalFilesDir = this.externalFilesDir;
-            SettingsContainer.cameraID = this.cameraID;
-            SettingsContainer.enableFlashlight = this.enableFlashlight;
-            SettingsContainer.videoFormat = this.videoFormat;
-            SettingsContainer.sensitivity = this.sensitivity;
-            SettingsContainer.sizeThreshold = this.sizeThreshold;
-            SettingsContainer.serverPort = this.serverPort;
+            // Live settings
+            JSONObject changes = new JSONObject();
+            changes.put("sensitivity", this.sensitivity);
+            changes.put("size_threshold", this.sizeThreshold);
+            changes.put("enable_flashlight", this.enableFlashlight);
+            changes.put("upload_max_kbps", this.uploadMaxKBps);
+            SettingsSnapshot snapshot = SettingsContainer.getSnapshot().withChanges(changes);
+
+            // Settings of the settings file
+            JSONObject fileSettings = new JSONObject();
+            fileSettings.put("storage", this.externalFilesDir);
+            fileSettings.put("camera_id", this.cameraID);
+            fileSettings.put("video_format", this.videoFormat);
+            fileSettings.put("server_port", this.serverPort);
+            fileSettings.put("config_token", this.configToken);
+            fileSettings.put("multi_camera", this.multiCamera);
+            fileSettings.put("tiered_storage", this.tieredStorage);
+            if (!uploadURL.isEmpty() && !uploadURL.startsWith("http://")
+                    && !uploadURL.startsWith("https://"))
+                throw new IllegalArgumentException("Wrong upload URL: " + uploadURL);
+            fileSettings.put("upload_url", this.uploadURL);
+            fileSettings.put("upload_token", this.uploadToken);
+            fileSettings.put("upload_decrypted", this.uploadDecrypted);
 
             // Save settings to file
-            SettingsHandler.saveSettings(MainActivity.settingsFile, this);
+            boolean restartRequired = SettingsContainer.applySnapshot(snapshot, fileSettings,
+                    MainActivity.settingsFile);
             Toast.makeText(this, R.string.settings_saved,
                     Toast.LENGTH_SHORT).show();
 
-            // Update web server if port changed
-            if (WebServer.isServerListening()
-                    && WebServer.serverPort != SettingsContainer.serverPort) {
-                try {
-                    WebServer.setServerPort(SettingsContainer.serverPort);
-                    WebServer.stopServer();
-                    WebServer.startServer(this);
-                } catch (Exception ignored) { }
-            }
+            // Stop the service. MainActivity will start it again with new settings
+            if (restartRequired)
+                stopService(new Intent(getApplicationContext(), MangoEyeService.class));
         } catch (Exception e) {
             Toast.makeText(this, R.string.error_wrong_settings,
                     Toast.LENGTH_LONG).show();
             Log.e(TAG, "Wrong settings provided!", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -21,8 +21,19 @@
 
 package com.fern.mangoeye;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.opencv.android.CameraBridgeViewBase;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * This class stores application settings
  */
@@ -35,4 +46,156 @@ public class SettingsContainer {
     public static int sensitivity = 25;
     public static double sizeThreshold = 0.1;
     public static int serverPort = 5000;
+    public static String configToken = "";
+    public static int timelapseInterval = 10;
+    public static boolean multiCamera = false;
+    public static String uploadURL = "";
+    public static String uploadToken = "";
+    public static boolean uploadDecrypted = false;
+    public static int uploadMaxKBps = 256;
+    public static int videoBitrate = 2000;
+    public static int writeSyncInterval = 0;
+    public static boolean tieredStorage = false;
+    public static boolean encryptRecordings = false;
+    public static String classifierModel = "";
+    public static String classifierConfig = "";
+    public static String classifierCategories = "person,vehicle";
+    public static double classifierConfidence = 0.5;
+    public static int trackerMinFrames = 3;
+    public static boolean trackerKalman = true;
+    public static boolean trackerTrigger = false;
+    public static boolean performanceGovernor = true;
+    public static List<double[]> motionMask = new ArrayList<>();
+
+    // Settings that are used only when capturing starts
+    private static final Set<String> restartKeys = new HashSet<>(Arrays.asList(
+            "storage", "camera_id", "video_format", "server_port", "multi_camera",
+            "tiered_storage"));
+
+    private static final AtomicReference<SettingsSnapshot> snapshot =
+            new AtomicReference<>(SettingsSnapshot.fromContainer());
+
+    /**
+     * @return current immutable copy of the live settings
+     */
+    public static SettingsSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Publishes current values of the live settings to the capture pipeline
+     */
+    public static void publishSnapshot() {
+        snapshot.set(SettingsSnapshot.fromContainer());
+    }
+
+    /**
+     * Saves changed live settings, then applies them and publishes new snapshot.
+     * Nothing is changed if settings can't be saved
+     * @param newSnapshot snapshot with changes
+     * @param settingsFile JSON file for settings
+     * @throws Exception if settings can't be saved
+     */
+    public static synchronized void applySnapshot(SettingsSnapshot newSnapshot,
+                                                  File settingsFile) throws Exception {
+        SettingsHandler.writeSettings(settingsFile, newSnapshot);
+        newSnapshot.copyToContainer();
+        snapshot.set(newSnapshot);
+    }
+
+    /**
+     * Saves changed live settings together with the settings that are read only from
+     * the settings file (storage, camera, ...), then applies them.
+     * Nothing is changed if settings can't be saved
+     * @param newSnapshot snapshot with changes
+     * @param fileSettings JSON object with changed keys of the settings file
+     * @param settingsFile JSON file for settings
+     * @return true if capturing must be restarted to use new settings
+     * @throws Exception if settings can't be saved
+     */
+    public static synchronized boolean applySnapshot(SettingsSnapshot newSnapshot,
+                                                     JSONObject fileSettings,
+                                                     File settingsFile) throws Exception {
+        JSONObject oldFileSettings = getFileSettings();
+        boolean restartRequired = false;
+        Iterator<String> keys = fileSettings.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (restartKeys.contains(key) && !String.valueOf(oldFileSettings.get(key))
+                    .equals(String.valueOf(fileSettings.get(key))))
+                restartRequired = true;
+        }
+
+        setFileSettings(fileSettings);
+        try {
+            applySnapshot(newSnapshot, settingsFile);
+        } catch (Exception e) {
+            setFileSettings(oldFileSettings);
+            throw e;
+        }
+        return restartRequired;
+    }
+
+    /**
+     * @return settings that are not in the snapshot (same keys as in the settings file)
+     */
+    private static JSONObject getFileSettings() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("storage", externalFilesDir);
+        jsonObject.put("camera_id", cameraID);
+        jsonObject.put("video_format", videoFormat);
+        jsonObject.put("server_port", serverPort);
+        jsonObject.put("config_token", configToken);
+        jsonObject.put("multi_camera", multiCamera);
+        jsonObject.put("tiered_storage", tieredStorage);
+        jsonObject.put("upload_url", uploadURL);
+        jsonObject.put("upload_token", uploadToken);
+        jsonObject.put("upload_decrypted", uploadDecrypted);
+        return jsonObject;
+    }
+
+    /**
+     * Changes settings that are not in the snapshot
+     * @param fileSettings JSON object with changed keys of the settings file
+     */
+    private static void setFileSettings(JSONObject fileSettings) throws JSONException {
+        Iterator<String> keys = fileSettings.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            switch (key) {
+                case "storage":
+                    externalFilesDir = fileSettings.getString(key);
+                    break;
+                case "camera_id":
+                    cameraID = fileSettings.getInt(key);
+                    break;
+                case "video_format":
+                    videoFormat = fileSettings.getString(key);
+                    break;
+                case "server_port":
+                    serverPort = fileSettings.getInt(key);
+                    break;
+                case "config_token":
+                    configToken = fileSettings.getString(key);
+                    break;
+                case "multi_camera":
+                    multiCamera = fileSettings.getBoolean(key);
+                    break;
+                case "tiered_storage":
+                    tieredStorage = fileSettings.getBoolean(key);
+                    break;
+                case "upload_url":
+                    uploadURL = fileSettings.getString(key);
+                    break;
+                case "upload_token":
+                    uploadToken = fileSettings.getString(key);
+                    break;
+                case "upload_decrypted":
+                    uploadDecrypted = fileSettings.getBoolean(key);
+                    break;
+                default:
+                    throw new JSONException("Unknown setting " + key);
+            }
+        }
+    }
 }
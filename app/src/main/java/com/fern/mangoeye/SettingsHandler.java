@@ -22,9 +22,11 @@
 package com.fern.mangoeye;
 
 import android.app.Activity;
+import android.content.Context;
 import android.util.Log;
 import android.widget.Toast;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
@@ -32,12 +34,14 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.util.Iterator;
 
 /**
  * This class provides reading / saving of settings (the SettingsContainer class) to a JSON file
  */
 public class SettingsHandler {
     private final static String TAG = SettingsHandler.class.getName();
+    private final static String settingsFileName = "settings.json";
     
     private final File settingsFile;
     private final Activity activity;
@@ -55,6 +59,14 @@ public class SettingsHandler {
         this.activity = activity;
     }
 
+    /**
+     * @param context Android context
+     * @return JSON file for settings
+     */
+    public static File getSettingsFile(Context context) {
+        return new File(context.getExternalFilesDir(null), settingsFileName);
+    }
+
     /**
      * Reads settings from JSON file
      */
@@ -85,6 +97,47 @@ public class SettingsHandler {
             SettingsContainer.sensitivity = jsonObject.getInt("sensitivity");
             SettingsContainer.sizeThreshold = jsonObject.getDouble("size_threshold");
             SettingsContainer.serverPort = jsonObject.getInt("server_port");
+            SettingsContainer.configToken = jsonObject.optString("config_token",
+                    SettingsContainer.configToken);
+            SettingsContainer.timelapseInterval = jsonObject.optInt("timelapse_interval",
+                    SettingsContainer.timelapseInterval);
+            SettingsContainer.multiCamera = jsonObject.optBoolean("multi_camera",
+                    SettingsContainer.multiCamera);
+            SettingsContainer.uploadURL = jsonObject.optString("upload_url",
+                    SettingsContainer.uploadURL);
+            SettingsContainer.uploadToken = jsonObject.optString("upload_token",
+                    SettingsContainer.uploadToken);
+            SettingsContainer.uploadDecrypted = jsonObject.optBoolean("upload_decrypted",
+                    SettingsContainer.uploadDecrypted);
+            SettingsContainer.uploadMaxKBps = jsonObject.optInt("upload_max_kbps",
+                    SettingsContainer.uploadMaxKBps);
+            SettingsContainer.videoBitrate = jsonObject.optInt("video_bitrate",
+                    SettingsContainer.videoBitrate);
+            SettingsContainer.writeSyncInterval = jsonObject.optInt("write_sync_interval",
+                    SettingsContainer.writeSyncInterval);
+            SettingsContainer.tieredStorage = jsonObject.optBoolean("tiered_storage",
+                    SettingsContainer.tieredStorage);
+            SettingsContainer.encryptRecordings = jsonObject.optBoolean("encrypt_recordings",
+                    SettingsContainer.encryptRecordings);
+            SettingsContainer.classifierModel = jsonObject.optString("classifier_model",
+                    SettingsContainer.classifierModel);
+            SettingsContainer.classifierConfig = jsonObject.optString("classifier_config",
+                    SettingsContainer.classifierConfig);
+            SettingsContainer.classifierCategories = jsonObject.optString(
+                    "classifier_categories", SettingsContainer.classifierCategories);
+            SettingsContainer.classifierConfidence = jsonObject.optDouble(
+                    "classifier_confidence", SettingsContainer.classifierConfidence);
+            SettingsContainer.trackerMinFrames = jsonObject.optInt("tracker_min_frames",
+                    SettingsContainer.trackerMinFrames);
+            SettingsContainer.trackerKalman = jsonObject.optBoolean("tracker_kalman",
+                    SettingsContainer.trackerKalman);
+            SettingsContainer.trackerTrigger = jsonObject.optBoolean("tracker_trigger",
+                    SettingsContainer.trackerTrigger);
+            SettingsContainer.performanceGovernor = jsonObject.optBoolean(
+                    "performance_governor", SettingsContainer.performanceGovernor);
+            JSONArray motionMask = jsonObject.optJSONArray("motion_mask");
+            if (motionMask != null)
+                SettingsContainer.motionMask = SettingsSnapshot.parseMask(motionMask);
 
             // Check externalFilesDir
             boolean storageAccepted = false;
@@ -109,6 +162,9 @@ public class SettingsHandler {
                 saveSettings(settingsFile, activity);
             }
 
+            // Publish live settings to the capture pipeline
+            SettingsContainer.publishSnapshot();
+
         } catch (Exception e) {
             Log.e(TAG, "Error parsing settings!", e);
 
@@ -135,21 +191,8 @@ public class SettingsHandler {
     public static void saveSettings(File settingsFile,
                                     Activity activity) {
         try {
-            // Create new JSONObject
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("storage", SettingsContainer.externalFilesDir);
-            jsonObject.put("camera_id", SettingsContainer.cameraID);
-            jsonObject.put("enable_flashlight", SettingsContainer.enableFlashlight);
-            jsonObject.put("video_format", SettingsContainer.videoFormat);
-            jsonObject.put("sensitivity", SettingsContainer.sensitivity);
-            jsonObject.put("size_threshold", SettingsContainer.sizeThreshold);
-            jsonObject.put("server_port", SettingsContainer.serverPort);
-
-            // Write JSONObject to file
-            FileWriter fileWriter = new FileWriter(settingsFile);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(jsonObject.toString());
-            bufferedWriter.close();
+            writeSettings(settingsFile);
+            SettingsContainer.publishSnapshot();
 
         } catch (Exception e) {
             // Show error message
@@ -163,4 +206,66 @@ public class SettingsHandler {
             //System.exit(0);
         }
     }
+
+    /**
+     * Writes settings to JSON file
+     * @param settingsFile JSON file for settings
+     */
+    public static void writeSettings(File settingsFile) throws Exception {
+        writeSettings(settingsFile, SettingsSnapshot.fromContainer());
+    }
+
+    /**
+     * Writes settings to JSON file with the live settings taken from the snapshot
+     * (SettingsContainer isn't changed)
+     * @param settingsFile JSON file for settings
+     * @param snapshot live settings
+     */
+    public static void writeSettings(File settingsFile, SettingsSnapshot snapshot)
+            throws Exception {
+        // Create new JSONObject
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("storage", SettingsContainer.externalFilesDir);
+        jsonObject.put("camera_id", SettingsContainer.cameraID);
+        jsonObject.put("enable_flashlight", SettingsContainer.enableFlashlight);
+        jsonObject.put("video_format", SettingsContainer.videoFormat);
+        jsonObject.put("sensitivity", SettingsContainer.sensitivity);
+        jsonObject.put("size_threshold", SettingsContainer.sizeThreshold);
+        jsonObject.put("server_port", SettingsContainer.serverPort);
+        jsonObject.put("config_token", SettingsContainer.configToken);
+        jsonObject.put("timelapse_interval", SettingsContainer.timelapseInterval);
+        jsonObject.put("multi_camera", SettingsContainer.multiCamera);
+        jsonObject.put("upload_url", SettingsContainer.uploadURL);
+        jsonObject.put("upload_token", SettingsContainer.uploadToken);
+        jsonObject.put("upload_decrypted", SettingsContainer.uploadDecrypted);
+        jsonObject.put("upload_max_kbps", SettingsContainer.uploadMaxKBps);
+        jsonObject.put("video_bitrate", SettingsContainer.videoBitrate);
+        jsonObject.put("write_sync_interval", SettingsContainer.writeSyncInterval);
+        jsonObject.put("tiered_storage", SettingsContainer.tieredStorage);
+        jsonObject.put("encrypt_recordings", SettingsContainer.encryptRecordings);
+        jsonObject.put("classifier_model", SettingsContainer.classifierModel);
+        jsonObject.put("classifier_config", SettingsContainer.classifierConfig);
+        jsonObject.put("classifier_categories", SettingsContainer.classifierCategories);
+        jsonObject.put("classifier_confidence", SettingsContainer.classifierConfidence);
+        jsonObject.put("tracker_min_frames", SettingsContainer.trackerMinFrames);
+        jsonObject.put("tracker_kalman", SettingsContainer.trackerKalman);
+        jsonObject.put("tracker_trigger", SettingsContainer.trackerTrigger);
+        jsonObject.put("performance_governor", SettingsContainer.performanceGovernor);
+        jsonObject.put("motion_mask",
+                SettingsSnapshot.maskToJSON(SettingsContainer.motionMask));
+
+        // Live settings
+        JSONObject liveSettings = snapshot.toJSON();
+        Iterator<String> keys = liveSettings.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            jsonObject.put(key, liveSettings.get(key));
+        }
+
+        // Write JSONObject to file
+        FileWriter fileWriter = new FileWriter(settingsFile);
+        BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
+        bufferedWriter.write(jsonObject.toString());
+        bufferedWriter.close();
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable copy of the settings that can be changed while capturing.
+ * Pipeline reads it once per frame from SettingsContainer.getSnapshot()
+ */
+public final class SettingsSnapshot {
+    public final int sensitivity;
+    public final double sizeThreshold;
+    public final boolean enableFlashlight;
+    public final int timelapseInterval;
+    public final int videoBitrate;
+    public final int uploadMaxKBps;
+    public final int writeSyncInterval;
+    public final boolean encryptRecordings;
+    public final String classifierModel;
+    public final String classifierConfig;
+    public final String classifierCategories;
+    public final double classifierConfidence;
+    public final int trackerMinFrames;
+    public final boolean trackerKalman;
+    public final boolean trackerTrigger;
+    public final boolean performanceGovernor;
+
+    // Excluded areas (x, y, width, height as part of the frame size, 0-1)
+    public final List<double[]> motionMask;
+
+    // Keys that can be changed over HTTP. Encryption and model paths only from the device
+    private static final Set<String> remoteKeys = new HashSet<>(Arrays.asList(
+            "sensitivity", "size_threshold", "enable_flashlight", "timelapse_interval",
+            "video_bitrate", "upload_max_kbps", "write_sync_interval", "classifier_categories",
+            "classifier_confidence", "tracker_min_frames", "tracker_kalman", "tracker_trigger",
+            "performance_governor", "motion_mask"));
+
+    SettingsSnapshot(int sensitivity, double sizeThreshold, boolean enableFlashlight,
+                     int timelapseInterval, int videoBitrate, int uploadMaxKBps,
+                     int writeSyncInterval, boolean encryptRecordings, String classifierModel,
+                     String classifierConfig, String classifierCategories,
+                     double classifierConfidence, int trackerMinFrames, boolean trackerKalman,
+                     boolean trackerTrigger, boolean performanceGovernor,
+                     List<double[]> motionMask) {
+        this.sensitivity = sensitivity;
+        this.sizeThreshold = sizeThreshold;
+        this.enableFlashlight = enableFlashlight;
+        this.timelapseInterval = timelapseInterval;
+        this.videoBitrate = videoBitrate;
+        this.uploadMaxKBps = uploadMaxKBps;
+        this.writeSyncInterval = writeSyncInterval;
+        this.encryptRecordings = encryptRecordings;
+        this.classifierModel = classifierModel;
+        this.classifierConfig = classifierConfig;
+        this.classifierCategories = classifierCategories;
+        this.classifierConfidence = classifierConfidence;
+        this.trackerMinFrames = trackerMinFrames;
+        this.trackerKalman = trackerKalman;
+        this.trackerTrigger = trackerTrigger;
+        this.performanceGovernor = performanceGovernor;
+        this.motionMask = Collections.unmodifiableList(motionMask);
+    }
+
+    /**
+     * @return snapshot of the current SettingsContainer values
+     */
+    static SettingsSnapshot fromContainer() {
+        return new SettingsSnapshot(SettingsContainer.sensitivity,
+                SettingsContainer.sizeThreshold, SettingsContainer.enableFlashlight,
+                SettingsContainer.timelapseInterval, SettingsContainer.videoBitrate,
+                SettingsContainer.uploadMaxKBps, SettingsContainer.writeSyncInterval,
+                SettingsContainer.encryptRecordings, SettingsContainer.classifierModel,
+                SettingsContainer.classifierConfig, SettingsContainer.classifierCategories,
+                SettingsContainer.classifierConfidence, SettingsContainer.trackerMinFrames,
+                SettingsContainer.trackerKalman, SettingsContainer.trackerTrigger,
+                SettingsContainer.performanceGovernor, SettingsContainer.motionMask);
+    }
+
+    /**
+     * Creates new snapshot with changed values
+     * @param changes JSON object with changed keys (same keys as toJSON())
+     * @return new snapshot
+     * @throws JSONException if key is unknown or value is out of range
+     */
+    public SettingsSnapshot withChanges(JSONObject changes) throws JSONException {
+        int sensitivity = this.sensitivity;
+        double sizeThreshold = this.sizeThreshold;
+        boolean enableFlashlight = this.enableFlashlight;
+        int timelapseInterval = this.timelapseInterval;
+        int videoBitrate = this.videoBitrate;
+        int uploadMaxKBps = this.uploadMaxKBps;
+        int writeSyncInterval = this.writeSyncInterval;
+        boolean encryptRecordings = this.encryptRecordings;
+        String classifierModel = this.classifierModel;
+        String classifierConfig = this.classifierConfig;
+        String classifierCategories = this.classifierCategories;
+        double classifierConfidence = this.classifierConfidence;
+        int trackerMinFrames = this.trackerMinFrames;
+        boolean trackerKalman = this.trackerKalman;
+        boolean trackerTrigger = this.trackerTrigger;
+        boolean performanceGovernor = this.performanceGovernor;
+        List<double[]> motionMask = this.motionMask;
+
+        Iterator<String> keys = changes.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            switch (key) {
+                case "sensitivity":
+                    sensitivity = checkRange(key, changes.getInt(key), 1, 50);
+                    break;
+                case "size_threshold":
+                    sizeThreshold = changes.getDouble(key);
+                    if (sizeThreshold <= 0 || sizeThreshold >= 1)
+                        throw new JSONException(key + " must be between 0 and 1");
+                    break;
+                case "enable_flashlight":
+                    enableFlashlight = changes.getBoolean(key);
+                    break;
+                case "timelapse_interval":
+                    timelapseInterval = checkRange(key, changes.getInt(key), 0, 3600);
+                    break;
+                case "video_bitrate":
+                    videoBitrate = checkRange(key, changes.getInt(key), 100, 20000);
+                    break;
+                case "upload_max_kbps":
+                    uploadMaxKBps = checkRange(key, changes.getInt(key), 0, 1000000);
+                    break;
+                case "write_sync_interval":
+                    writeSyncInterval = checkRange(key, changes.getInt(key), 0, 3600);
+                    break;
+                case "encrypt_recordings":
+                    encryptRecordings = changes.getBoolean(key);
+                    break;
+                case "classifier_model":
+                    classifierModel = changes.getString(key);
+                    break;
+                case "classifier_config":
+                    classifierConfig = changes.getString(key);
+                    break;
+                case "classifier_categories":
+                    classifierCategories = changes.getString(key);
+                    break;
+                case "classifier_confidence":
+                    classifierConfidence = changes.getDouble(key);
+                    if (classifierConfidence < 0 || classifierConfidence > 1)
+                        throw new JSONException(key + " must be between 0 and 1");
+                    break;
+                case "tracker_min_frames":
+                    trackerMinFrames = checkRange(key, changes.getInt(key), 1, 100);
+                    break;
+                case "tracker_kalman":
+                    trackerKalman = changes.getBoolean(key);
+                    break;
+                case "tracker_trigger":
+                    trackerTrigger = changes.getBoolean(key);
+                    break;
+                case "performance_governor":
+                    performanceGovernor = changes.getBoolean(key);
+                    break;
+                case "motion_mask":
+                    motionMask = parseMask(changes.getJSONArray(key));
+                    break;
+                default:
+                    throw new JSONException(key + " can't be changed while capturing");
+            }
+        }
+        return new SettingsSnapshot(sensitivity, sizeThreshold, enableFlashlight,
+                timelapseInterval, videoBitrate, uploadMaxKBps, writeSyncInterval,
+                encryptRecordings, classifierModel, classifierConfig, classifierCategories,
+                classifierConfidence, trackerMinFrames, trackerKalman, trackerTrigger,
+                performanceGovernor, motionMask);
+    }
+
+    /**
+     * @param key settings key
+     * @return true if the key can be changed over HTTP (PUT /config)
+     */
+    public static boolean isRemoteKey(String key) {
+        return remoteKeys.contains(key);
+    }
+
+    /**
+     * Copies values back to SettingsContainer (to be saved into the settings file)
+     */
+    void copyToContainer() {
+        SettingsContainer.sensitivity = sensitivity;
+        SettingsContainer.sizeThreshold = sizeThreshold;
+        SettingsContainer.enableFlashlight = enableFlashlight;
+        SettingsContainer.timelapseInterval = timelapseInterval;
+        SettingsContainer.videoBitrate = videoBitrate;
+        SettingsContainer.uploadMaxKBps = uploadMaxKBps;
+        SettingsContainer.writeSyncInterval = writeSyncInterval;
+        SettingsContainer.encryptRecordings = encryptRecordings;
+        SettingsContainer.classifierModel = classifierModel;
+        SettingsContainer.classifierConfig = classifierConfig;
+        SettingsContainer.classifierCategories = classifierCategories;
+        SettingsContainer.classifierConfidence = classifierConfidence;
+        SettingsContainer.trackerMinFrames = trackerMinFrames;
+        SettingsContainer.trackerKalman = trackerKalman;
+        SettingsContainer.trackerTrigger = trackerTrigger;
+        SettingsContainer.performanceGovernor = performanceGovernor;
+        SettingsContainer.motionMask = motionMask;
+    }
+
+    /**
+     * @return settings as JSON object
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("sensitivity", sensitivity);
+        jsonObject.put("size_threshold", sizeThreshold);
+        jsonObject.put("enable_flashlight", enableFlashlight);
+        jsonObject.put("timelapse_interval", timelapseInterval);
+        jsonObject.put("video_bitrate", videoBitrate);
+        jsonObject.put("upload_max_kbps", uploadMaxKBps);
+        jsonObject.put("write_sync_interval", writeSyncInterval);
+        jsonObject.put("encrypt_recordings", encryptRecordings);
+        jsonObject.put("classifier_model", classifierModel);
+        jsonObject.put("classifier_config", classifierConfig);
+        jsonObject.put("classifier_categories", classifierCategories);
+        jsonObject.put("classifier_confidence", classifierConfidence);
+        jsonObject.put("tracker_min_frames", trackerMinFrames);
+        jsonObject.put("tracker_kalman", trackerKalman);
+        jsonObject.put("tracker_trigger", trackerTrigger);
+        jsonObject.put("performance_governor", performanceGovernor);
+        jsonObject.put("motion_mask", maskToJSON(motionMask));
+        return jsonObject;
+    }
+
+    /**
+     * Parses mask as array of [x, y, width, height] arrays (parts of the frame size)
+     */
+    static List<double[]> parseMask(JSONArray jsonArray) throws JSONException {
+        List<double[]> mask = new ArrayList<>();
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONArray item = jsonArray.getJSONArray(i);
+            if (item.length() != 4)
+                throw new JSONException("Mask rectangle must be [x, y, width, height]");
+            double[] rect = new double[4];
+            for (int j = 0; j < 4; j++) {
+                rect[j] = item.getDouble(j);
+                if (rect[j] < 0 || rect[j] > 1)
+                    throw new JSONException("Mask values must be between 0 and 1");
+            }
+            mask.add(rect);
+        }
+        return mask;
+    }
+
+    static JSONArray maskToJSON(List<double[]> mask) throws JSONException {
+        JSONArray jsonArray = new JSONArray();
+        for (double[] rect : mask) {
+            JSONArray item = new JSONArray();
+            for (double value : rect)
+                item.put(value);
+            jsonArray.put(item);
+        }
+        return jsonArray;
+    }
+
+    private static int checkRange(String key, int value, int min, int max)
+            throws JSONException {
+        if (value < min || value > max)
+            throw new JSONException(key + " must be between " + min + " and " + max);
+        return value;
+    }
+}
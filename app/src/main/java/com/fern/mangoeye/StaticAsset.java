@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class keeps web asset in memory (raw and gzipped) and sends it with ETag,
+ * so repeated page loads are answered with 304 without reading the assets
+ */
+public class StaticAsset {
+    private static final String TAG = StaticAsset.class.getName();
+
+    private final String contentType;
+    private final byte[] data;
+    private final byte[] gzipData;
+    private final String eTag;
+    private final String gzipETag;
+
+    /**
+     * Reads the asset and compresses it
+     * @param context Android context
+     * @param fileName name of the file in assets
+     * @param contentType content type of the file
+     * @param compress true to gzip the file (text files)
+     */
+    public StaticAsset(Context context, String fileName, String contentType, boolean compress)
+            throws IOException {
+        this.contentType = contentType;
+
+        // Read whole asset
+        InputStream inputStream = context.getAssets().open(fileName);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int length; (length = inputStream.read(buffer)) > 0; )
+            byteArrayOutputStream.write(buffer, 0, length);
+        inputStream.close();
+        data = byteArrayOutputStream.toByteArray();
+
+        // Compress only if it makes the file smaller
+        byte[] compressed = null;
+        if (compress) {
+            ByteArrayOutputStream gzipOutputStream = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(gzipOutputStream);
+            gzipStream.write(data);
+            gzipStream.close();
+            if (gzipOutputStream.size() < data.length)
+                compressed = gzipOutputStream.toByteArray();
+        }
+        gzipData = compressed;
+
+        // Strong ETags from the content hash (differ per Content-Encoding)
+        String hash;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            hash = Base64.encodeToString(digest, 0, 12, Base64.NO_WRAP | Base64.URL_SAFE);
+        } catch (Exception e) {
+            Log.e(TAG, "Error hashing " + fileName, e);
+            hash = Integer.toHexString(Arrays.hashCode(data));
+        }
+        eTag = "\"" + hash + "\"";
+        gzipETag = "\"" + hash + "-gz\"";
+    }
+
+    /**
+     * Sends the asset, gzipped if client supports it, or 304 if client has the same version
+     * @param request server request
+     * @param response server response
+     */
+    public void send(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        // Choose representation
+        String acceptEncoding = request.getHeaders().get("Accept-Encoding");
+        boolean gzip = gzipData != null && acceptEncoding != null
+                && acceptEncoding.contains("gzip");
+        String currentETag = gzip ? gzipETag : eTag;
+
+        response.getHeaders().set("ETag", currentETag);
+        response.getHeaders().set("Cache-Control", "no-cache");
+        if (gzipData != null)
+            response.getHeaders().set("Vary", "Accept-Encoding");
+
+        // Client has the same version
+        String ifNoneMatch = request.getHeaders().get("If-None-Match");
+        if (ifNoneMatch != null
+                && (ifNoneMatch.contains(currentETag) || ifNoneMatch.trim().equals("*"))) {
+            PerformanceMetrics.incrementCounter("http_not_modified");
+            response.code(304);
+            response.end();
+            return;
+        }
+
+        response.code(200);
+        if (gzip) {
+            response.getHeaders().set("Content-Encoding", "gzip");
+            response.send(contentType, gzipData);
+        } else
+            response.send(contentType, data);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class records to the fastest volume (internal flash) and moves finished recordings
+ * to the storage from the settings in the background. Fast tier mirrors the directory
+ * structure of the storage, so a recording is found by the same name in either tier
+ */
+public class StorageTiers {
+    private static final String TAG = StorageTiers.class.getName();
+
+    private static final String directoryName = "tier";
+    private static final String temporaryExtension = ".moving";
+    private static final int chunkSize = 256 * 1024;
+    private static final long moveMaxBytesPerSecond = 2048L * 1024;
+    private static final long minFreeSpace = 256L * 1024 * 1024;
+
+    private static final ExecutorService moveExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                runnable.run();
+            }, "StorageTiers"));
+
+    private static volatile File fastRoot;
+
+    /**
+     * Enables tiered storage (if enabled in the settings and storage is not the fastest
+     * volume already) and moves recordings left from the previous run
+     * @param context Android context
+     */
+    public static void start(Context context) {
+        fastRoot = null;
+        if (!SettingsContainer.tieredStorage)
+            return;
+
+        // First volume is the primary (internal) storage
+        File[] directories = context.getExternalFilesDirs(null);
+        if (directories.length == 0 || directories[0] == null)
+            return;
+        File root = new File(SettingsContainer.externalFilesDir);
+        if (root.getAbsolutePath().startsWith(directories[0].getAbsolutePath())) {
+            Log.i(TAG, "Storage is on the internal volume already");
+            return;
+        }
+
+        File fast = new File(directories[0], directoryName);
+        Log.i(TAG, "Recording to " + fast.getAbsolutePath());
+        fastRoot = fast;
+
+        // List leftovers now, before capture starts writing new recordings there
+        List<File> files = new ArrayList<>();
+        listAll(fast, files);
+        moveExecutor.execute(() -> {
+            for (File file : files)
+                moveFile(file);
+        });
+    }
+
+    /**
+     * @param directory directory of the camera recordings (in the storage)
+     * @return directory for new recordings (fast tier if it has enough free space)
+     */
+    public static File getRecordingDirectory(File directory) {
+        File fast = fastRoot;
+        if (fast == null)
+            return directory;
+        File fastDirectory = getOtherTierFile(directory);
+        if (fastDirectory == null || fast.getParentFile().getUsableSpace() < minFreeSpace)
+            return directory;
+        return fastDirectory;
+    }
+
+    /**
+     * Moves finished recording to the storage in the background
+     * @param file file in the fast tier (ignored if it's in the storage already)
+     */
+    public static void move(File file) {
+        if (fastRoot == null || !isFastTierFile(file))
+            return;
+        moveExecutor.execute(() -> moveFile(file));
+    }
+
+    /**
+     * @param file file in the storage or in the fast tier
+     * @return path of the file in the storage (where it will be after moving)
+     */
+    public static File getStorageFile(File file) {
+        if (!isFastTierFile(file))
+            return file;
+        File storageFile = getOtherTierFile(file);
+        return storageFile == null ? file : storageFile;
+    }
+
+    /**
+     * @param file file in the storage or in the fast tier
+     * @return existing copy of the file (the file itself if it doesn't exist in any tier)
+     */
+    public static File resolve(File file) {
+        if (file.exists())
+            return file;
+        File otherFile = getOtherTierFile(file);
+        if (otherFile != null && otherFile.exists())
+            return otherFile;
+        return file;
+    }
+
+    /**
+     * Lists files of the directory in both tiers (finished copy is preferred)
+     * @param directory directory in the storage
+     * @return files or null if directory doesn't exist
+     */
+    public static File[] listFiles(File directory) {
+        File[] files = directory.listFiles();
+        File fastDirectory = getOtherTierFile(directory);
+        File[] fastFiles = fastDirectory == null ? null : fastDirectory.listFiles();
+        if (fastFiles == null || fastFiles.length == 0)
+            return files;
+
+        Map<String, File> filesByName = new LinkedHashMap<>();
+        if (files != null) {
+            for (File file : files)
+                if (!file.getName().endsWith(temporaryExtension))
+                    filesByName.put(file.getName(), file);
+        }
+        for (File file : fastFiles)
+            if (!filesByName.containsKey(file.getName()))
+                filesByName.put(file.getName(), file);
+        return filesByName.values().toArray(new File[0]);
+    }
+
+    /**
+     * Deletes file from both tiers
+     * @param file file in the storage or in the fast tier
+     * @return true if any copy was deleted
+     */
+    public static boolean delete(File file) {
+        boolean deleted = file.exists() && file.delete();
+        File otherFile = getOtherTierFile(file);
+        if (otherFile != null && otherFile.exists() && otherFile.delete())
+            deleted = true;
+        return deleted;
+    }
+
+    private static boolean isFastTierFile(File file) {
+        File fast = fastRoot;
+        return fast != null && (file.getAbsolutePath() + File.separator)
+                .startsWith(fast.getAbsolutePath() + File.separator);
+    }
+
+    /**
+     * @return same path in the other tier or null if tiered storage is disabled
+     */
+    private static File getOtherTierFile(File file) {
+        File fast = fastRoot;
+        if (fast == null)
+            return null;
+        String path = file.getAbsolutePath() + File.separator;
+        String fastPath = fast.getAbsolutePath() + File.separator;
+        String rootPath = new File(SettingsContainer.externalFilesDir).getAbsolutePath()
+                + File.separator;
+        if (path.startsWith(fastPath))
+            return new File(rootPath + path.substring(fastPath.length()));
+        if (path.startsWith(rootPath))
+            return new File(fastPath + path.substring(rootPath.length()));
+        return null;
+    }
+
+    /**
+     * Collects files of the directory and its subdirectories
+     * @param directory directory in the fast tier
+     * @param files list to add the files to
+     */
+    private static void listAll(File directory, List<File> files) {
+        File[] directoryFiles = directory.listFiles();
+        if (directoryFiles == null)
+            return;
+        for (File file : directoryFiles) {
+            if (file.isDirectory())
+                listAll(file, files);
+            else
+                files.add(file);
+        }
+    }
+
+    /**
+     * @param file file in the fast tier
+     * @return true if the file or the video of the motion sidecar is being recorded
+     */
+    private static boolean isRecording(File file) {
+        if (Recorder.isRecordingFile(file))
+            return true;
+        String path = file.getAbsolutePath();
+        if (!path.endsWith(MotionMetadata.FILE_EXTENSION))
+            return false;
+        int videoPathLength = path.length() - MotionMetadata.FILE_EXTENSION.length();
+        return Recorder.isRecordingFile(new File(path.substring(0, videoPathLength)));
+    }
+
+    /**
+     * Copies file to the storage with limited speed, then deletes the fast tier copy.
+     * Calls on the move thread
+     */
+    private static void moveFile(File source) {
+        if (!source.exists() || isRecording(source))
+            return;
+        File target = getStorageFile(source);
+        File directory = target.getParentFile();
+        if (target.equals(source) || directory == null
+                || (!directory.exists() && !directory.mkdirs())) {
+            Log.e(TAG, "Unable to move " + source.getName());
+            return;
+        }
+        File temporary = new File(directory, target.getName() + temporaryExtension);
+
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+        try (FileInputStream inputStream = new FileInputStream(source);
+             FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            byte[] buffer = new byte[chunkSize];
+            long copied = 0;
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, length);
+                copied += length;
+
+                // Limit speed, so the storage stays responsive for the web server
+                long sleepTime = copied * 1000 / moveMaxBytesPerSecond
+                        - (System.currentTimeMillis() - startTime);
+                if (sleepTime > 0)
+                    Thread.sleep(sleepTime);
+            }
+            outputStream.getFD().sync();
+            success = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error moving " + source.getName(), e);
+        }
+
+        // Publish the copy (unless the recording was deleted meanwhile)
+        if (success && source.exists()) {
+            if (!temporary.setLastModified(source.lastModified()))
+                Log.w(TAG, "Unable to keep modification time of " + source.getName());
+            if (temporary.renameTo(target)) {
+                if (!source.delete())
+                    Log.w(TAG, "Unable to delete " + source.getAbsolutePath());
+                PerformanceMetrics.incrementCounter("storage_moved_files");
+                PerformanceMetrics.recordLatency("storage_move_ms",
+                        System.currentTimeMillis() - startTime);
+                Log.i(TAG, "Moved " + source.getName() + " to the storage");
+                return;
+            }
+        }
+        if (temporary.exists() && !temporary.delete())
+            Log.w(TAG, "Unable to delete " + temporary.getName());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGBA;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class records low resolution time-lapse video (one frame every
+ * SettingsContainer.timelapseInterval seconds) into a daily file.
+ * Encoding of all cameras runs on one shared low priority thread
+ */
+public class TimelapseRecorder {
+    private static final String TAG = TimelapseRecorder.class.getName();
+
+    public static final String DIRECTORY_NAME = "timelapse";
+
+    // Absolute paths of the files that are being recorded (by all cameras)
+    private static final Set<String> recordingFiles = new HashSet<>();
+
+    private static final int frameWidth = 320;
+    private static final int frameRate = 10;
+    private static final int videoBitrate = 256 * 1024;
+
+    private static final ExecutorService encoderExecutor = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "TimelapseEncoder"));
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("dd_MM_yyyy", Locale.US);
+    private final SimpleDateFormat fileFormat =
+            new SimpleDateFormat("dd_MM_yyyy_HH_mm", Locale.US);
+    private final Mat matSmall = new Mat();
+    private final Mat matRotated = new Mat();
+    private final File directory;
+
+    // Frame buffer returned by the encoder thread after encoding (null while it's in use)
+    private final AtomicReference<byte[]> freeBuffer = new AtomicReference<>();
+
+    private long lastFrameTime;
+
+    // Accessed only from the encoder thread
+    private FFmpegFrameRecorder fFmpegFrameRecorder;
+    private AsyncFileOutputStream outputStream;
+    private Frame frame;
+    private String currentDay = "";
+    private File currentFile;
+
+    /**
+     * @param rootDirectory directory of the camera recordings
+     */
+    TimelapseRecorder(File rootDirectory) {
+        this.directory = new File(rootDirectory, DIRECTORY_NAME);
+    }
+
+    /**
+     * @param file time-lapse file
+     * @return true if the file is being recorded now
+     */
+    public static boolean isRecordingFile(File file) {
+        synchronized (recordingFiles) {
+            return recordingFiles.contains(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param currentTime current time in milliseconds
+     * @return true if it's time to add new frame
+     */
+    public boolean isFrameDue(long currentTime) {
+        long interval = SettingsContainer.getSnapshot().timelapseInterval * 1000L;
+        return interval > 0 && currentTime - lastFrameTime >= interval;
+    }
+
+    /**
+     * Downscales and rotates frame and sends it to the encoder thread
+     * @param rgba RGBA frame (camera orientation)
+     * @param degrees clockwise rotation that makes the frame upright
+     */
+    public void addFrame(Mat rgba, int degrees) {
+        lastFrameTime = System.currentTimeMillis();
+
+        // Downscale to the upright size (keep even size for YUV420P)
+        boolean swap = degrees == 90 || degrees == 270;
+        int uprightWidth = swap ? rgba.rows() : rgba.cols();
+        int uprightHeight = swap ? rgba.cols() : rgba.rows();
+        int width = Math.min(frameWidth, uprightWidth) & ~1;
+        int height = (uprightHeight * width / uprightWidth) & ~1;
+        Imgproc.resize(rgba, matSmall, swap ? new Size(height, width) : new Size(width, height),
+                0, 0, Imgproc.INTER_AREA);
+
+        // Rotate small frame instead of the camera frame
+        Mat frameSmall = FrameRotation.rotate(matSmall, matRotated, degrees);
+        byte[] data = freeBuffer.getAndSet(null);
+        if (data == null || data.length != width * height * 4)
+            data = new byte[width * height * 4];
+        frameSmall.get(0, 0, data);
+
+        byte[] frameData = data;
+        long frameTime = lastFrameTime;
+        encoderExecutor.execute(() -> {
+            encode(frameData, width, height, frameTime);
+            freeBuffer.set(frameData);
+        });
+    }
+
+    /**
+     * Finishes current file (new file will be started by the next frame)
+     */
+    public void finish() {
+        encoderExecutor.execute(this::finishFile);
+    }
+
+    private void encode(byte[] data, int width, int height, long frameTime) {
+        try {
+            // Start new file every day or if frame size changed
+            String day = dayFormat.format(frameTime);
+            if (fFmpegFrameRecorder == null || !day.equals(currentDay)
+                    || frame.imageWidth != width || frame.imageHeight != height) {
+                finishFile();
+                startFile(width, height, frameTime);
+                currentDay = day;
+            }
+
+            ((ByteBuffer) frame.image[0].position(0)).put(data);
+            fFmpegFrameRecorder.record(frame, AV_PIX_FMT_RGBA);
+
+            // Don't keep frames in the buffer of the encrypted output
+            if (outputStream != null)
+                outputStream.flush();
+        } catch (Exception e) {
+            Log.e(TAG, "Error recording time-lapse frame!", e);
+            finishFile();
+        }
+    }
+
+    private void startFile(int width, int height, long frameTime) throws Exception {
+        if (!NativeLibraries.awaitFFmpeg())
+            throw new Exception("FFmpeg libraries not loaded");
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new Exception("Unable to create time-lapse directory");
+
+        // Matroska stays readable even if recording is interrupted
+        File file = new File(directory, "timelapse_" + fileFormat.format(frameTime) + ".mkv");
+        Log.i(TAG, "Writing time-lapse to file: " + file.getAbsolutePath());
+
+        frame = new Frame(width, height, Frame.DEPTH_UBYTE, 4);
+        if (RecordingCipher.isEnabled()) {
+            outputStream = new AsyncFileOutputStream(file, 0, true);
+            fFmpegFrameRecorder = new FFmpegFrameRecorder(outputStream, width, height, 0);
+        } else
+            fFmpegFrameRecorder = new FFmpegFrameRecorder(file, width, height, 0);
+        fFmpegFrameRecorder.setFormat("matroska");
+        fFmpegFrameRecorder.setVideoCodec(AV_CODEC_ID_H264);
+        fFmpegFrameRecorder.setPixelFormat(AV_PIX_FMT_YUV420P);
+        fFmpegFrameRecorder.setVideoOption("preset", "ultrafast");
+        fFmpegFrameRecorder.setVideoBitrate(videoBitrate);
+        fFmpegFrameRecorder.setFrameRate(frameRate);
+        fFmpegFrameRecorder.setGopSize(frameRate * 10);
+        fFmpegFrameRecorder.start();
+        currentFile = file;
+        synchronized (recordingFiles) {
+            recordingFiles.add(file.getAbsolutePath());
+        }
+    }
+
+    private void finishFile() {
+        if (fFmpegFrameRecorder == null)
+            return;
+        Log.i(TAG, "Finishing time-lapse file");
+        try {
+            fFmpegFrameRecorder.stop();
+            fFmpegFrameRecorder.release();
+            if (outputStream != null)
+                outputStream.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing time-lapse file!", e);
+        }
+        fFmpegFrameRecorder = null;
+        outputStream = null;
+        frame = null;
+        if (currentFile != null) {
+            synchronized (recordingFiles) {
+                recordingFiles.remove(currentFile.getAbsolutePath());
+            }
+        }
+        currentFile = null;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Seekable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class creates downscaled low bitrate copies of the recordings on demand.
+ * Transcoding runs on a single lowest priority thread and pauses while recording.
+ * Output is written synchronously on that thread, so it doesn't take the recorder's writer.
+ * Copies are cached on the disk with size-bounded LRU eviction
+ */
+public class TranscodeCache {
+    private static final String TAG = TranscodeCache.class.getName();
+
+    private static final String directoryName = "lowres";
+    private static final int frameWidth = 480;
+    private static final int videoBitrate = 300 * 1024;
+    private static final int audioBitrate = 32 * 1024;
+    private static final long maxCacheSize = 512L * 1024 * 1024;
+    private static final long recordingPollInterval = 1000;
+    private static final int outputBufferSize = 64 * 1024;
+
+    private static final ExecutorService transcodeExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                runnable.run();
+            }, "TranscodeCache"));
+
+    private static final Set<String> pending = new HashSet<>();
+
+    /**
+     * Returns cached copy or schedules transcoding
+     * @param recording original recording
+     * @return cached low bitrate copy or null if it's not ready yet
+     */
+    public static File getOrSchedule(File recording) {
+        File cached = getFile(recording);
+        if (cached.exists()) {
+            // Mark as recently used
+            if (!cached.setLastModified(System.currentTimeMillis()))
+                Log.w(TAG, "Unable to update last access time of " + cached.getName());
+            return cached;
+        }
+
+        synchronized (pending) {
+            if (pending.add(recording.getAbsolutePath()))
+                transcodeExecutor.execute(() -> {
+                    transcode(recording, cached);
+                    synchronized (pending) {
+                        pending.remove(recording.getAbsolutePath());
+                    }
+                    evict();
+                });
+        }
+        return null;
+    }
+
+    /**
+     * Removes cached copy of the recording
+     * @param recording original recording
+     */
+    public static void remove(File recording) {
+        File cached = getFile(recording);
+        if (cached.exists() && !cached.delete())
+            Log.w(TAG, "Unable to delete " + cached.getName());
+    }
+
+    private static File getFile(File recording) {
+        // Recordings of additional cameras are prefixed with the camera name
+        File parent = StorageTiers.getStorageFile(recording).getParentFile();
+        String name = parent == null || parent.equals(new File(SettingsContainer.externalFilesDir))
+                ? recording.getName() : parent.getName() + "_" + recording.getName();
+        return new File(new File(SettingsContainer.externalFilesDir, directoryName), name);
+    }
+
+    private static void transcode(File recording, File cached) {
+        File directory = cached.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create cache directory");
+            return;
+        }
+        File temporary = new File(directory, cached.getName() + ".tmp");
+
+        Log.i(TAG, "Transcoding " + recording.getName());
+        FFmpegFrameGrabber grabber = null;
+        FFmpegFrameRecorder fFmpegFrameRecorder = null;
+        OutputStream outputStream = null;
+        boolean success = false;
+        try {
+            if (!NativeLibraries.awaitFFmpeg())
+                throw new Exception("FFmpeg libraries not loaded");
+
+            // Don't open decoder and encoder while recording
+            awaitNotRecording();
+            grabber = RecordingCipher.createGrabber(recording);
+            grabber.start();
+
+            // Downscale (keep even size for YUV420P)
+            int width = Math.min(frameWidth, grabber.getImageWidth()) & ~1;
+            int height = (grabber.getImageHeight() * width / grabber.getImageWidth()) & ~1;
+
+            // Copy is encrypted like the recording
+            outputStream = new TranscodeOutputStream(temporary,
+                    RecordingCipher.isEncrypted(recording));
+            fFmpegFrameRecorder = new FFmpegFrameRecorder(outputStream, width, height,
+                    grabber.getAudioChannels());
+            fFmpegFrameRecorder.setFormat(recording.getName().endsWith(".mkv") ?
+                    "matroska" : "mp4");
+            fFmpegFrameRecorder.setVideoCodec(AV_CODEC_ID_H264);
+            fFmpegFrameRecorder.setPixelFormat(AV_PIX_FMT_YUV420P);
+            fFmpegFrameRecorder.setVideoOption("preset", "veryfast");
+            fFmpegFrameRecorder.setVideoBitrate(videoBitrate);
+            fFmpegFrameRecorder.setFrameRate(grabber.getFrameRate());
+            fFmpegFrameRecorder.setAudioCodec(AV_CODEC_ID_AAC);
+            fFmpegFrameRecorder.setAudioBitrate(audioBitrate);
+            fFmpegFrameRecorder.setSampleRate(grabber.getSampleRate());
+            // Keep rotation metadata of the recording
+            String rotate = grabber.getVideoMetadata("rotate");
+            if (rotate != null)
+                fFmpegFrameRecorder.setVideoMetadata("rotate", rotate);
+            fFmpegFrameRecorder.start();
+
+            Frame frame;
+            while ((frame = grabber.grab()) != null) {
+                // Never compete with live recording
+                awaitNotRecording();
+
+                fFmpegFrameRecorder.setTimestamp(frame.timestamp);
+                fFmpegFrameRecorder.record(frame);
+            }
+            success = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error transcoding " + recording.getName(), e);
+        } finally {
+            try {
+                if (fFmpegFrameRecorder != null) {
+                    fFmpegFrameRecorder.stop();
+                    fFmpegFrameRecorder.release();
+                }
+                if (outputStream != null)
+                    outputStream.close();
+                if (grabber != null) {
+                    grabber.stop();
+                    grabber.release();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error finishing transcoding!", e);
+                success = false;
+            }
+        }
+
+        // Publish finished copy
+        if (!success || !temporary.renameTo(cached)) {
+            if (temporary.exists() && !temporary.delete())
+                Log.w(TAG, "Unable to delete " + temporary.getName());
+        }
+    }
+
+    private static void awaitNotRecording() throws InterruptedException {
+        while (Recorder.isAnyRecording())
+            Thread.sleep(recordingPollInterval);
+    }
+
+    /**
+     * Deletes least recently used copies until the cache fits maxCacheSize
+     */
+    private static void evict() {
+        File[] files = new File(SettingsContainer.externalFilesDir, directoryName).listFiles();
+        if (files == null)
+            return;
+
+        long totalSize = 0;
+        for (File file : files)
+            totalSize += file.length();
+        if (totalSize <= maxCacheSize)
+            return;
+
+        // Oldest access first
+        Arrays.sort(files, (o1, o2) -> Long.compare(o1.lastModified(), o2.lastModified()));
+        for (File file : files) {
+            if (totalSize <= maxCacheSize)
+                break;
+            long length = file.length();
+            if (file.getName().endsWith(".tmp"))
+                continue;
+            if (file.delete()) {
+                Log.i(TAG, "Evicted " + file.getName());
+                totalSize -= length;
+            }
+        }
+    }
+
+    /**
+     * Buffered seekable file output written on the calling thread.
+     * Encrypts the data like AsyncFileOutputStream (header, then AES-CTR data)
+     */
+    private static class TranscodeOutputStream extends OutputStream implements Seekable {
+        private final RandomAccessFile randomAccessFile;
+        private final byte[] buffer = new byte[outputBufferSize];
+        private final byte[] iv;
+        private final long dataOffset;
+        private int bufferLength;
+        private long bufferPosition;
+
+        TranscodeOutputStream(File file, boolean encrypt) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+
+            // Encrypted data starts after the header
+            if (encrypt) {
+                iv = RecordingCipher.newIV();
+                dataOffset = RecordingCipher.HEADER_SIZE;
+                randomAccessFile.write(RecordingCipher.createHeader(iv));
+            } else {
+                iv = null;
+                dataOffset = 0;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (bufferLength == buffer.length)
+                flush();
+            buffer[bufferLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (bufferLength == buffer.length)
+                    flush();
+                int length = Math.min(len, buffer.length - bufferLength);
+                System.arraycopy(b, off, buffer, bufferLength, length);
+                bufferLength += length;
+                off += length;
+                len -= length;
+            }
+        }
+
+        @Override
+        public void seek(long offset, int whence) {
+            try {
+                flush();
+                if (whence == 0)
+                    bufferPosition = offset;
+                else if (whence == 1)
+                    bufferPosition += offset;
+                else if (whence == 2)
+                    bufferPosition = randomAccessFile.length() - dataOffset + offset;
+                else
+                    throw new IllegalArgumentException("Unsupported whence: " + whence);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (bufferLength == 0)
+                return;
+            if (iv != null) {
+                try {
+                    RecordingCipher.crypt(iv, bufferPosition, buffer, 0, bufferLength);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+            randomAccessFile.seek(dataOffset + bufferPosition);
+            randomAccessFile.write(buffer, 0, bufferLength);
+            bufferPosition += bufferLength;
+            bufferLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.provider.Settings;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class replicates finished recordings to SettingsContainer.uploadURL in resumable chunks.
+ * Protocol: HEAD returns Upload-Offset header (404 if nothing uploaded yet),
+ * PUT with Content-Range appends a chunk and returns new Upload-Offset (409 on wrong offset).
+ * Uploads run on lowest priority threads, pause while recording and are throttled
+ * to SettingsContainer.uploadMaxKBps. Progress is saved, so uploads resume after restart.
+ * Encrypted recordings are uploaded as they are stored (with the RecordingCipher header),
+ * so the server never sees plain video. Their key can't leave the device, so such copies
+ * can be played only through this device. If SettingsContainer.uploadDecrypted is enabled,
+ * they are uploaded decrypted instead, and only to an HTTPS URL
+ */
+public class UploadQueue {
+    private static final String TAG = UploadQueue.class.getName();
+
+    private static final String queueFileName = "upload_queue.json";
+    private static final int maxConcurrentUploads = 2;
+    private static final int chunkSize = 1024 * 1024;
+    private static final int sliceSize = 64 * 1024;
+    private static final long recordingPollInterval = 1000;
+    private static final long minRetryDelay = 30000;
+    private static final long maxRetryDelay = 30 * 60000;
+    private static final int connectTimeout = 10000;
+    private static final int readTimeout = 30000;
+
+    private static final ScheduledExecutorService uploadExecutor =
+            Executors.newScheduledThreadPool(maxConcurrentUploads, runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                runnable.run();
+            }, "UploadQueue"));
+
+    // Absolute path -> uploaded bytes
+    private static final Map<String, Long> queue = new LinkedHashMap<>();
+    private static final Set<String> activeUploads = new HashSet<>();
+    private static String deviceName = "";
+    private static boolean started;
+
+    private static final Object throttleLock = new Object();
+    private static long throttleNextTime;
+
+    /**
+     * Loads saved queue and resumes uploads
+     * @param context Android context
+     */
+    @SuppressLint("HardwareIds")
+    public static synchronized void start(Context context) {
+        if (started)
+            return;
+        started = true;
+
+        // Files of each device are stored in separate directory
+        String androidID = Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        deviceName = (Build.MODEL + "_" + (androidID != null ? androidID : ""))
+                .replaceAll("[^A-Za-z0-9_-]", "_");
+
+        load();
+        for (String path : queue.keySet())
+            schedule(path, 0);
+    }
+
+    /**
+     * Adds finished file to the queue (if uploading is enabled)
+     * @param file finished file
+     */
+    public static void enqueue(File file) {
+        // Queue keeps path in the storage (file can be moved there from the fast tier)
+        file = StorageTiers.getStorageFile(file);
+        if (SettingsContainer.uploadURL.isEmpty() || !StorageTiers.resolve(file).exists())
+            return;
+        String path = file.getAbsolutePath();
+        synchronized (UploadQueue.class) {
+            if (queue.containsKey(path))
+                return;
+            queue.put(path, 0L);
+        }
+
+        // Caller is the camera thread. Queue is saved on the upload threads
+        uploadExecutor.execute(() -> {
+            synchronized (UploadQueue.class) {
+                save();
+            }
+        });
+        schedule(path, 0);
+    }
+
+    private static void schedule(String path, long delay) {
+        uploadExecutor.schedule(() -> upload(path, delay), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void upload(String path, long lastDelay) {
+        synchronized (UploadQueue.class) {
+            if (!queue.containsKey(path) || !activeUploads.add(path))
+                return;
+        }
+        try {
+            File file = new File(path);
+            File source = StorageTiers.resolve(file);
+            if (SettingsContainer.uploadDecrypted && source.exists()
+                    && RecordingCipher.isEncrypted(source)
+                    && !SettingsContainer.uploadURL.startsWith("https://")) {
+                Log.w(TAG, "Not uploading encrypted " + path + " without HTTPS");
+                remove(path);
+                return;
+            }
+            if (!source.exists() || uploadFile(file)) {
+                remove(path);
+                return;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Error uploading " + path + ": " + e.getMessage());
+        } finally {
+            synchronized (UploadQueue.class) {
+                activeUploads.remove(path);
+            }
+        }
+
+        // Retry with exponential backoff
+        PerformanceMetrics.incrementCounter("upload_retries");
+        schedule(path, Math.min(maxRetryDelay, Math.max(minRetryDelay, lastDelay * 2)));
+    }
+
+    /**
+     * Uploads rest of the file
+     * @return true if whole file is uploaded
+     */
+    private static boolean uploadFile(File file) throws IOException, InterruptedException {
+        String url = getRemoteURL(file);
+        File source = StorageTiers.resolve(file);
+        boolean decrypt = SettingsContainer.uploadDecrypted;
+        long length = decrypt ? RecordingCipher.getLength(source) : source.length();
+
+        // Server knows how much it has received. Use saved progress if it can't tell
+        long offset = queryOffset(url);
+        if (offset < 0) {
+            synchronized (UploadQueue.class) {
+                Long savedOffset = queue.get(file.getAbsolutePath());
+                offset = savedOffset != null ? savedOffset : 0;
+            }
+        }
+
+        byte[] buffer = new byte[sliceSize];
+        while (offset < length) {
+            // Never compete with live recording
+            while (Recorder.isAnyRecording())
+                Thread.sleep(recordingPollInterval);
+
+            int count = (int) Math.min(chunkSize, length - offset);
+            HttpURLConnection connection = openConnection(url, "PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(count);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Range",
+                    "bytes " + offset + "-" + (offset + count - 1) + "/" + length);
+            try {
+                try (InputStream inputStream = openInputStream(source, offset, decrypt);
+                     OutputStream outputStream = connection.getOutputStream()) {
+                    for (int written = 0; written < count; ) {
+                        int sliceLength = inputStream.read(buffer, 0,
+                                Math.min(buffer.length, count - written));
+                        if (sliceLength < 0)
+                            throw new IOException("File is shorter than expected");
+                        throttle(sliceLength);
+                        outputStream.write(buffer, 0, sliceLength);
+                        written += sliceLength;
+                    }
+                }
+
+                int code = connection.getResponseCode();
+                long serverOffset = parseOffset(connection);
+                if (code == 409 && serverOffset >= 0) {
+                    // Server rejects the offset it asked for. Retry later
+                    if (serverOffset == offset || serverOffset > length)
+                        throw new IOException("Server rejected offset " + offset);
+
+                    // Server has different offset. Continue from it
+                    offset = serverOffset;
+                    continue;
+                }
+                if (code / 100 != 2 && code != 308)
+                    throw new IOException("HTTP " + code);
+                offset = serverOffset >= 0 ? serverOffset : offset + count;
+            } finally {
+                connection.disconnect();
+            }
+
+            // Save progress
+            synchronized (UploadQueue.class) {
+                if (queue.containsKey(file.getAbsolutePath())) {
+                    queue.put(file.getAbsolutePath(), offset);
+                    save();
+                }
+            }
+        }
+        PerformanceMetrics.incrementCounter("upload_files");
+        return true;
+    }
+
+    /**
+     * Opens file for upload
+     * @param source file in the storage
+     * @param position start position
+     * @param decrypt true to read plain data of encrypted recording
+     * @return input stream
+     */
+    private static InputStream openInputStream(File source, long position, boolean decrypt)
+            throws IOException {
+        if (decrypt)
+            return RecordingCipher.openInputStream(source, position);
+        InputStream inputStream = new FileInputStream(source);
+        long skipped = 0;
+        while (skipped < position) {
+            long count = inputStream.skip(position - skipped);
+            if (count <= 0) {
+                inputStream.close();
+                throw new IOException("File is shorter than expected");
+            }
+            skipped += count;
+        }
+        return inputStream;
+    }
+
+    /**
+     * @return uploaded bytes on the server, 0 if nothing uploaded or -1 if unknown
+     */
+    private static long queryOffset(String url) {
+        try {
+            HttpURLConnection connection = openConnection(url, "HEAD");
+            try {
+                int code = connection.getResponseCode();
+                if (code == 404)
+                    return 0;
+                return code / 100 == 2 ? parseOffset(connection) : -1;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long parseOffset(HttpURLConnection connection) {
+        try {
+            return Long.parseLong(connection.getHeaderField("Upload-Offset"));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url, String method)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        if (!SettingsContainer.uploadToken.isEmpty())
+            connection.setRequestProperty("Authorization",
+                    "Bearer " + SettingsContainer.uploadToken);
+        return connection;
+    }
+
+    /**
+     * @return URL of the file on the server (device name and path relative to the files directory)
+     */
+    private static String getRemoteURL(File file) {
+        String root = new File(SettingsContainer.externalFilesDir).getAbsolutePath();
+        String relativePath = file.getAbsolutePath().startsWith(root + "/") ?
+                file.getAbsolutePath().substring(root.length() + 1) : file.getName();
+        String baseURL = SettingsContainer.uploadURL.endsWith("/") ?
+                SettingsContainer.uploadURL : SettingsContainer.uploadURL + "/";
+        return baseURL + deviceName + "/" + relativePath;
+    }
+
+    /**
+     * Waits until the bytes can be sent without exceeding SettingsContainer.uploadMaxKBps
+     * (shared by all uploads)
+     * @param bytes number of bytes to send
+     */
+    private static void throttle(int bytes) throws InterruptedException {
+        long bytesPerSecond = SettingsContainer.getSnapshot().uploadMaxKBps * 1024L;
+        if (bytesPerSecond <= 0)
+            return;
+        long sleepTime;
+        synchronized (throttleLock) {
+            long currentTime = System.nanoTime();
+            if (throttleNextTime < currentTime)
+                throttleNextTime = currentTime;
+            sleepTime = throttleNextTime - currentTime;
+            throttleNextTime += bytes * 1000000000L / bytesPerSecond;
+        }
+        if (sleepTime > 0)
+            Thread.sleep(sleepTime / 1000000, (int) (sleepTime % 1000000));
+    }
+
+    private static synchronized void remove(String path) {
+        queue.remove(path);
+        save();
+    }
+
+    /**
+     * Saves queue with progress. Must be called with class lock
+     */
+    private static void save() {
+        PerformanceMetrics.setGauge("upload_queue_length", queue.size());
+        File file = new File(SettingsContainer.externalFilesDir, queueFileName);
+        File temporary = new File(SettingsContainer.externalFilesDir, queueFileName + ".tmp");
+        try {
+            JSONArray jsonArray = new JSONArray();
+            for (Map.Entry<String, Long> entry : queue.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("path", entry.getKey());
+                item.put("offset", entry.getValue());
+                jsonArray.put(item);
+            }
+            try (FileWriter fileWriter = new FileWriter(temporary)) {
+                fileWriter.write(jsonArray.toString());
+            }
+            if (!temporary.renameTo(file))
+                throw new IOException("Unable to rename " + temporary.getName());
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving upload queue!", e);
+        }
+    }
+
+    /**
+     * Loads saved queue. Must be called with class lock
+     */
+    private static void load() {
+        File file = new File(SettingsContainer.externalFilesDir, queueFileName);
+        if (!file.exists())
+            return;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (String line; (line = bufferedReader.readLine()) != null; )
+                stringBuilder.append(line);
+            JSONArray jsonArray = new JSONArray(stringBuilder.toString());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                JSONObject item = jsonArray.getJSONObject(i);
+                queue.put(item.getString("path"), item.getLong("offset"));
+            }
+            PerformanceMetrics.setGauge("upload_queue_length", queue.size());
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading upload queue!", e);
+        }
+    }
+}
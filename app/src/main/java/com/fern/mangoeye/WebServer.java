@@ -28,28 +28,37 @@ import android.provider.MediaStore;
 import android.util.Base64;
 import android.util.Log;
 
+import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.body.JSONObjectBody;
+import com.koushikdutta.async.http.body.StringBody;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
 
+import org.bytedeco.javacv.AndroidFrameConverter;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 
 public class WebServer {
     private static final String TAG = WebServer.class.getName();
@@ -58,14 +67,12 @@ public class WebServer {
     public static int serverPort = 5000;
     private static boolean timerStarted = false;
 
-    private static final SimpleDateFormat simpleDateFormat =
-            new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.US);
-
-    private static final List<File> files = new ArrayList<>();
-
     private static AsyncHttpServer server;
     private static boolean serverListening = false;
 
+    public static final String CAMERAS_DIRECTORY_NAME = "cameras";
+    private static final String CAMERA_PREFIX = "(/" + CAMERAS_DIRECTORY_NAME + "/[a-z]+)?";
+
     /**
      * Start the server
      * @param context Android context
@@ -81,6 +88,10 @@ public class WebServer {
                     @Override
                     public void run() {
                         serverHost = WebServer.getIPAddress(true);
+
+                        // Storage usage (also keeps event streams alive)
+                        if (EventBroadcaster.hasSubscribers())
+                            broadcastStorage();
                     }
                 };
                 timer.scheduleAtFixedRate(timerTask, 1000, 10000);
@@ -89,122 +100,318 @@ public class WebServer {
 
             server = new AsyncHttpServer();
 
+            // Web assets are read and compressed once
+            StaticAsset indexAsset =
+                    new StaticAsset(context, "index.html", "text/html", true);
+            StaticAsset stylesheetAsset =
+                    new StaticAsset(context, "stylesheet.css", "text/css", true);
+            StaticAsset controllerAsset =
+                    new StaticAsset(context, "controller.js", "text/javascript", true);
+            StaticAsset deleteIconAsset =
+                    new StaticAsset(context, "delete.png", "image/png", false);
+
             // Main page (index.html)
-            server.get("/", (request, response) -> {
-                response.setContentType("text/html");
-                response.send(readAssetToString("index.html", context));
-            });
+            server.get("/", indexAsset::send);
 
             // CSS stylesheet file
-            server.get("/stylesheet.css", (request, response) -> {
-                response.setContentType("text/css");
-                response.send(readAssetToString("stylesheet.css", context));
-            });
+            server.get("/stylesheet.css", stylesheetAsset::send);
 
             // JS file
-            server.get("/controller.js", (request, response) -> {
-                response.setContentType("text/javascript");
-                response.send(readAssetToString("controller.js", context));
-            });
+            server.get("/controller.js", controllerAsset::send);
 
             // Delete icon
-            server.get("/delete.png", (request, response) -> {
-                response.setContentType("image/png");
-                try {
-                    InputStream inputStream = context.getAssets().open("delete.png");
-                    response.sendStream(inputStream, inputStream.available());
-                } catch (Exception e) {
-                    response.send("");
+            server.get("/delete.png", deleteIconAsset::send);
+
+            // Routes below can be prefixed with /cameras/name for additional cameras
+
+            // MP4 and MKV video
+            server.get(CAMERA_PREFIX + "/.._.._...._.._.._..\\.m(p4|kv)",
+                    RequestExecutor.wrap("video", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                String fileName = urlPath[urlPath.length - 1];
+                sendFile(request, response, StorageTiers.resolve(
+                        new File(getRequestDirectory(request), fileName)),
+                        getVideoContentType(fileName));
+            }));
+
+            // Delete video
+            server.get(CAMERA_PREFIX + "/delete/.._.._...._.._.._..\\....",
+                    RequestExecutor.wrap("delete", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                File file = new File(getRequestDirectory(request), urlPath[urlPath.length - 1]);
+
+                // Delete motion metadata
+                File motionFile = MotionMetadata.getFile(file);
+                if (StorageTiers.resolve(motionFile).exists() && !StorageTiers.delete(motionFile))
+                    Log.w(TAG, "Unable to delete " + motionFile.getName());
+
+                // Delete low bitrate copy
+                TranscodeCache.remove(file);
+
+                if (StorageTiers.delete(file)) {
+                    RequestExecutor.send(response, 200, "text/plain", "ok");
+                    JSONObject event = new JSONObject();
+                    event.put("filename", file.getName());
+                    event.put("camera", getRequestCamera(request));
+                    EventBroadcaster.broadcast("deleted", event);
+                    broadcastStorage();
+                }
+                else
+                    RequestExecutor.send(response, 404, "text/plain", "");
+            }));
+
+            // Time-lapse video
+            server.get(CAMERA_PREFIX + "/timelapse/timelapse_.._.._...._.._..\\.mkv",
+                    RequestExecutor.wrap("timelapse", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                sendFile(request, response, new File(new File(getRequestDirectory(request),
+                        TimelapseRecorder.DIRECTORY_NAME), urlPath[urlPath.length - 1]),
+                        "video/x-matroska");
+            }));
+
+            // List of time-lapse videos
+            server.get(CAMERA_PREFIX + "/timelapse.json",
+                    RequestExecutor.wrap("timelapse_json", (request, response) -> {
+                SimpleDateFormat simpleDateFormat =
+                        new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.US);
+                JSONArray jsonArray = new JSONArray();
+                File[] filesArray = new File(getRequestDirectory(request),
+                        TimelapseRecorder.DIRECTORY_NAME).listFiles();
+                if (filesArray != null) {
+                    Arrays.sort(filesArray, (o1, o2) ->
+                            Long.compare(o2.lastModified(), o1.lastModified()));
+                    for (File file : filesArray) {
+                        JSONObject item = new JSONObject();
+                        item.put("filename", file.getName());
+                        item.put("date", simpleDateFormat.format(file.lastModified()));
+                        item.put("size", RecordingCipher.getLength(file));
+                        item.put("recording", TimelapseRecorder.isRecordingFile(file));
+                        jsonArray.put(item);
+                    }
                 }
-            });
 
-            // MP4 video
-            server.get("/.._.._...._.._.._..\\.mp4", (request, response) -> {
-                response.setContentType("video/mp4");
-                try {
-                    String[] urlPath = request.getPath().split("/");
-                    InputStream inputStream =
-                            new FileInputStream(SettingsContainer.externalFilesDir
-                                    + "/" + urlPath[urlPath.length - 1]);
-                    response.sendStream(inputStream, inputStream.available());
-                } catch (Exception e) {
-                    response.send("");
+                JSONObject jsonData = new JSONObject();
+                jsonData.put("timelapse", jsonArray);
+                RequestExecutor.send(response, 200, "application/json", jsonData.toString());
+            }));
+
+            // Downscaled low bitrate copy of the recording (transcoded on demand)
+            server.get(CAMERA_PREFIX + "/lowres/.._.._...._.._.._..\\.m(p4|kv)",
+                    RequestExecutor.wrap("lowres", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                String fileName = urlPath[urlPath.length - 1];
+                File recording = StorageTiers.resolve(
+                        new File(getRequestDirectory(request), fileName));
+                if (!recording.exists() || Recorder.isRecordingFile(recording)) {
+                    RequestExecutor.send(response, 404, "text/plain", "");
+                    return;
                 }
-            });
 
-            // MKV video
-            server.get("/.._.._...._.._.._..\\.mkv", (request, response) -> {
-                response.setContentType("video/x-matroska");
+                // Not ready yet. Client should retry later
+                File cached = TranscodeCache.getOrSchedule(recording);
+                if (cached == null) {
+                    RequestExecutor.post(response, () -> {
+                        response.getHeaders().set("Retry-After", "10");
+                        response.code(202);
+                        response.send("application/json", "{\"status\":\"transcoding\"}");
+                    });
+                    return;
+                }
+
+                sendFile(request, response, cached, getVideoContentType(fileName));
+            }));
+
+            // Export time range across recordings without re-encoding
+            // (/export?from=dd_MM_yyyy_HH_mm_ss&to=dd_MM_yyyy_HH_mm_ss)
+            server.get(CAMERA_PREFIX + "/export", RequestExecutor.wrap("export", (request, response) -> {
+                SimpleDateFormat queryFormat =
+                        new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss", Locale.US);
+                Date from;
+                Date to;
                 try {
-                    String[] urlPath = request.getPath().split("/");
-                    InputStream inputStream =
-                            new FileInputStream(SettingsContainer.externalFilesDir
-                                    + "/" + urlPath[urlPath.length - 1]);
-                    response.sendStream(inputStream, inputStream.available());
+                    from = queryFormat.parse(request.getQuery().getString("from"));
+                    to = queryFormat.parse(request.getQuery().getString("to"));
                 } catch (Exception e) {
-                    response.send("");
+                    RequestExecutor.send(response, 400, "text/plain", "");
+                    return;
+                }
+                List<File> recordings = ClipExporter.findRecordings(
+                        getRequestDirectory(request), from, to);
+                if (recordings.isEmpty()) {
+                    RequestExecutor.send(response, 404, "text/plain", "");
+                    return;
                 }
-            });
 
-            // Delete video
-            server.get("/delete/.._.._...._.._.._..\\....", (request, response) -> {
+                // Stream output as it's produced. Headers are sent with the first data,
+                // so a failure before it (first recording can't be opened) is a 500
+                boolean matroska = recordings.get(0).getName().endsWith(".mkv");
+                String attachmentName = "export_" + request.getQuery().getString("from")
+                        + (matroska ? ".mkv" : ".mp4");
                 try {
-                    String[] urlPath = request.getPath().split("/");
-                    if (new File(SettingsContainer.externalFilesDir
-                            + "/" + urlPath[urlPath.length - 1]).delete())
-                        response.code(200);
-                        response.send("ok");
+                    ClipExporter.execute(() -> {
+                        ResponseOutputStream outputStream = new ResponseOutputStream(response,
+                                () -> {
+                            response.code(200);
+                            response.setContentType(matroska ?
+                                    "video/x-matroska" : "video/mp4");
+                            response.getHeaders().set("Content-Disposition",
+                                    "attachment; filename=\"" + attachmentName + "\"");
+                        });
+                        try {
+                            ClipExporter.export(recordings, from, to, outputStream);
+                            outputStream.close();
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error exporting recordings!", e);
+                            outputStream.abort();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Too many exports are waiting
+                    PerformanceMetrics.incrementCounter("http_rejected");
+                    RequestExecutor.sendUnavailable(response);
+                }
+            }));
+
+            // Motion timeline of the recording
+            server.get(CAMERA_PREFIX + "/motion/.._.._...._.._.._..\\....",
+                    RequestExecutor.wrap("motion", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                File motionFile = StorageTiers.resolve(MotionMetadata.getFile(new File(
+                        getRequestDirectory(request), urlPath[urlPath.length - 1])));
+                try {
+                    RequestExecutor.send(response, 200, "application/json",
+                            MotionMetadata.readAsJSON(motionFile).toString());
                 } catch (Exception e) {
-                    response.send("");
+                    RequestExecutor.send(response, 404, "application/json", "{}");
                 }
-            });
+            }));
+
+            // Motion heatmap of today
+            server.get(CAMERA_PREFIX + "/heatmap.png",
+                    RequestExecutor.wrap("heatmap", (request, response) ->
+                    sendHeatmap(request, response, new SimpleDateFormat("dd_MM_yyyy", Locale.US)
+                            .format(System.currentTimeMillis()))));
+
+            // Motion heatmap of the day (dd_MM_yyyy) or of the hour (dd_MM_yyyy_HH)
+            server.get(CAMERA_PREFIX + "/heatmap/\\d\\d_\\d\\d_\\d\\d\\d\\d(_\\d\\d)?\\.png",
+                    RequestExecutor.wrap("heatmap", (request, response) -> {
+                String[] urlPath = request.getPath().split("/");
+                String key = urlPath[urlPath.length - 1];
+                sendHeatmap(request, response, key.substring(0, key.length() - ".png".length()));
+            }));
 
             // JSON data file
-            server.get("/data.json", (request, response) -> {
-                response.setContentType("application/json");
-                try {
-                    JSONArray jsonArray = new JSONArray();
-
-                    File[] filesArray = new File(SettingsContainer.externalFilesDir).listFiles();
-                    assert filesArray != null;
+            server.get(CAMERA_PREFIX + "/data.json", RequestExecutor.wrap("data", (request, response) -> {
+                SimpleDateFormat simpleDateFormat =
+                        new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.US);
+                JSONArray jsonArray = new JSONArray();
+
+                File[] filesArray = StorageTiers.listFiles(getRequestDirectory(request));
+                if (filesArray == null)
+                    filesArray = new File[0];
+
+                // Sort array of files by date
+                Arrays.sort(filesArray, (o1, o2) ->
+                        Long.compare(o2.lastModified(), o1.lastModified()));
+
+                for (File file : filesArray) {
+                    // Don't add file if recording is in process
+                    if (!Recorder.isRecordingFile(file)) {
+                        JSONObject item = getRecordItem(file, simpleDateFormat);
+                        if (item != null)
+                            jsonArray.put(item);
+                    }
+                }
 
-                    files.clear();
-                    files.addAll(Arrays.asList(filesArray));
+                JSONObject jsonData = new JSONObject();
+                jsonData.put("records", jsonArray);
+                RequestExecutor.send(response, 200, "application/json", jsonData.toString());
+            }));
+
+            // List of cameras with recordings
+            server.get("/cameras.json", RequestExecutor.wrap("cameras", (request, response) -> {
+                JSONArray jsonArray = new JSONArray();
+                JSONObject mainCamera = new JSONObject();
+                mainCamera.put("name", "");
+                mainCamera.put("prefix", "");
+                jsonArray.put(mainCamera);
+                File[] directories = new File(SettingsContainer.externalFilesDir,
+                        CAMERAS_DIRECTORY_NAME).listFiles();
+                if (directories != null) {
+                    Arrays.sort(directories);
+                    for (File directory : directories) {
+                        if (!directory.isDirectory())
+                            continue;
+                        JSONObject camera = new JSONObject();
+                        camera.put("name", directory.getName());
+                        camera.put("prefix", "/" + CAMERAS_DIRECTORY_NAME + "/"
+                                + directory.getName());
+                        jsonArray.put(camera);
+                    }
+                }
 
-                    // Sort array of files by date
-                    Collections.sort(files, (o1, o2) -> {
-                        try {
-                            return new Date(o2.lastModified())
-                                    .compareTo(new Date(o1.lastModified()));
-                        } catch (Exception ignored) { }
-                        return -1;
-                    });
+                JSONObject jsonData = new JSONObject();
+                jsonData.put("cameras", jsonArray);
+                RequestExecutor.send(response, 200, "application/json", jsonData.toString());
+            }));
+
+            // Push events (Server-Sent Events)
+            server.get("/events", EventBroadcaster::subscribe);
+
+            // Live settings
+            server.get("/config", RequestExecutor.wrap("config", (request, response) ->
+                    RequestExecutor.send(response, 200, "application/json",
+                            SettingsContainer.getSnapshot().toJSON().toString())));
+
+            // Change live settings without restarting capture (requires config_token)
+            server.addAction("PUT", "/config", RequestExecutor.wrap("config_put",
+                    (request, response) -> {
+                if (SettingsContainer.configToken.isEmpty()) {
+                    RequestExecutor.send(response, 403, "text/plain",
+                            "Set config_token to change settings");
+                    return;
+                }
+                if (!isConfigAuthorized(request)) {
+                    RequestExecutor.send(response, 401, "text/plain", "Wrong token");
+                    return;
+                }
 
-                    for (File file : files) {
-                        // Don't add file if recording is in process
-                        if (!file.getName().equals(Recorder.recordingFileName)) {
-                            String thumbnail = getThumbnailFromFile(file);
-                            if (thumbnail.length() > 0) {
-                                JSONObject item = new JSONObject();
-                                item.put("filename", file.getName());
-                                item.put("type",
-                                        file.getName().toLowerCase(Locale.ROOT).endsWith("mkv") ?
-                                                "video/x-matroska" : "video/mp4");
-                                item.put("date", simpleDateFormat.format(file.lastModified()));
-                                item.put("thumbnail", thumbnail);
-                                jsonArray.put(item);
-                            }
-                        }
+                JSONObject changes;
+                try {
+                    changes = getRequestJSON(request);
+                } catch (JSONException e) {
+                    RequestExecutor.send(response, 400, "text/plain", "Invalid JSON");
+                    return;
+                }
+                Iterator<String> keys = changes.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (!SettingsSnapshot.isRemoteKey(key)) {
+                        RequestExecutor.send(response, 403, "text/plain",
+                                key + " can't be changed over HTTP");
+                        return;
                     }
+                }
 
-                    JSONObject jsonData = new JSONObject();
-                    jsonData.put("records", jsonArray);
-
-                    response.code(200);
-                    response.send(jsonData.toString());
-                } catch (Exception e) {
-                    response.send("{\"records\":[]}");
+                SettingsSnapshot snapshot;
+                try {
+                    snapshot = SettingsContainer.getSnapshot().withChanges(changes);
+                } catch (JSONException e) {
+                    RequestExecutor.send(response, 400, "text/plain", e.getMessage());
+                    return;
                 }
+                SettingsContainer.applySnapshot(snapshot,
+                        SettingsHandler.getSettingsFile(context));
+                Log.i(TAG, "Settings changed: " + changes);
+                RequestExecutor.send(response, 200, "application/json",
+                        snapshot.toJSON().toString());
+            }));
+
+            // Performance metrics
+            server.get("/metrics.json", (request, response) -> {
+                response.setContentType("application/json");
+                response.code(200);
+                response.send(PerformanceMetrics.toJSON().toString());
             });
 
             // Start server
@@ -222,6 +429,35 @@ public class WebServer {
         }
     }
 
+    /**
+     * Checks "Authorization: Bearer" header against config_token (in constant time)
+     * @param request HTTP request
+     * @return true if token is correct
+     */
+    private static boolean isConfigAuthorized(AsyncHttpServerRequest request) {
+        String authorization = request.getHeaders().get("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer "))
+            return false;
+        return MessageDigest.isEqual(
+                authorization.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8),
+                SettingsContainer.configToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads request body as JSON object
+     * @param request HTTP request
+     * @return JSON object
+     * @throws JSONException if body is not a JSON object
+     */
+    private static JSONObject getRequestJSON(AsyncHttpServerRequest request) throws JSONException {
+        AsyncHttpRequestBody<?> body = request.getBody();
+        if (body instanceof JSONObjectBody && ((JSONObjectBody) body).get() != null)
+            return ((JSONObjectBody) body).get();
+        if (body instanceof StringBody)
+            return new JSONObject(((StringBody) body).get());
+        throw new JSONException("Body is not JSON");
+    }
+
     /**
      * Stops the server
      */
@@ -251,33 +487,160 @@ public class WebServer {
     }
 
     /**
-     * Reads assists file to string
-     * @param fileName name of the file
-     * @param context Android context
-     * @return content of the file
+     * @param cameraName name of the additional camera
+     * @return directory of the camera recordings
      */
-    private static String readAssetToString(String fileName, Context context) {
-        String response = "";
-        try {
-            InputStream inputStream = context.getAssets().open(fileName);
+    public static File getCameraDirectory(String cameraName) {
+        return new File(new File(SettingsContainer.externalFilesDir, CAMERAS_DIRECTORY_NAME),
+                cameraName);
+    }
 
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder stringBuilder = new StringBuilder();
+    /**
+     * @param request server request
+     * @return name of the camera from the /cameras/name prefix or empty string for main camera
+     */
+    private static String getRequestCamera(AsyncHttpServerRequest request) {
+        String path = request.getPath();
+        if (!path.startsWith("/" + CAMERAS_DIRECTORY_NAME + "/"))
+            return "";
+        return path.split("/")[2];
+    }
 
-            for (String line; (line = bufferedReader.readLine()) != null; ) {
-                stringBuilder.append(line).append('\n');
+    /**
+     * @param request server request
+     * @return directory of the camera the request is addressed to
+     */
+    private static File getRequestDirectory(AsyncHttpServerRequest request) {
+        String cameraName = getRequestCamera(request);
+        return cameraName.isEmpty() ?
+                new File(SettingsContainer.externalFilesDir) : getCameraDirectory(cameraName);
+    }
+
+    /**
+     * Sends new recording to the web clients. Blocks while thumbnail is created
+     * @param file finished video file
+     * @param cameraName name of the camera
+     */
+    public static void broadcastRecording(File file, String cameraName) {
+        if (!EventBroadcaster.hasSubscribers())
+            return;
+        try {
+            JSONObject item = getRecordItem(StorageTiers.resolve(file),
+                    new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.US));
+            if (item != null) {
+                item.put("camera", cameraName);
+                EventBroadcaster.broadcast("clip", item);
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending new recording event!", e);
+        }
+        broadcastStorage();
+    }
 
-            inputStream.close();
-            bufferedReader.close();
+    /**
+     * Sends free and total space of the files directory to the web clients
+     */
+    private static void broadcastStorage() {
+        try {
+            File directory = new File(SettingsContainer.externalFilesDir);
+            JSONObject event = new JSONObject();
+            event.put("free", directory.getUsableSpace());
+            event.put("total", directory.getTotalSpace());
+            EventBroadcaster.broadcast("storage", event);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending storage event!", e);
+        }
+    }
 
-            return stringBuilder.toString();
+    /**
+     * Creates JSON item of the recording list
+     * @param file video file
+     * @param simpleDateFormat date format of the item
+     * @return JSON item or null if the file is not a readable video
+     */
+    private static JSONObject getRecordItem(File file, SimpleDateFormat simpleDateFormat)
+            throws JSONException {
+        String thumbnail = getThumbnailFromFile(file);
+        if (thumbnail.length() == 0)
+            return null;
+        JSONObject item = new JSONObject();
+        item.put("filename", file.getName());
+        item.put("type", getVideoContentType(file.getName()));
+        item.put("date", simpleDateFormat.format(file.lastModified()));
+        item.put("thumbnail", thumbnail);
+        item.put("motion", StorageTiers.resolve(MotionMetadata.getFile(file)).exists());
+        return item;
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading " + fileName + " file from assets!", e);
+    /**
+     * Sends heatmap PNG image or 404 if there is no data
+     * @param request server request
+     * @param response server response
+     * @param key hour (dd_MM_yyyy_HH) or day (dd_MM_yyyy)
+     */
+    private static void sendHeatmap(AsyncHttpServerRequest request,
+                                    AsyncHttpServerResponse response, String key) {
+        byte[] png = MotionHeatmap.renderPNG(getRequestDirectory(request), key);
+        if (png == null)
+            RequestExecutor.send(response, 404, "text/plain", "");
+        else
+            RequestExecutor.send(response, 200, "image/png", png);
+    }
+
+    /**
+     * Opens the file on the worker thread and streams it with FileResponseWriter.
+     * Supports single byte range requests (seeking in the browser player)
+     * @param request server request
+     * @param response server response
+     * @param file file to send
+     * @param contentType content type of the file
+     */
+    private static void sendFile(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                                 File file, String contentType) throws IOException {
+        if (!file.isFile()) {
+            RequestExecutor.send(response, 404, "text/plain", "");
+            return;
         }
 
-        return response;
+        // Parse range header. Multiple and malformed ranges are ignored (whole file is sent)
+        long fileLength = RecordingCipher.getLength(file);
+        ByteRange range = ByteRange.parse(request.getHeaders().get("Range"), fileLength);
+        if (range != null && !range.isSatisfiable()) {
+            String unsatisfiedRange = range.getContentRange(fileLength);
+            RequestExecutor.post(response, () -> {
+                response.getHeaders().set("Content-Range", unsatisfiedRange);
+                response.code(416);
+                response.end();
+            });
+            return;
+        }
+        long start = range != null ? range.getStart() : 0;
+        long length = range != null ? range.getLength() : fileLength;
+
+        // Skip to the start of the range here. Chunks are read on the workers
+        // (encrypted recordings are decrypted from the range start)
+        InputStream inputStream = RecordingCipher.openInputStream(file, start);
+
+        String contentRange = range != null ? range.getContentRange(fileLength) : null;
+        RequestExecutor.post(response, () -> {
+            response.getHeaders().set("Accept-Ranges", "bytes");
+            if (contentRange != null) {
+                response.getHeaders().set("Content-Range", contentRange);
+                response.code(206);
+            } else
+                response.code(200);
+            response.setContentType(contentType);
+            FileResponseWriter.send(response, inputStream, length);
+        });
+    }
+
+    /**
+     * @param fileName name of the video file
+     * @return content type by file extension
+     */
+    private static String getVideoContentType(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith("mkv") ?
+                "video/x-matroska" : "video/mp4";
     }
 
     /**
@@ -287,7 +650,8 @@ public class WebServer {
      */
     private static String getThumbnailFromFile(File file) {
         try {
-            Bitmap bitmap = ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(),
+            Bitmap bitmap = RecordingCipher.isEncrypted(file) ? getEncryptedThumbnail(file)
+                    : ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(),
                     MediaStore.Video.Thumbnails.MICRO_KIND);
 
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -298,6 +662,22 @@ public class WebServer {
         return "";
     }
 
+    /**
+     * Decodes first frame of the encrypted recording (system thumbnailer can't read it)
+     */
+    private static Bitmap getEncryptedThumbnail(File file) throws Exception {
+        if (!NativeLibraries.awaitFFmpeg())
+            throw new Exception("FFmpeg libraries not loaded");
+        FFmpegFrameGrabber grabber = RecordingCipher.createGrabber(file);
+        try {
+            grabber.start();
+            return new AndroidFrameConverter().convert(grabber.grabImage());
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+
     /**
      * Gets IP address from first non-localhost interface
      * @param useIPv4   true=return ipv4, false=return ipv6
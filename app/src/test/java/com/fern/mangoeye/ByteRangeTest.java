@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the Range header parsing of the web server
+ */
+public class ByteRangeTest {
+    private static final long fileLength = 1000;
+
+    @Test
+    public void parsesClosedRange() {
+        assertRange(ByteRange.parse("bytes=0-99", fileLength), 0, 99);
+        assertRange(ByteRange.parse("bytes=500-500", fileLength), 500, 500);
+        assertEquals("bytes 10-19/1000",
+                ByteRange.parse("bytes=10-19", fileLength).getContentRange(fileLength));
+    }
+
+    @Test
+    public void parsesOpenRange() {
+        assertRange(ByteRange.parse("bytes=100-", fileLength), 100, 999);
+        assertRange(ByteRange.parse("bytes=999-", fileLength), 999, 999);
+    }
+
+    @Test
+    public void parsesSuffixRange() {
+        assertRange(ByteRange.parse("bytes=-100", fileLength), 900, 999);
+        // Suffix longer than the file is the whole file
+        assertRange(ByteRange.parse("bytes=-5000", fileLength), 0, 999);
+    }
+
+    @Test
+    public void clampsEndToFile() {
+        assertRange(ByteRange.parse("bytes=900-5000", fileLength), 900, 999);
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() {
+        assertUnsatisfiable(ByteRange.parse("bytes=1000-", fileLength), fileLength);
+        assertUnsatisfiable(ByteRange.parse("bytes=2000-3000", fileLength), fileLength);
+        assertUnsatisfiable(ByteRange.parse("bytes=-0", fileLength), fileLength);
+        assertUnsatisfiable(ByteRange.parse("bytes=0-", 0), 0);
+        assertUnsatisfiable(ByteRange.parse("bytes=-10", 0), 0);
+    }
+
+    @Test
+    public void ignoresMissingAndMalformedRanges() {
+        assertNull(ByteRange.parse(null, fileLength));
+        assertNull(ByteRange.parse("", fileLength));
+        assertNull(ByteRange.parse("items=0-10", fileLength));
+        assertNull(ByteRange.parse("bytes=", fileLength));
+        assertNull(ByteRange.parse("bytes=-", fileLength));
+        assertNull(ByteRange.parse("bytes=abc-", fileLength));
+        assertNull(ByteRange.parse("bytes=5-abc", fileLength));
+        assertNull(ByteRange.parse("bytes=+5-10", fileLength));
+        assertNull(ByteRange.parse("bytes=20-10", fileLength));
+        assertNull(ByteRange.parse("bytes=99999999999999999999-", fileLength));
+    }
+
+    @Test
+    public void ignoresMultipleRanges() {
+        assertNull(ByteRange.parse("bytes=0-10,20-30", fileLength));
+        assertNull(ByteRange.parse("bytes=0-10, 20-", fileLength));
+        assertNull(ByteRange.parse("bytes=-10,-20", fileLength));
+    }
+
+    private static void assertRange(ByteRange range, long start, long end) {
+        assertNotNull(range);
+        assertTrue(range.isSatisfiable());
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+        assertEquals(end - start + 1, range.getLength());
+    }
+
+    private static void assertUnsatisfiable(ByteRange range, long length) {
+        assertNotNull(range);
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */" + length, range.getContentRange(length));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the motion metadata sidecar format (varint columns, blocks, trajectories)
+ */
+public class MotionMetadataTest {
+    private static final int frameCount = 300;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsWrittenFrames() throws Exception {
+        File file = temporaryFolder.newFile("recording.mkv.motion");
+        MotionMetadata motionMetadata = new MotionMetadata(file, 640, 480);
+        long[] times = new long[frameCount];
+        long time = 0;
+        for (int i = 0; i < frameCount; i++) {
+            // Time deltas and boxes of 1-5 varint bytes, more blobs than maxBlobs
+            time += i == 200 ? Integer.MAX_VALUE : i * 37;
+            times[i] = time;
+            List<Rect> blobs = new ArrayList<>();
+            for (int j = 0; j < i % 11; j++)
+                blobs.add(new Rect(i << j, j, 127 + i, 16384 * j));
+            motionMetadata.addFrame(time, i - 20, i % 8, blobs, null);
+        }
+        motionMetadata.close();
+
+        JSONObject json = MotionMetadata.readAsJSON(file);
+        assertEquals(640, json.getInt("width"));
+        assertEquals(480, json.getInt("height"));
+        JSONArray timeArray = json.getJSONArray("time");
+        JSONArray scoreArray = json.getJSONArray("score");
+        JSONArray reasonArray = json.getJSONArray("reason");
+        JSONArray blobsArray = json.getJSONArray("blobs");
+        JSONArray tracksArray = json.getJSONArray("tracks");
+        assertEquals(frameCount, timeArray.length());
+        for (int i = 0; i < frameCount; i++) {
+            assertEquals(times[i], timeArray.getLong(i));
+            assertEquals(Math.max(0, Math.min(255, i - 20)), scoreArray.getInt(i));
+            assertEquals(i % 8, reasonArray.getInt(i));
+            JSONArray blobs = blobsArray.getJSONArray(i);
+            assertEquals(Math.min(i % 11, 8) * 4, blobs.length());
+            for (int j = 0; j < blobs.length() / 4; j++) {
+                assertEquals(i << j, blobs.getInt(j * 4));
+                assertEquals(j, blobs.getInt(j * 4 + 1));
+                assertEquals(127 + i, blobs.getInt(j * 4 + 2));
+                assertEquals(16384 * j, blobs.getInt(j * 4 + 3));
+            }
+            assertEquals(0, tracksArray.getJSONArray(i).length());
+        }
+        assertEquals(0, json.getJSONObject("trajectories").length());
+    }
+
+    @Test
+    public void buildsTrajectoriesOfTracks() throws Exception {
+        File file = temporaryFolder.newFile("recording.mkv.motion");
+        MotionMetadata motionMetadata = new MotionMetadata(file, 320, 240);
+        MotionTracker tracker = new MotionTracker(2, false);
+        for (int i = 0; i < frameCount; i++) {
+            List<Rect> blobs = new ArrayList<>();
+            blobs.add(new Rect(i / 2, 100, 20, 10));
+            if (i < 150)
+                blobs.add(new Rect(300 - i / 2, 10, 10, 10));
+            List<MotionTracker.Track> tracks = tracker.update(blobs, 1000 + i * 40L);
+            motionMetadata.addFrame(i * 40L, 10, MotionMetadata.REASON_MOTION, blobs, tracks);
+        }
+        motionMetadata.close();
+
+        JSONObject json = MotionMetadata.readAsJSON(file);
+        JSONObject trajectories = json.getJSONObject("trajectories");
+        assertEquals(2, trajectories.length());
+
+        // First track moves right for the whole recording (not reported in the first frame)
+        JSONArray first = trajectories.getJSONArray("1");
+        assertEquals(frameCount - 1, first.length());
+        for (int i = 0; i < first.length(); i++) {
+            JSONArray point = first.getJSONArray(i);
+            assertEquals((i + 1) * 40L, point.getLong(0));
+            assertEquals((i + 1) / 2 + 10, point.getInt(1));
+            assertEquals(105, point.getInt(2));
+        }
+
+        // Second track moves left until frame 150
+        JSONArray second = trajectories.getJSONArray("2");
+        assertEquals(149, second.length());
+        JSONArray last = second.getJSONArray(second.length() - 1);
+        assertEquals(149 * 40L, last.getLong(0));
+        assertEquals(300 - 149 / 2 + 5, last.getInt(1));
+        assertEquals(15, last.getInt(2));
+
+        // Track columns keep ID and box of each track
+        JSONArray tracks = json.getJSONArray("tracks").getJSONArray(10);
+        assertEquals(10, tracks.length());
+        assertEquals(1, tracks.getInt(0));
+        assertEquals(5, tracks.getInt(1));
+        assertEquals(100, tracks.getInt(2));
+        assertEquals(20, tracks.getInt(3));
+        assertEquals(10, tracks.getInt(4));
+    }
+}
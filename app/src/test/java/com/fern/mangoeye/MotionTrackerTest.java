@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests of MotionTracker matching, confirmation and removal of tracks
+ */
+public class MotionTrackerTest {
+    private static final long frameInterval = 100;
+
+    @Test
+    public void confirmsTrackAfterMinFrames() {
+        MotionTracker tracker = new MotionTracker(3, false);
+        long time = 1000;
+        for (int i = 0; i < 2; i++) {
+            assertTrue(tracker.update(blobs(new Rect(10, 10, 20, 20)), time).isEmpty());
+            assertFalse(tracker.hasConfirmedTrack());
+            time += frameInterval;
+        }
+        List<MotionTracker.Track> tracks = tracker.update(blobs(new Rect(10, 10, 20, 20)), time);
+        assertEquals(1, tracks.size());
+        assertEquals(3, tracks.get(0).getHits());
+        assertTrue(tracker.hasConfirmedTrack());
+        assertEquals(1, tracker.getTracks().size());
+    }
+
+    @Test
+    public void keepsIDOfMovingBlob() {
+        for (boolean kalman : new boolean[]{false, true}) {
+            MotionTracker tracker = new MotionTracker(1, kalman);
+            int id = -1;
+            for (int i = 0; i < 20; i++) {
+                List<MotionTracker.Track> tracks = tracker.update(
+                        blobs(new Rect(10 + i * 8, 50 + i * 2, 30, 20)), 1000 + i * frameInterval);
+                assertEquals(1, tracks.size());
+                if (i == 0)
+                    id = tracks.get(0).getID();
+                assertEquals(id, tracks.get(0).getID());
+            }
+
+            // Smoothed center follows the blob
+            MotionTracker.Track track = tracker.getTracks().get(0);
+            assertEquals(10 + 19 * 8 + 15, track.getCenterX(), 3);
+            assertEquals(50 + 19 * 2 + 10, track.getCenterY(), 3);
+        }
+    }
+
+    @Test
+    public void matchesTwoBlobsToTheirTracks() {
+        MotionTracker tracker = new MotionTracker(1, false);
+        List<MotionTracker.Track> tracks = tracker.update(
+                blobs(new Rect(0, 0, 20, 20), new Rect(200, 0, 20, 20)), 1000);
+        int leftID = getTrackAt(tracks, 10).getID();
+        int rightID = getTrackAt(tracks, 210).getID();
+        assertNotEquals(leftID, rightID);
+
+        // Blobs come in different order and move towards each other
+        for (int i = 1; i <= 5; i++) {
+            tracks = tracker.update(blobs(new Rect(200 - i * 10, 0, 20, 20),
+                    new Rect(i * 10, 0, 20, 20)), 1000 + i * frameInterval);
+            assertEquals(2, tracks.size());
+            assertEquals(leftID, getTrackAt(tracks, 10 + i * 10).getID());
+            assertEquals(rightID, getTrackAt(tracks, 210 - i * 10).getID());
+        }
+    }
+
+    @Test
+    public void keepsTrackDuringShortGaps() {
+        MotionTracker tracker = new MotionTracker(1, false);
+        Rect blob = new Rect(40, 40, 20, 20);
+        int id = tracker.update(blobs(blob), 1000).get(0).getID();
+
+        // Up to maxMissedFrames frames without the blob keep the track (but don't report it)
+        long time = 1000;
+        for (int i = 0; i < 5; i++) {
+            time += frameInterval;
+            assertTrue(tracker.update(Collections.emptyList(), time).isEmpty());
+        }
+        time += frameInterval;
+        assertEquals(id, tracker.update(blobs(blob), time).get(0).getID());
+    }
+
+    @Test
+    public void dropsTrackAfterMissedFrames() {
+        MotionTracker tracker = new MotionTracker(1, false);
+        Rect blob = new Rect(40, 40, 20, 20);
+        int id = tracker.update(blobs(blob), 1000).get(0).getID();
+
+        long time = 1000;
+        for (int i = 0; i < 6; i++) {
+            time += frameInterval;
+            tracker.update(Collections.emptyList(), time);
+        }
+        time += frameInterval;
+        assertNotEquals(id, tracker.update(blobs(blob), time).get(0).getID());
+    }
+
+    @Test
+    public void smallBlobDoesNotStealTrack() {
+        MotionTracker tracker = new MotionTracker(2, false);
+        long time = 1000;
+        int id = -1;
+        for (int i = 0; i < 3; i++) {
+            List<MotionTracker.Track> tracks = tracker.update(
+                    blobs(new Rect(100, 100, 40, 40)), time);
+            if (!tracks.isEmpty())
+                id = tracks.get(0).getID();
+            time += frameInterval;
+        }
+
+        // Noise blob inside the object starts its own track instead of continuing the object
+        time += frameInterval;
+        assertTrue(tracker.update(blobs(new Rect(118, 118, 4, 4)), time).isEmpty());
+        time += frameInterval;
+        List<MotionTracker.Track> tracks = tracker.update(
+                blobs(new Rect(100, 100, 40, 40), new Rect(118, 118, 4, 4)), time);
+        assertEquals(2, tracks.size());
+        assertEquals(id, getTrackAt(tracks, 120).getID());
+        assertEquals(40, getTrackAt(tracks, 120).getBox().width, 1);
+    }
+
+    @Test
+    public void resetRemovesTracks() {
+        MotionTracker tracker = new MotionTracker(1, false);
+        int id = tracker.update(blobs(new Rect(0, 0, 10, 10)), 1000).get(0).getID();
+        tracker.reset();
+        assertFalse(tracker.hasConfirmedTrack());
+        assertTrue(tracker.getTracks().isEmpty());
+        assertNotEquals(id, tracker.update(blobs(new Rect(0, 0, 10, 10)), 2000).get(0).getID());
+    }
+
+    private static List<Rect> blobs(Rect... rects) {
+        List<Rect> blobs = new ArrayList<>();
+        Collections.addAll(blobs, rects);
+        return blobs;
+    }
+
+    /**
+     * @return the largest track with the given center X (fails if there is none)
+     */
+    private static MotionTracker.Track getTrackAt(List<MotionTracker.Track> tracks, int centerX) {
+        MotionTracker.Track result = null;
+        for (MotionTracker.Track track : tracks)
+            if (Math.abs(track.getCenterX() - centerX) <= 1 && (result == null
+                    || track.getBox().area() > result.getBox().area()))
+                result = track;
+        assertTrue("No track at " + centerX, result != null);
+        return result;
+    }
+}
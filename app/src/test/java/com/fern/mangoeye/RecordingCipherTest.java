@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of RecordingCipher encryption and random access reading (runs on the host)
+ */
+public class RecordingCipherTest {
+    private static final int dataSize = 300000;
+    private static final int[] chunkSizes = {1, 15, 17, 4093, 100000};
+    private static final long[] readOffsets = {0, 1, 15, 16, 17, 4095, 70001, dataSize - 1};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Random random = new Random(1);
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        RecordingCipher.setKey(keyBytes);
+        data = new byte[dataSize];
+        random.nextBytes(data);
+    }
+
+    @Test
+    public void readsFromUnalignedOffsets() throws Exception {
+        File file = writeEncrypted(data);
+        assertTrue(RecordingCipher.isEncrypted(file));
+        assertEquals(dataSize, RecordingCipher.getLength(file));
+
+        for (long offset : readOffsets) {
+            try (InputStream inputStream = RecordingCipher.openInputStream(file, offset)) {
+                assertArrayEquals("Offset " + offset,
+                        Arrays.copyOfRange(data, (int) offset, dataSize), readAll(inputStream));
+            }
+        }
+    }
+
+    @Test
+    public void bufferCryptMatchesArrayCrypt() throws Exception {
+        byte[] iv = RecordingCipher.newIV();
+        int position = 4099;
+        int length = 70000;
+        byte[] expected = Arrays.copyOfRange(data, position, position + length);
+        RecordingCipher.crypt(iv, position, expected, 0, length);
+
+        ByteBuffer input = ByteBuffer.allocateDirect(length);
+        input.put(data, position, length).flip();
+        ByteBuffer output = ByteBuffer.allocateDirect(length);
+        RecordingCipher.crypt(iv, position, input, output);
+        output.flip();
+        byte[] actual = new byte[output.remaining()];
+        output.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void skipsToEnd() throws Exception {
+        File file = writeEncrypted(data);
+        try (InputStream inputStream = RecordingCipher.openInputStream(file, 100)) {
+            inputStream.mark(0);
+            assertEquals(dataSize - 100, inputStream.skip(Long.MAX_VALUE));
+            assertEquals(0, inputStream.skip(Long.MAX_VALUE));
+            assertEquals(0, inputStream.available());
+            assertEquals(-1, inputStream.read());
+
+            // Reading continues after reset
+            inputStream.reset();
+            assertEquals(7, inputStream.skip(7));
+            assertEquals(data[107] & 0xFF, inputStream.read());
+        }
+    }
+
+    /**
+     * Encrypts data in unaligned chunks (like the writer does) and writes encrypted file
+     */
+    private File writeEncrypted(byte[] data) throws Exception {
+        byte[] iv = RecordingCipher.newIV();
+        byte[] encrypted = data.clone();
+        for (int position = 0, i = 0; position < encrypted.length; i++) {
+            int length = Math.min(chunkSizes[i % chunkSizes.length], encrypted.length - position);
+            RecordingCipher.crypt(iv, position, encrypted, position, length);
+            position += length;
+        }
+
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(RecordingCipher.createHeader(iv));
+            outputStream.write(encrypted);
+        }
+        return file;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8191];
+        int length;
+        while ((length = inputStream.read(buffer)) > 0)
+            outputStream.write(buffer, 0, length);
+        return outputStream.toByteArray();
+    }
+}
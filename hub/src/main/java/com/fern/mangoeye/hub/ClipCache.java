@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye.hub;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of finished clips shared by all hub clients. Each clip is downloaded
+ * from the node only once (concurrent requests wait for the same download).
+ * Least recently used clips are evicted when the cache is full
+ */
+class ClipCache {
+    private static final Logger LOGGER = Logger.getLogger(ClipCache.class.getName());
+
+    private static final int connectTimeout = 3000;
+    private static final int readTimeout = 30000;
+
+    private final File directory;
+    private final long maxSize;
+    private final ConcurrentMap<String, CompletableFuture<File>> downloads =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param directory cache directory
+     * @param maxSize maximum size of the cache in bytes
+     */
+    ClipCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns cached clip or downloads it
+     * @param key unique key of the clip (node and path)
+     * @param url URL of the clip on the node
+     * @return cached file or null if the node doesn't have it
+     */
+    File get(String key, String url) throws IOException {
+        File file = new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_"));
+        if (file.exists()) {
+            // Mark as recently used
+            if (!file.setLastModified(System.currentTimeMillis()))
+                LOGGER.fine("Unable to update last access time of " + file.getName());
+            return file;
+        }
+
+        // Only one download of the clip at a time, other requests wait for it
+        CompletableFuture<File> future = new CompletableFuture<>();
+        CompletableFuture<File> runningDownload = downloads.putIfAbsent(key, future);
+        if (runningDownload != null)
+            return await(runningDownload);
+
+        File result;
+        try {
+            // Previous download could finish after the check above
+            result = file.exists() || download(url, file) ? file : null;
+            future.complete(result);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloads.remove(key, future);
+        }
+        if (result != null)
+            evict();
+        return result;
+    }
+
+    private static File await(CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private boolean download(String url, File file) throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Unable to create cache directory");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        File temporary = new File(directory, file.getName() + ".tmp");
+        try {
+            if (connection.getResponseCode() != 200)
+                return false;
+            try (InputStream inputStream = connection.getInputStream();
+                 OutputStream outputStream = new FileOutputStream(temporary)) {
+                Hub.copy(inputStream, outputStream, Long.MAX_VALUE);
+            }
+            if (!temporary.renameTo(file))
+                throw new IOException("Unable to rename " + temporary.getName());
+            return true;
+        } finally {
+            connection.disconnect();
+            if (temporary.exists() && !temporary.delete())
+                LOGGER.warning("Unable to delete " + temporary.getName());
+        }
+    }
+
+    /**
+     * Deletes least recently used clips until the cache fits
+     */
+    private synchronized void evict() {
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(".tmp"));
+        if (files == null)
+            return;
+        long size = 0;
+        for (File file : files)
+            size += file.length();
+        if (size <= maxSize)
+            return;
+
+        Arrays.sort(files, (o1, o2) -> Long.compare(o1.lastModified(), o2.lastModified()));
+        for (File file : files) {
+            if (size <= maxSize)
+                break;
+            long length = file.length();
+            if (file.delete())
+                size -= length;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye.hub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event stream of one hub client. Events are dropped if the client is too slow
+ */
+class EventSubscriber {
+    private static final int maxPendingEvents = 64;
+    private static final long keepAliveInterval = 15;
+    private static final byte[] keepAlive = ":\n\n".getBytes();
+
+    private final OutputStream outputStream;
+    private final BlockingQueue<byte[]> pendingEvents = new ArrayBlockingQueue<>(maxPendingEvents);
+
+    EventSubscriber(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Adds event to the queue or drops it if the queue is full
+     * @param bytes encoded event (shared between subscribers, not modified)
+     */
+    void enqueue(byte[] bytes) {
+        pendingEvents.offer(bytes);
+    }
+
+    /**
+     * Writes events until the client disconnects
+     */
+    void run() {
+        try {
+            while (true) {
+                byte[] bytes = pendingEvents.poll(keepAliveInterval, TimeUnit.SECONDS);
+                outputStream.write(bytes != null ? bytes : keepAlive);
+                outputStream.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Client disconnected
+        }
+    }
+}
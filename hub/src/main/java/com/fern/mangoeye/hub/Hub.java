@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye.hub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Hub that federates many Mango-Eye nodes (phones) into one web API.
+ * Runs on a regular Java host:
+ * java -jar hub.jar --port 8080 --node 192.168.1.10 --node 192.168.1.11:5000 --scan 192.168.1
+ * With --upload-dir it also receives uploads of the finished recordings from the nodes
+ */
+public class Hub {
+    private static final Logger LOGGER = Logger.getLogger(Hub.class.getName());
+
+    private static final int defaultNodePort = 5000;
+    private static final int maxPageSize = 200;
+    private static final long scanInterval = 5 * 60;
+    private static final int scanTimeout = 300;
+    private static final int scanThreads = 16;
+
+    // Clip files (optionally with additional camera prefix)
+    private static final Pattern clipPattern = Pattern.compile(
+            "(/cameras/[a-z]+)?/\\d\\d_\\d\\d_\\d\\d\\d\\d_\\d\\d_\\d\\d_\\d\\d\\.m(p4|kv)");
+
+    private final Map<String, HubNode> nodes = new ConcurrentHashMap<>();
+    private final List<EventSubscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ExecutorService nodeExecutor = Executors.newCachedThreadPool();
+    private final ExecutorService scanExecutor = Executors.newFixedThreadPool(scanThreads);
+    private final ClipCache clipCache;
+    private UploadReceiver uploadReceiver;
+
+    /**
+     * @param clipCache shared cache of the proxied clips
+     */
+    Hub(ClipCache clipCache) {
+        this.clipCache = clipCache;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        int nodePort = defaultNodePort;
+        String scanSubnet = null;
+        File cacheDirectory = new File("hub-cache");
+        long cacheSize = 4096L * 1024 * 1024;
+        File uploadDirectory = null;
+        String uploadToken = null;
+        List<String> nodeAddresses = new ArrayList<>();
+
+        // Parse arguments
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--node":
+                    nodeAddresses.add(args[i + 1]);
+                    break;
+                case "--node-port":
+                    nodePort = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--scan":
+                    scanSubnet = args[i + 1];
+                    break;
+                case "--cache-dir":
+                    cacheDirectory = new File(args[i + 1]);
+                    break;
+                case "--cache-size-mb":
+                    cacheSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                    break;
+                case "--upload-dir":
+                    uploadDirectory = new File(args[i + 1]);
+                    break;
+                case "--upload-token":
+                    uploadToken = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        Hub hub = new Hub(new ClipCache(cacheDirectory, cacheSize));
+        if (uploadDirectory != null)
+            hub.uploadReceiver = new UploadReceiver(uploadDirectory, uploadToken);
+        for (String nodeAddress : nodeAddresses) {
+            String[] hostPort = nodeAddress.split(":");
+            hub.addNode(hostPort[0],
+                    hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : nodePort);
+        }
+        if (scanSubnet != null)
+            hub.startScan(scanSubnet, nodePort);
+        hub.start(port);
+    }
+
+    /**
+     * Adds node and starts indexing it (if not added yet)
+     * @param host host name or IP address of the node
+     * @param port web server port of the node
+     */
+    void addNode(String host, int port) {
+        String id = host + "_" + port;
+        if (nodes.containsKey(id))
+            return;
+        HubNode node = new HubNode(id, "http://" + host + ":" + port, this);
+        if (nodes.putIfAbsent(id, node) == null) {
+            LOGGER.info("Added node " + id);
+            node.start(scheduler, nodeExecutor);
+        }
+    }
+
+    /**
+     * Periodically looks for nodes in the /24 subnet (for example 192.168.1)
+     * @param subnet first three octets of the subnet
+     * @param port web server port of the nodes
+     */
+    void startScan(String subnet, int port) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (int i = 1; i < 255; i++) {
+                String host = subnet + "." + i;
+                if (nodes.containsKey(host + "_" + port))
+                    continue;
+                scanExecutor.execute(() -> {
+                    if (isNode(host, port))
+                        addNode(host, port);
+                });
+            }
+        }, 0, scanInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts web server of the hub
+     * @param port port to listen
+     */
+    void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        // Paginated list of the recordings of all nodes (newest first)
+        // (/records.json?offset=0&limit=50&node=id)
+        server.createContext("/records.json", exchange -> {
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                int offset = Math.max(0, parseInt(query.get("offset"), 0));
+                int limit = Math.max(1, Math.min(maxPageSize, parseInt(query.get("limit"), 50)));
+                sendJSON(exchange, 200, getRecords(query.get("node"), offset, limit));
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error listing records", e);
+                sendJSON(exchange, 500, new JSONObject());
+            }
+        });
+
+        // List of nodes
+        server.createContext("/nodes.json", exchange -> {
+            JSONArray jsonArray = new JSONArray();
+            List<String> ids = new ArrayList<>(nodes.keySet());
+            Collections.sort(ids);
+            for (String id : ids)
+                jsonArray.put(nodes.get(id).toJSON());
+            sendJSON(exchange, 200, new JSONObject().put("nodes", jsonArray));
+        });
+
+        // Merged event streams of all nodes
+        server.createContext("/events", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            EventSubscriber subscriber = new EventSubscriber(exchange.getResponseBody());
+            subscribers.add(subscriber);
+            try {
+                subscriber.run();
+            } finally {
+                subscribers.remove(subscriber);
+                exchange.close();
+            }
+        });
+
+        // Proxy to the node (/nodes/id/path). Clips are served from the shared cache
+        server.createContext("/nodes/", exchange -> {
+            try {
+                proxy(exchange);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error proxying " + exchange.getRequestURI(), e);
+                sendText(exchange, 502, "");
+            }
+        });
+
+        // Uploads of the finished recordings
+        if (uploadReceiver != null)
+            server.createContext("/upload/", uploadReceiver);
+
+        server.start();
+        LOGGER.info("Hub is running on port " + port);
+    }
+
+    /**
+     * Sends event of the node to all hub subscribers
+     * @param nodeID ID of the node
+     * @param event name of the event
+     * @param data event data
+     */
+    void broadcast(String nodeID, String event, JSONObject data) {
+        if (subscribers.isEmpty())
+            return;
+        data.put("node", nodeID);
+        byte[] bytes = ("event: " + event + "\ndata: " + data + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+        for (EventSubscriber subscriber : subscribers)
+            subscriber.enqueue(bytes);
+    }
+
+    /**
+     * Merges indexes of the nodes
+     * @param nodeID ID of the node or null for all nodes
+     * @param offset number of records to skip
+     * @param limit maximum number of records
+     * @return page of records
+     */
+    private JSONObject getRecords(String nodeID, int offset, int limit) {
+        List<HubNode.Record> records = new ArrayList<>();
+        for (HubNode node : nodes.values()) {
+            if (nodeID == null || nodeID.equals(node.getID()))
+                records.addAll(node.getRecords());
+        }
+        Collections.sort(records, (o1, o2) -> Long.compare(o2.startTime, o1.startTime));
+
+        JSONArray jsonArray = new JSONArray();
+        for (int i = offset; i < records.size() && i < offset + limit; i++)
+            jsonArray.put(records.get(i).toJSON());
+        return new JSONObject()
+                .put("records", jsonArray)
+                .put("offset", offset)
+                .put("total", records.size());
+    }
+
+    /**
+     * Proxies request to the node. Finished clips are downloaded once into the shared cache
+     * and range requests are served from it. Clips that aren't in the index of the node yet
+     * could still be recording, so they are passed through
+     */
+    private void proxy(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath().substring("/nodes/".length());
+        int slash = path.indexOf('/');
+        HubNode node = slash > 0 ? nodes.get(path.substring(0, slash)) : null;
+        if (node == null) {
+            sendText(exchange, 404, "");
+            return;
+        }
+        String nodePath = path.substring(slash);
+
+        if (clipPattern.matcher(nodePath).matches() && node.isFinished(nodePath)) {
+            File file = clipCache.get(node.getID() + nodePath, node.getBaseURL() + nodePath);
+            if (file == null) {
+                sendText(exchange, 404, "");
+                return;
+            }
+            sendFile(exchange, file, nodePath.endsWith(".mkv") ?
+                    "video/x-matroska" : "video/mp4");
+            return;
+        }
+
+        // Pass through everything else (keep range and query)
+        String query = exchange.getRequestURI().getRawQuery();
+        HttpURLConnection connection = (HttpURLConnection) new URL(node.getBaseURL() + nodePath
+                + (query != null ? "?" + query : "")).openConnection();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null)
+            connection.setRequestProperty("Range", range);
+        int code = connection.getResponseCode();
+        for (String header : new String[] {"Content-Type", "Content-Range", "Accept-Ranges",
+                "Retry-After", "Content-Disposition"}) {
+            String value = connection.getHeaderField(header);
+            if (value != null)
+                exchange.getResponseHeaders().set(header, value);
+        }
+        long length = connection.getContentLengthLong();
+        exchange.sendResponseHeaders(code, length >= 0 ? (length == 0 ? -1 : length) : 0);
+        InputStream inputStream = code >= 400 ?
+                connection.getErrorStream() : connection.getInputStream();
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            if (inputStream != null)
+                copy(inputStream, outputStream, Long.MAX_VALUE);
+        } finally {
+            if (inputStream != null)
+                inputStream.close();
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends file with single byte range support
+     */
+    private static void sendFile(HttpExchange exchange, File file, String contentType)
+            throws IOException {
+        long fileLength = file.length();
+        long start = 0;
+        long end = fileLength - 1;
+        int code = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            try {
+                if (bounds.length == 2 && bounds[0].isEmpty()) {
+                    start = Math.max(0, fileLength - Long.parseLong(bounds[1]));
+                    code = 206;
+                } else if (bounds.length == 2) {
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty())
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    code = 206;
+                }
+            } catch (NumberFormatException ignored) {
+                // Multiple ranges are not supported. Send whole file
+            }
+            if (code == 206 && start > end) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileLength);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (code == 206)
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + fileLength);
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(code, length > 0 ? length : -1);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             OutputStream outputStream = exchange.getResponseBody()) {
+            randomAccessFile.seek(start);
+            byte[] buffer = new byte[64 * 1024];
+            while (length > 0) {
+                int count = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (count < 0)
+                    break;
+                outputStream.write(buffer, 0, count);
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * @return true if there is Mango-Eye web server on the host
+     */
+    private static boolean isNode(String host, int port) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://" + host + ":" + port + "/metrics.json").openConnection();
+            connection.setConnectTimeout(scanTimeout);
+            connection.setReadTimeout(scanTimeout * 3);
+            try {
+                return connection.getResponseCode() == 200 && new JSONObject(
+                        readString(connection.getInputStream())).has("gauges");
+            } finally {
+                connection.disconnect();
+            }
+        } catch (Exception ignored) { }
+        return false;
+    }
+
+    static String readString(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        copy(inputStream, outputStream, Long.MAX_VALUE);
+        inputStream.close();
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static void copy(InputStream inputStream, OutputStream outputStream, long maxLength)
+            throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long copied = 0;
+        for (int count; copied < maxLength && (count = inputStream.read(buffer)) > 0; ) {
+            outputStream.write(buffer, 0, count);
+            copied += count;
+        }
+    }
+
+    private static void sendJSON(HttpExchange exchange, int code, JSONObject jsonObject)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        sendBytes(exchange, code, jsonObject.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendText(HttpExchange exchange, int code, String text)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        sendBytes(exchange, code, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendBytes(HttpExchange exchange, int code, byte[] bytes)
+            throws IOException {
+        exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        if (query == null)
+            return result;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+                result.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return result;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye.hub;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recording index of one Mango-Eye node. The index is fetched once and then kept
+ * up to date from the event stream of the node. Full refresh runs only after
+ * reconnection and rarely as a safety net
+ */
+class HubNode {
+    private static final Logger LOGGER = Logger.getLogger(HubNode.class.getName());
+
+    private static final long refreshInterval = 10 * 60;
+    private static final long reconnectDelay = 5000;
+    private static final int connectTimeout = 3000;
+    private static final int eventsReadTimeout = 60000;
+
+    private final String id;
+    private final String baseURL;
+    private final Hub hub;
+
+    // Key is camera prefix + "/" + file name
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+    private final Set<String> recordingPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean online;
+    private volatile long lastSeen;
+
+    /**
+     * @param id ID of the node (host_port)
+     * @param baseURL URL of the node web server
+     * @param hub hub to send events to
+     */
+    HubNode(String id, String baseURL, Hub hub) {
+        this.id = id;
+        this.baseURL = baseURL;
+        this.hub = hub;
+    }
+
+    /**
+     * Starts indexing and listening for events
+     */
+    void start(ScheduledExecutorService scheduler, ExecutorService executor) {
+        scheduler.scheduleWithFixedDelay(() -> executor.execute(this::refresh),
+                refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        executor.execute(this::readEvents);
+    }
+
+    String getID() {
+        return id;
+    }
+
+    String getBaseURL() {
+        return baseURL;
+    }
+
+    Collection<Record> getRecords() {
+        return new ArrayList<>(records.values());
+    }
+
+    /**
+     * Node lists recordings only after they are finished, so a clip that was already
+     * recording when the hub connected isn't in the index until its clip event
+     * @param path camera prefix and file name
+     * @return true if the file is in the index and the node isn't recording it now
+     */
+    boolean isFinished(String path) {
+        return records.containsKey(path) && !recordingPaths.contains(path);
+    }
+
+    JSONObject toJSON() {
+        return new JSONObject()
+                .put("id", id)
+                .put("url", baseURL)
+                .put("online", online)
+                .put("records", records.size())
+                .put("last_seen", lastSeen);
+    }
+
+    /**
+     * Fetches full index of all cameras of the node
+     */
+    private synchronized void refresh() {
+        try {
+            // Additional cameras (older nodes don't have them)
+            List<String> prefixes = new ArrayList<>();
+            prefixes.add("");
+            try {
+                JSONArray cameras = getJSON("/cameras.json").getJSONArray("cameras");
+                for (int i = 0; i < cameras.length(); i++) {
+                    String name = cameras.getJSONObject(i).getString("name");
+                    if (!name.isEmpty())
+                        prefixes.add(cameras.getJSONObject(i).getString("prefix"));
+                }
+            } catch (IOException e) {
+                LOGGER.fine("No cameras list on " + id);
+            }
+
+            Map<String, Record> newRecords = new HashMap<>();
+            for (String prefix : prefixes) {
+                JSONArray items = getJSON(prefix + "/data.json").getJSONArray("records");
+                for (int i = 0; i < items.length(); i++) {
+                    Record record = new Record(id, prefix, items.getJSONObject(i));
+                    newRecords.put(record.getPath(), record);
+                }
+            }
+
+            records.keySet().retainAll(newRecords.keySet());
+            records.putAll(newRecords);
+            online = true;
+            lastSeen = System.currentTimeMillis();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Error indexing " + id, e);
+            online = false;
+        }
+    }
+
+    /**
+     * Reads Server-Sent Events of the node and reconnects if connection is lost
+     */
+    private void readEvents() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                HttpURLConnection connection =
+                        (HttpURLConnection) new URL(baseURL + "/events").openConnection();
+                connection.setConnectTimeout(connectTimeout);
+                connection.setReadTimeout(eventsReadTimeout);
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        connection.getInputStream(), StandardCharsets.UTF_8))) {
+                    // Events could be missed while disconnected
+                    refresh();
+
+                    String event = "message";
+                    StringBuilder data = new StringBuilder();
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        lastSeen = System.currentTimeMillis();
+                        if (line.isEmpty()) {
+                            if (data.length() > 0)
+                                dispatch(event, data.toString());
+                            event = "message";
+                            data.setLength(0);
+                        } else if (line.startsWith("event:"))
+                            event = line.substring("event:".length()).trim();
+                        else if (line.startsWith("data:"))
+                            data.append(line.substring("data:".length()).trim());
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Lost events of " + id, e);
+            }
+            online = false;
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Updates index from the event and forwards event to the hub clients
+     */
+    private void dispatch(String event, String data) {
+        JSONObject jsonObject;
+        try {
+            jsonObject = new JSONObject(data);
+        } catch (Exception e) {
+            return;
+        }
+
+        String camera = jsonObject.optString("camera", "");
+        switch (event) {
+            case "clip": {
+                Record record = new Record(id, getCameraPrefix(camera), jsonObject);
+                records.put(record.getPath(), record);
+                recordingPaths.remove(record.getPath());
+                break;
+            }
+            case "recording": {
+                String path = getCameraPrefix(camera) + "/" + jsonObject.optString("filename");
+                if (jsonObject.optBoolean("recording"))
+                    recordingPaths.add(path);
+                else
+                    recordingPaths.remove(path);
+                break;
+            }
+            case "deleted":
+                records.remove(getCameraPrefix(camera) + "/" + jsonObject.optString("filename"));
+                break;
+        }
+        hub.broadcast(id, event, jsonObject);
+    }
+
+    /**
+     * @param camera name of the camera from the event (empty for the main camera)
+     * @return URL prefix of the camera
+     */
+    private static String getCameraPrefix(String camera) {
+        return camera.isEmpty() ? "" : "/cameras/" + camera;
+    }
+
+    private JSONObject getJSON(String path) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(baseURL + path).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(eventsReadTimeout);
+        try {
+            if (connection.getResponseCode() != 200)
+                throw new IOException("HTTP " + connection.getResponseCode());
+            return new JSONObject(Hub.readString(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Recording in the index
+     */
+    static class Record {
+        final String node;
+        final String prefix;
+        final JSONObject item;
+        final long startTime;
+
+        Record(String node, String prefix, JSONObject item) {
+            this.node = node;
+            this.prefix = prefix;
+            this.item = item;
+
+            // Start time is in the file name (dd_MM_yyyy_HH_mm_ss.ext)
+            long time = 0;
+            try {
+                String fileName = item.getString("filename");
+                time = new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss", Locale.US)
+                        .parse(fileName.substring(0, fileName.lastIndexOf('.'))).getTime();
+            } catch (Exception ignored) { }
+            this.startTime = time;
+        }
+
+        String getPath() {
+            return prefix + "/" + item.optString("filename");
+        }
+
+        JSONObject toJSON() {
+            return new JSONObject(item.toString())
+                    .put("node", node)
+                    .put("url", "/nodes/" + node + getPath());
+        }
+    }
+}
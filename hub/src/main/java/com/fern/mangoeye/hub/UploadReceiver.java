@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2021 Fern H., Mango-Eye Android application
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.fern.mangoeye.hub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Receiver of the resumable uploads from the nodes (/upload/device/path).
+ * HEAD returns Upload-Offset (404 if nothing received),
+ * PUT with Content-Range appends the chunk (409 with Upload-Offset on wrong offset).
+ * Unfinished files are kept with .part extension
+ */
+class UploadReceiver implements HttpHandler {
+    private static final Pattern contentRangePattern =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final File directory;
+    private final String token;
+
+    // Locks of the files being received (key is the path of the .part file)
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory directory to store uploaded files
+     * @param token expected bearer token or null to accept any request
+     */
+    UploadReceiver(File directory, String token) {
+        this.directory = directory;
+        this.token = token;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (token != null && !("Bearer " + token).equals(
+                    exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            // Relative path without ".." and empty parts
+            String path = exchange.getRequestURI().getPath().substring("/upload/".length());
+            if (path.isEmpty() || path.contains("..") || path.contains("//")) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            File file = new File(directory, path);
+            File partFile = new File(directory, path + ".part");
+
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                if (file.exists())
+                    sendOffset(exchange, 200, file.length());
+                else if (partFile.exists())
+                    sendOffset(exchange, 200, partFile.length());
+                else
+                    exchange.sendResponseHeaders(404, -1);
+            } else if ("PUT".equals(exchange.getRequestMethod()))
+                receiveChunk(exchange, file, partFile);
+            else
+                exchange.sendResponseHeaders(405, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void receiveChunk(HttpExchange exchange, File file, File partFile)
+            throws IOException {
+        String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+        Matcher matcher = contentRange != null ? contentRangePattern.matcher(contentRange) : null;
+        if (matcher == null || !matcher.matches()) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Long.parseLong(matcher.group(2));
+        long total = Long.parseLong(matcher.group(3));
+
+        // Chunks of different files are received in parallel
+        String key = partFile.getPath();
+        Object lock = locks.computeIfAbsent(key, ignored -> new Object());
+        synchronized (lock) {
+            // Whole file is already received
+            if (file.exists()) {
+                sendOffset(exchange, 200, file.length());
+                return;
+            }
+            long offset = partFile.exists() ? partFile.length() : 0;
+            if (start != offset) {
+                sendOffset(exchange, 409, offset);
+                return;
+            }
+
+            File parent = partFile.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs())
+                throw new IOException("Unable to create " + parent);
+            try (InputStream inputStream = exchange.getRequestBody();
+                 OutputStream outputStream = new FileOutputStream(partFile, true)) {
+                Hub.copy(inputStream, outputStream, end - start + 1);
+            }
+
+            offset = partFile.length();
+            if (offset >= total) {
+                if (!partFile.renameTo(file))
+                    throw new IOException("Unable to rename " + partFile);
+                locks.remove(key, lock);
+            }
+            sendOffset(exchange, offset >= total ? 201 : 200, offset);
+        }
+    }
+
+    private static void sendOffset(HttpExchange exchange, int code, long offset)
+            throws IOException {
+        exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(offset));
+        exchange.sendResponseHeaders(code, -1);
+    }
+}